@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.benchmarks;
+
+import org.espresso.FunctionExtension;
+import org.espresso.SqlParser;
+import org.espresso.eval.Evaluator;
+import org.espresso.token.SqlExpressionNode;
+import org.espresso.token.SqlSelect;
+import org.espresso.visitor.CompilerVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiling a parsed where clause to bytecode, bypassing the evaluator cache: every invocation
+ * generates and loads a new class.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompileBenchmark {
+    @Param
+    public Query query;
+
+    private SqlExpressionNode<Deal> whereClause;
+    private Map<String, FunctionExtension> functions;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws SQLException {
+        whereClause = ((SqlSelect) SqlParser.parse(query.sql())).getWhereClause();
+        functions = Deals.functions();
+    }
+
+    @Benchmark
+    public Evaluator compile() throws SQLException {
+        return new CompilerVisitor<Deal>(Deal.class, whereClause, functions).compile();
+    }
+}
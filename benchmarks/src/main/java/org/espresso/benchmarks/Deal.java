@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.benchmarks;
+
+import java.util.Date;
+
+/**
+ * The row type the benchmarks run against, shaped like the deals SqlEnginePerformance uses.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class Deal {
+    private final String dealNumber;
+    private final String book;
+    private final int child;
+    private final double price;
+    private final String databaseName;
+    private final Date maturityDate;
+    private final Date dealDate;
+
+    public Deal(final String dealNumber, final String book, final int child, final double price,
+            final String databaseName, final Date maturityDate, final Date dealDate) {
+        this.dealNumber = dealNumber;
+        this.book = book;
+        this.child = child;
+        this.price = price;
+        this.databaseName = databaseName;
+        this.maturityDate = maturityDate;
+        this.dealDate = dealDate;
+    }
+
+    public String getDealNumber() {
+        return dealNumber;
+    }
+
+    public String getBook() {
+        return book;
+    }
+
+    public int getChild() {
+        return child;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public Date getMaturityDate() {
+        return maturityDate;
+    }
+
+    public Date getDealDate() {
+        return dealDate;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.benchmarks;
+
+import org.espresso.FunctionExtension;
+import org.espresso.extension.JapaneseDateExtension;
+import org.espresso.index.BitmapIndex;
+import org.espresso.index.DateIndex;
+import org.espresso.index.NumericIndex;
+import org.espresso.index.Indices;
+import org.espresso.index.RowIds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the stores the benchmarks run against, with the same distributions as
+ * SqlEnginePerformance: 10 books, 100 children, 2 databases, and a quarter of the deals maturing
+ * yesterday, half today and a quarter tomorrow.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+final class Deals {
+    static final JapaneseDateExtension DATES = new JapaneseDateExtension();
+
+    private Deals() {}
+
+    static List<Deal> store(final int size) {
+        final List<Deal> store = new ArrayList<Deal>(size);
+        final Date today = new GregorianCalendar(2001, 0, 2).getTime();
+        final Date yesterday = new GregorianCalendar(2001, 0, 1).getTime();
+        final Date tomorrow = new GregorianCalendar(2001, 0, 3).getTime();
+        for (int i = 0; i < size; i++)
+            store.add(new Deal("HH_" + i, "book_" + (i % 10), i % 100, (i % 1000) / 10.0,
+                    "database_" + (i % 2), i < size / 4 ? yesterday : i > 3 * size / 4 ? tomorrow : today,
+                    today));
+        return store;
+    }
+
+    static Indices<Deal> indices(final List<Deal> store) {
+        final RowIds<Deal> rows = new RowIds<Deal>();
+        final Indices<Deal> indices = new Indices<Deal>(
+                NumericIndex.newIndex(Deal.class, Integer.class, "child", 0, 99),
+                BitmapIndex.newIndex(rows, Deal.class, String.class, "book"),
+                BitmapIndex.newIndex(rows, Deal.class, String.class, "database_name"),
+                DateIndex.newIndex(Deal.class, "maturity_date", new GregorianCalendar(2000, 0, 1).getTime(),
+                        DateIndex.Granularity.DAY, 3660));
+        for (final Deal deal : store)
+            indices.addToIndices(deal);
+        return indices;
+    }
+
+    /**
+     * The function extensions the engine builds from DATES, for benchmarks that use the tree or the
+     * compiler directly
+     */
+    static Map<String, FunctionExtension> functions() {
+        try {
+            return Collections.singletonMap("toDate",
+                    new FunctionExtension(DATES, JapaneseDateExtension.class.getMethod("toDate", String.class)));
+        } catch (final NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
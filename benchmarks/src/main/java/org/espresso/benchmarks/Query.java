@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.benchmarks;
+
+/**
+ * The query shapes the benchmarks run, taken from SqlEnginePerformance, with the fraction of the
+ * store each one selects.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public enum Query {
+    CHILD_EQ("child = 47"),                                         // 1%
+    CHILD_IN("child in (50, 60)"),                                  // 2%
+    CHILD_BETWEEN("child between 50 and 59"),                       // 10%
+    CHILD_GT("child > 2"),                                          // 97%
+    PRICE_LT("price < 10.5"),                                       // 10.6%
+    BOOK_EQ("book = 'book_0'"),                                     // 10%
+    BOOK_IN("book in ('book_0', 'book_1')"),                        // 20%
+    BOOK_LIKE("book like 'b%k_0'"),                                 // 10%
+    BOOK_AND_DATABASE("book in ('book_0', 'book_1') and database_name = 'database_1'"),  // 10%
+    MATURITY_GE("maturity_date >= '2001/01/02'"),                   // 75%
+    CHILD_AND_MATURITY("child = 47 and maturity_date = '2001/01/02'"),  // 0.5%
+    COMPOUND("maturity_date >= '2001/01/02' and book = 'book_5' "
+            + "and not child in (0, 1, 2, 3, 4, 5, 6, 7, 8, 9)");   // 6.75%
+
+    private final String whereClause;
+
+    Query(final String whereClause) {
+        this.whereClause = whereClause;
+    }
+
+    public String sql() {
+        return "select * from Deals where " + whereClause + ";";
+    }
+}
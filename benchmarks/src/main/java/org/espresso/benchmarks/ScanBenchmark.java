@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.benchmarks;
+
+import org.espresso.SqlEngine;
+import org.espresso.SqlParser;
+import org.espresso.eval.EvaluationContext;
+import org.espresso.index.Indices;
+import org.espresso.token.SqlExpressionNode;
+import org.espresso.token.SqlSelect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running a query over a store: by interpreting the tree, with the compiled where clause, and
+ * with the compiled where clause over the subset selected by the indices. Run with -prof gc to
+ * see the allocation rate of each.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ScanBenchmark {
+    @Param({"100000", "1000000"})
+    public int size;
+
+    @Param
+    public Query query;
+
+    private List<Deal> store;
+    private Indices<Deal> indices;
+    private SqlEngine<Deal> engine;
+    private SqlExpressionNode<Deal> whereClause;
+    private EvaluationContext context;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws SQLException {
+        store = Deals.store(size);
+        indices = Deals.indices(store);
+        engine = new SqlEngine<Deal>(Deal.class, query.sql(), Deals.DATES);
+        if (!engine.compile())
+            throw new IllegalStateException("Expected " + query + " to compile");
+        final SqlSelect select = (SqlSelect) SqlParser.parse(query.sql());
+        whereClause = select.getWhereClause();
+        context = new EvaluationContext(Deals.functions(), select.getRegisterCount());
+    }
+
+    @Benchmark
+    public List<Deal> interpretedScan() throws SQLException {
+        final List<Deal> results = new ArrayList<Deal>();
+        for (final Deal deal : store)
+            if ((Boolean) whereClause.eval(deal, context))
+                results.add(deal);
+        return results;
+    }
+
+    @Benchmark
+    public List<Deal> compiledScan() throws SQLException {
+        return engine.execute(store.iterator());
+    }
+
+    @Benchmark
+    public List<Deal> indexedScan() throws SQLException {
+        return engine.execute(store.iterator(), indices);
+    }
+}
@@ -12,6 +12,31 @@ import org.espresso.token.*;
 import static org.espresso.token.SqlComparisonOperator.*;
 import static org.espresso.token.SqlBooleanOperator.*;
 import static org.espresso.token.SqlArithmeticOperator.*;
+import java.util.HashMap;
+import java.util.Map;
+}
+
+@members {
+    // Bind variables found so far: positional ones take the next slot, named ones take the next
+    // slot the first time they show up, and reuse it after that.
+    private final List<SqlParameter> parameters = new ArrayList<SqlParameter>();
+    private final Map<String, Integer> namedSlots = new HashMap<String, Integer>();
+    private int slots = 0;
+    // Nodes that produce numbers (columns, function calls and arithmetic expressions) each get
+    // their own register, a scratch number in the evaluation context.
+    private int registers = 0;
+
+    private SqlParameter newParameter(final String name) {
+        Integer slot = null == name ? null : namedSlots.get(name);
+        if (null == slot) {
+            slot = slots++;
+            if (null != name)
+                namedSlots.put(name, slot);
+        }
+        final SqlParameter parameter = new SqlParameter(slot, name);
+        parameters.add(parameter);
+        return parameter;
+    }
 }
 
 @lexer::header {
@@ -23,6 +48,8 @@ CANCEL_ : ('C'|'c')('A'|'a')('N'|'n')('C'|'c')('E'|'e')('L'|'l') ;
 SELECT_ : ('S'|'s')('E'|'e')('L'|'l')('E'|'e')('C'|'c')('T'|'t') ;
 FROM_ : ('F'|'f')('R'|'r')('O'|'o')('M'|'m') ;
 WHERE_ : ('W'|'w')('H'|'h')('E'|'e')('R'|'r')('E'|'e') ;
+COUNT_ : ('C'|'c')('O'|'o')('U'|'u')('N'|'n')('T'|'t') ;
+LIMIT_ : ('L'|'l')('I'|'i')('M'|'m')('I'|'i')('T'|'t') ;
 OR_ : ('O'|'o')('R'|'r') ;
 AND_ : ('A'|'a')('N'|'n')('D'|'d') ;
 NOT_ : ('N'|'n')('O'|'o')('T'|'t') ;
@@ -61,13 +88,28 @@ cancelStatement returns [SqlCancel cancelStatement]
     ;
 
 selectStatement returns [SqlSelect selectStatement]
+    @init {
+        boolean count = false;
+        int limit = SqlSelect.NO_LIMIT;
+    }
     :   SELECT_
-        '*'
+        (   '*'
+        |   COUNT_ '(' '*' ')' {
+                    count = true;
+                }
+        )
         FROM_
         tableName = Identifier {}
         WHERE_
-        sCond = searchCondition {
-                $selectStatement = new SqlSelect(tableName.getText(), sCond);
+        sCond = searchCondition
+        (   LIMIT_
+            rows = Number {
+                    if ($rows.text.contains("."))
+                        throw new FailedPredicateException(input, "selectStatement", "LIMIT takes a whole number");
+                    limit = new java.math.BigInteger($rows.text).min(java.math.BigInteger.valueOf(SqlSelect.NO_LIMIT)).intValue();
+                }
+        )? {
+                $selectStatement = new SqlSelect(tableName.getText(), sCond, parameters, registers, count, limit);
             }
     ;
 
@@ -135,9 +177,9 @@ predicate returns [SqlExpressionNode lFactor]
     ;
 
 between returns [SqlExpressionNode bw]
-    :   col = Identifier {
+    :   col = columnName {
                 $bw = new SqlBetweenExpression();
-                ((SqlExpression)$bw).addOperand(new SqlColumn($col.text));
+                ((SqlExpression)$bw).addOperand(new SqlColumn($col.text, registers++));
             }
         BETWEEN_
         e1 = expression {
@@ -150,35 +192,36 @@ between returns [SqlExpressionNode bw]
     ;
 
 inList returns [SqlExpressionNode inL]
-    :   col = Identifier {
-                $inL = new SqlInExpression(new SqlColumn($col.text));
+    :   col = columnName {
+                SqlColumn column = new SqlColumn($col.text, registers++);
+                List<SqlExpressionNode> options = new ArrayList<SqlExpressionNode>();
             }
         IN_
         '('
         exp = expression {
-                ((SqlExpression)$inL).addOperand(exp);
+                options.add(exp);
             }
         ( ','   exp = expression {
-                        ((SqlExpression)$inL).addOperand(exp);
+                        options.add(exp);
                     }
         )*
-        ')'
+        ')' {
+                $inL = new SqlInExpression(column, options);
+            }
     ;
 
 like returns [SqlExpressionNode lk]
-    :   col = Identifier {
-                $lk = new SqlLikeExpression();
-                ((SqlExpression)$lk).addOperand(new SqlColumn($col.text));
+    :   col = columnName {
+                SqlColumn column = new SqlColumn($col.text, registers++);
             }
         LIKE_
         str = String {
-                SqlString string = new SqlString($str.text);
-                ((SqlExpression)$lk).addOperand(string);
+                $lk = new SqlLikeExpression(column, new SqlString($str.text));
             }
     ;
 
 nullPredicate returns [SqlExpressionNode nullPred]
-    :   col = Identifier {
+    :   col = columnName {
                 boolean isNull = true;
             }
         IS_
@@ -187,7 +230,7 @@ nullPredicate returns [SqlExpressionNode nullPred]
             }
         )?
         NULL_ {
-                $nullPred = new SqlIsNullExpression(new SqlColumn($col.text), isNull);
+                $nullPred = new SqlIsNullExpression(new SqlColumn($col.text, registers++), isNull);
             }
     ;
 
@@ -245,13 +288,13 @@ expression returns [SqlExpressionNode exp]
                     $exp =  t1;
                 }
          ( '+'  t2 = term {
-                        SqlExpression temp = new SqlArithmeticExpression(PLUS);
+                        SqlExpression temp = new SqlArithmeticExpression(PLUS, registers++);
                         temp.addOperand($exp);
                         temp.addOperand(t2);
                         $exp = temp;
                     }
          | '-'  t2 = term {
-                        SqlExpression temp = new SqlArithmeticExpression(MINUS);
+                        SqlExpression temp = new SqlArithmeticExpression(MINUS, registers++);
                         temp.addOperand($exp);
                         temp.addOperand(t2);
                         $exp = temp;
@@ -264,13 +307,13 @@ term returns [SqlExpressionNode trm]
                     $trm = a1;
                 }
          ( '*'  a2 = atomicExp {
-                        SqlExpression temp = new SqlArithmeticExpression(TIMES);
+                        SqlExpression temp = new SqlArithmeticExpression(TIMES, registers++);
                         temp.addOperand($trm);
                         temp.addOperand(a2);
                         $trm = temp;
                     }
          | '/'  a2 = atomicExp {
-                        SqlExpression temp = new SqlArithmeticExpression(DIV);
+                        SqlExpression temp = new SqlArithmeticExpression(DIV, registers++);
                         temp.addOperand($trm);
                         temp.addOperand(a2);
                         $trm = temp;
@@ -284,11 +327,11 @@ atomicExp returns [SqlExpressionNode ae]
     :   number = Number {
                 $ae = new SqlNumber($number.text);
             }
-    |   identifier = Identifier {
-                $ae = new SqlColumn($identifier.text);
+    |   identifier = columnName {
+                $ae = new SqlColumn($identifier.text, registers++);
             }
         ( '('   pl = parameterList {
-                        $ae = new SqlFunction($identifier.text);
+                        $ae = new SqlFunction($identifier.text, registers++);
                         ((SqlFunction)$ae).setParameters(pl);
                     }
           ')'
@@ -299,11 +342,25 @@ atomicExp returns [SqlExpressionNode ae]
     |   string = String {
                 $ae = new SqlString($string.text);
             }
+    |   '?' {
+                $ae = newParameter(null);
+            }
+    |   parameter = NamedParameter {
+                $ae = newParameter($parameter.text.substring(1));
+            }
     |   '(' sc=searchCondition ')' {
                 $ae = sc;
             }
     ;
 
+// COUNT and LIMIT are keywords only in the select list and after the where clause, so they can
+// still name columns and functions
+columnName
+    :   Identifier
+    |   COUNT_
+    |   LIMIT_
+    ;
+
 Number
     :   ('0'..'9')+ ('.' ('0'..'9')+)?
     ;
@@ -312,6 +369,10 @@ Identifier
     :   ('A'..'Z'|'a'..'z')('A'..'Z'|'a'..'z'|'0'..'9'|'_'|'.')*
     ;
 
+NamedParameter
+    :   ':' ('A'..'Z'|'a'..'z')('A'..'Z'|'a'..'z'|'0'..'9'|'_')*
+    ;
+
 Date
     :   (   '\'' ('0'..'9')('0'..'9')? ('/'|'-') ('0'..'9')('0'..'9')? ('/'|'-') ('0'..'9')('0'..'9')('0'..'9')('0'..'9') '\''
         |   '\'' ('0'..'9')('0'..'9')('0'..'9')('0'..'9') ('/'|'-') ('0'..'9')('0'..'9')? ('/'|'-') ('0'..'9')('0'..'9')? '\''
@@ -43,4 +43,33 @@ public class FunctionExtension {
     public Class<?>[] getParameterTypes() {
         return method.getParameterTypes();
     }
+
+    public Object getTarget() {
+        return target;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * Two function extensions are the same if they call the same method on the same object.
+     *
+     * @param o the other function extension
+     * @return true if they are the same
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof FunctionExtension))
+            return false;
+        final FunctionExtension that = (FunctionExtension) o;
+        return target == that.target && method.equals(that.method);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(target) + method.hashCode();
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso;
+
+import org.espresso.eval.EvaluationContext;
+
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Lazily filters a source spliterator, returning only the rows that match a where clause. Rows
+ * are checked as the spliterator is traversed, so callers can stop at any point without paying
+ * for the rest of the source, and nothing is materialized along the way.
+ * <p>
+ * Splitting the spliterator splits the source; each part creates its own evaluation context the
+ * first time it is traversed, so the parts can be traversed by different threads (e.g., by a
+ * parallel stream). Errors evaluating the where clause are thrown as UncheckedSQLException.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+final class MatchingSpliterator<E>
+        implements Spliterator<E> {
+    // The filtered spliterator does not know how many rows it has
+    private static final int UNSIZED = ~(SIZED | SUBSIZED);
+
+    private final Spliterator<E> source;
+    private final RowMatcher<E> matcher;
+    private EvaluationContext context;
+    private boolean started;
+    private E current;
+    private final Consumer<E> capture = new Consumer<E>() {
+        @Override
+        public void accept(final E row) {
+            current = row;
+        }
+    };
+
+    /**
+     * Builds a spliterator
+     *
+     * @param source the rows to filter
+     * @param matcher checks rows against the where clause
+     */
+    MatchingSpliterator(final Spliterator<E> source, final RowMatcher<E> matcher) {
+        this.source = source;
+        this.matcher = matcher;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super E> action) {
+        while (source.tryAdvance(capture)) {
+            final E row = current;
+            current = null;
+            if (matches(row)) {
+                action.accept(row);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super E> action) {
+        source.forEachRemaining(new Consumer<E>() {
+            @Override
+            public void accept(final E row) {
+                if (matches(row))
+                    action.accept(row);
+            }
+        });
+    }
+
+    @Override
+    public Spliterator<E> trySplit() {
+        final Spliterator<E> split = source.trySplit();
+        return null == split ? null : new MatchingSpliterator<E>(split, matcher);
+    }
+
+    /**
+     * The size of the source, as an upper bound of how many rows match
+     */
+    @Override
+    public long estimateSize() {
+        return source.estimateSize();
+    }
+
+    @Override
+    public int characteristics() {
+        return source.characteristics() & UNSIZED;
+    }
+
+    @Override
+    public Comparator<? super E> getComparator() {
+        return source.getComparator();
+    }
+
+    private boolean matches(final E row) {
+        if (!started) {
+            context = matcher.newContext();
+            started = true;
+        }
+        try {
+            return matcher.matches(row, context);
+        } catch (final SQLException e) {
+            throw new UncheckedSQLException(e);
+        }
+    }
+}
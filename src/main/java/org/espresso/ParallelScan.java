@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso;
+
+import org.espresso.eval.EvaluationContext;
+import org.espresso.token.SqlSelect;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs a where clause over a source split in chunks, using the common fork/join pool if it has the
+ * requested parallelism, or a pool of its own for the duration of the scan otherwise. Each chunk is
+ * evaluated by a single thread into its own list, and the lists are concatenated once all chunks
+ * are done: in encounter order if requested, in completion order otherwise.
+ * <p>
+ * When the number of results is limited, no chunk looks for more matches than the limit, and when
+ * the order does not matter, chunks stop as soon as all of them together found enough matches.
+ * <p>
+ * Rows are checked against the where clause by a RowMatcher. Each chunk gets its own evaluation
+ * context, so interpreted where clauses can be scanned in parallel as well.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+final class ParallelScan<E> {
+    // Chunks smaller than this are not worth splitting further
+    private static final long MINIMUM_CHUNK = 1024;
+    // Split in a few more chunks than threads, so threads that finish early can steal work
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final RowMatcher<E> matcher;
+    private final int parallelism;
+    private final boolean preserveOrder;
+    private final int limit;
+    // Matches found by all chunks so far, only tracked when the order does not matter
+    private final AtomicInteger totalFound = new AtomicInteger();
+
+    /**
+     * Builds a scan
+     *
+     * @param matcher checks rows against the where clause
+     * @param parallelism how many threads to use, at least one
+     * @param preserveOrder whether the results should be in encounter order
+     * @param limit at most how many results to return, SqlSelect.NO_LIMIT for all of them
+     */
+    ParallelScan(final RowMatcher<E> matcher, final int parallelism, final boolean preserveOrder,
+            final int limit) {
+        if (1 > parallelism)
+            throw new IllegalArgumentException("ParallelScan: parallelism must be positive");
+        this.matcher = matcher;
+        this.parallelism = parallelism;
+        this.preserveOrder = preserveOrder;
+        this.limit = limit;
+    }
+
+    /**
+     * Runs the scan
+     *
+     * @param source the elements to check against the where clause
+     *
+     * @return the elements matching the where clause
+     *
+     * @throws SQLException if the where clause fails to evaluate
+     */
+    List<E> execute(final Spliterator<E> source)
+            throws SQLException {
+        final long size = source.estimateSize();
+        final long chunk = Math.max(MINIMUM_CHUNK,
+                Long.MAX_VALUE == size ? MINIMUM_CHUNK : size / (parallelism * CHUNKS_PER_THREAD));
+        final ConcurrentLinkedQueue<List<E>> completed = new ConcurrentLinkedQueue<List<E>>();
+        final Chunk root = new Chunk(source, chunk, completed);
+        final ForkJoinPool common = ForkJoinPool.commonPool();
+        final ForkJoinPool pool = parallelism == common.getParallelism() ? common : new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(root);
+        } catch (final RuntimeException e) {
+            // The pool may rethrow a copy of the exception, so look for the original cause
+            for (Throwable cause = e; null != cause; cause = cause.getCause())
+                if (cause instanceof SQLException)
+                    throw (SQLException) cause;
+            throw new SQLException("Error evaluating WHERE clause", e);
+        } finally {
+            // Only the common pool outlives the scan, so other levels of parallelism do not leak threads
+            if (common != pool)
+                pool.shutdown();
+        }
+        final ArrayList<E> results = new ArrayList<E>(root.matches);
+        if (preserveOrder)
+            root.collect(results);
+        else
+            for (final List<E> matches : completed)
+                results.addAll(matches);
+        return results.size() > limit ? new ArrayList<E>(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * A chunk of the source. Chunks larger than the threshold are split in two, the prefix and the
+     * rest; the others are scanned by the current thread.
+     */
+    private final class Chunk extends RecursiveAction {
+        private final Spliterator<E> source;
+        private final long threshold;
+        private final ConcurrentLinkedQueue<List<E>> completed;
+        private Chunk prefix;
+        private Chunk rest;
+        private List<E> results;
+        int matches;
+
+        Chunk(final Spliterator<E> source, final long threshold,
+                final ConcurrentLinkedQueue<List<E>> completed) {
+            this.source = source;
+            this.threshold = threshold;
+            this.completed = completed;
+        }
+
+        @Override
+        protected void compute() {
+            final Spliterator<E> split = source.estimateSize() > threshold ? source.trySplit() : null;
+            if (null != split) {
+                prefix = new Chunk(split, threshold, completed);
+                rest = new Chunk(source, threshold, completed);
+                invokeAll(prefix, rest);
+                matches = prefix.matches + rest.matches;
+                return;
+            }
+            final ArrayList<E> found = new ArrayList<E>();
+            final EvaluationContext context = matcher.newContext();
+            final Consumer<E> check = new Consumer<E>() {
+                @Override
+                public void accept(final E row) {
+                    try {
+                        if (matcher.matches(row, context)) {
+                            found.add(row);
+                            if (!preserveOrder && SqlSelect.NO_LIMIT != limit)
+                                totalFound.incrementAndGet();
+                        }
+                    } catch (final SQLException e) {
+                        throw new UncheckedSQLException(e);
+                    }
+                }
+            };
+            if (SqlSelect.NO_LIMIT == limit)
+                source.forEachRemaining(check);
+            else
+                while (found.size() < limit && (preserveOrder || totalFound.get() < limit))
+                    if (!source.tryAdvance(check))
+                        break;
+            results = found;
+            matches = found.size();
+            if (!preserveOrder)
+                completed.add(found);
+        }
+
+        /**
+         * Appends the matches of this chunk, in encounter order
+         */
+        void collect(final List<E> destination) {
+            if (null != results)
+                destination.addAll(results);
+            else {
+                prefix.collect(destination);
+                rest.collect(destination);
+            }
+        }
+    }
+}
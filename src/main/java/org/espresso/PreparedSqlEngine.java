@@ -0,0 +1,543 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso;
+
+import org.espresso.eval.EvaluationContext;
+import org.espresso.eval.Evaluator;
+import org.espresso.index.Indices;
+import org.espresso.token.SqlExpressionNode;
+import org.espresso.token.SqlParameter;
+import org.espresso.token.SqlSelect;
+import org.espresso.visitor.EvaluatorCache;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A SQL Engine for statements with bind variables, either positional (?) or named (:name). The
+ * statement is parsed once, and the values of the bind variables are supplied on every execution,
+ * as an array with one value per slot: positional bind variables take one slot each, in the order
+ * they show up, and each distinct name takes one slot the first time it shows up.
+ * <p>
+ * The where clause is compiled the first time it is executed, and the compiled code reads the
+ * values straight from the array, so running the statement again with different values costs a
+ * single scan. The compiled code depends on the types of the values (e.g., long or double), so
+ * the where clause is compiled once for each combination of types it is executed with. Numbers are
+ * bound as any of the boxed numeric types, dates as java.util.Date.
+ * <p>
+ * Where clauses that cannot be compiled are interpreted. The bound values are kept in an
+ * evaluation context created for each execution, so interpreted executions can run concurrently.
+ * <p>
+ * As with {@link SqlEngine}, which runs statements the same way (see SelectExecutor), the matching
+ * objects can be returned as a list, handed to a consumer as they are found, returned lazily as an
+ * iterator, spliterator or stream, or found by scanning in parallel; they can also be counted, and
+ * the scan stops as soon as the LIMIT of the statement, if any, is reached. Elements that the
+ * indices know to match exactly are returned without checking them, and elements the indices know
+ * to match some of the conjuncts of an AND where clause are only checked against the other ones.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class PreparedSqlEngine<E> {
+    private final Class<E> nodeType;
+    private final SqlSelect select;
+    private final int parameterCount;
+    private final Map<String, Integer> namedSlots = new HashMap<String, Integer>();
+    private final HashMap<String, FunctionExtension> functions;
+    // Empty for the combinations of types that could not be compiled, and are interpreted instead
+    private final Map<List<Object>, Optional<Evaluator>> evaluators =
+            new ConcurrentHashMap<List<Object>, Optional<Evaluator>>();
+    private final SelectExecutor<E> executor;
+
+    /**
+     * Constructs and initializes an engine,
+     *
+     * @param nodeType the node type to match, never missing
+     * @param selectStatement The select statement we want to run, with bind variables
+     * @param extensions Objects containing extension functions. Those should be annotated with the
+     * SqlExtension annotation.
+     *
+     * @throws SQLException if the SQL cannot be parsed, or the engine cannot be properly
+     * initialized
+     */
+    public PreparedSqlEngine(final Class<E> nodeType, final String selectStatement,
+            final Object... extensions)
+            throws SQLException {
+        this.nodeType = nodeType;
+        select = SqlEngine.parse(SqlEngine.terminate(selectStatement));
+        select.setFromAlias(nodeType.getName());
+        parameterCount = select.getParameterCount();
+        for (final SqlParameter parameter : select.getParameters())
+            if (null != parameter.getName())
+                namedSlots.put(parameter.getName(), parameter.getIndex());
+        functions = SqlEngine.buildFunctions(null == extensions ? new Object[0] : extensions);
+        executor = new SelectExecutor<E>(select,
+                SqlEngine.dateExtensionFor(null == extensions ? new Object[0] : extensions)) {
+            @Override
+            RowMatcher<E> matcherFor(final SqlExpressionNode<E> where, final Object[] values) {
+                return PreparedSqlEngine.this.matcherFor(where, values);
+            }
+        };
+    }
+
+    /**
+     * How many values must be supplied on every execution
+     *
+     * @return the number of slots
+     */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /**
+     * The slot used by a named bind variable
+     *
+     * @param name the name of the bind variable, without the colon
+     *
+     * @return the slot, starting at 0
+     *
+     * @throws SQLException if the statement has no such bind variable
+     */
+    public int getParameterIndex(final String name)
+            throws SQLException {
+        final Integer slot = namedSlots.get(name);
+        if (null == slot)
+            throw new SQLException("Statement has no bind variable named :" + name);
+        return slot;
+    }
+
+    /**
+     * Converts values keyed by name to the array of values expected by execute. Only valid for
+     * statements where all bind variables are named.
+     *
+     * @param values the value of each named bind variable, without the colon
+     *
+     * @return the values, one per slot
+     *
+     * @throws SQLException if a bind variable is missing a value, or a value has no bind variable
+     */
+    public Object[] parameters(final Map<String, ?> values)
+            throws SQLException {
+        if (namedSlots.size() != parameterCount)
+            throw new SQLException("Statement has positional bind variables");
+        final Object[] parameters = new Object[parameterCount];
+        for (final Map.Entry<String, ?> value : values.entrySet())
+            parameters[getParameterIndex(value.getKey())] = value.getValue();
+        for (final String name : namedSlots.keySet())
+            if (!values.containsKey(name))
+                throw new SQLException("No value supplied for bind variable :" + name);
+        return parameters;
+    }
+
+    /**
+     * Whether executions with the supplied values run compiled code, or interpret the where clause
+     *
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return true if the where clause is compiled for the types of the values
+     *
+     * @throws SQLException if the wrong number of values is supplied
+     */
+    public boolean isCompiled(final Object... parameters)
+            throws SQLException {
+        return null != evaluatorFor(select.getWhereClause(), check(parameters));
+    }
+
+    /**
+     * Runs the query over the supplied iterator, using the indices to reduce the universe that
+     * needs to be traversed whenever possible.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return a list with the elements matching the restriction
+     *
+     * @throws SQLException in case of any error
+     */
+    public List<E> execute(final Iterator<E> iterator, final Indices<E> indices, final Object... parameters)
+            throws SQLException {
+        return executor.execute(iterator, indices, check(parameters));
+    }
+
+    /**
+     * Runs the query over the supplied iterator, with no indices to support it. This will always
+     * translate to a full scan.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return a list with the elements matching the restriction
+     *
+     * @throws SQLException in case of any errors
+     */
+    public List<E> execute(final Iterator<E> iterator, final Object... parameters)
+            throws SQLException {
+        return executor.execute(iterator, check(parameters));
+    }
+
+    /**
+     * Runs the query over the supplied iterator, using the indices to reduce the universe that
+     * needs to be traversed whenever possible, and hands each matching element to the consumer
+     * as soon as it is found.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param consumer receives the elements matching the restriction: in iteration order if no
+     * index restricts the scan, in the order of the index buckets otherwise
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return how many elements matched the restriction
+     *
+     * @throws SQLException in case of any error
+     */
+    public int execute(final Iterator<E> iterator, final Indices<E> indices, final Consumer<? super E> consumer,
+            final Object... parameters)
+            throws SQLException {
+        return executor.execute(iterator, indices, consumer, check(parameters));
+    }
+
+    /**
+     * Runs the query over the supplied iterator, with no indices to support it, and hands each
+     * matching element to the consumer as soon as it is found. Nothing is materialized, and
+     * exceptions thrown by the consumer are propagated as is.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param consumer receives the elements matching the restriction, in iteration order, as no
+     * index is used
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return how many elements matched the restriction
+     *
+     * @throws SQLException in case of any errors
+     */
+    public int execute(final Iterator<E> iterator, final Consumer<? super E> consumer, final Object... parameters)
+            throws SQLException {
+        return executor.execute(iterator, consumer, check(parameters));
+    }
+
+    /**
+     * Whether the statement is a SELECT COUNT(*), i.e., callers should run count rather than
+     * execute
+     *
+     * @return true for SELECT COUNT(*) statements
+     */
+    public boolean isCount() {
+        return select.isCount();
+    }
+
+    /**
+     * Counts how many elements match the restriction, up to the limit of the statement, if any.
+     * The matching elements are not collected.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return the number of matching elements
+     *
+     * @throws SQLException in case of any errors
+     */
+    public int count(final Iterator<E> iterator, final Object... parameters)
+            throws SQLException {
+        return executor.count(iterator, check(parameters));
+    }
+
+    /**
+     * Counts how many elements match the restriction, up to the limit of the statement, if any,
+     * straight from the size of the buckets when an exact index can answer the where clause
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return the number of matching elements
+     *
+     * @throws SQLException in case of any errors
+     */
+    public int count(final Iterator<E> iterator, final Indices<E> indices, final Object... parameters)
+            throws SQLException {
+        return executor.count(iterator, indices, check(parameters));
+    }
+
+    /**
+     * Checks whether at least one element matches the restriction, stopping at the first one
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return true if any element matches
+     *
+     * @throws SQLException in case of any errors
+     */
+    public boolean exists(final Iterator<E> iterator, final Object... parameters)
+            throws SQLException {
+        return executor.exists(iterator, check(parameters));
+    }
+
+    /**
+     * Checks whether at least one element matches the restriction, using the indices to reduce the
+     * universe that needs to be traversed whenever possible
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return true if any element matches
+     *
+     * @throws SQLException in case of any errors
+     */
+    public boolean exists(final Iterator<E> iterator, final Indices<E> indices, final Object... parameters)
+            throws SQLException {
+        return executor.exists(iterator, indices, check(parameters));
+    }
+
+    /**
+     * Lazily runs the query over the supplied iterator: the where clause is only evaluated as the
+     * returned iterator is traversed. Errors found along the way are thrown as
+     * UncheckedSQLException.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return an iterator over the elements matching the restriction
+     *
+     * @throws SQLException if the wrong number of values is supplied
+     */
+    public Iterator<E> iterate(final Iterator<E> iterator, final Object... parameters)
+            throws SQLException {
+        return executor.iterate(iterator, check(parameters));
+    }
+
+    /**
+     * Lazily runs the query over the supplied iterator, using the indices to reduce the universe
+     * that needs to be traversed whenever possible.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return an iterator over the elements matching the restriction
+     *
+     * @throws SQLException if the wrong number of values is supplied, or the indices cannot be
+     * applied to the where clause
+     */
+    public Iterator<E> iterate(final Iterator<E> iterator, final Indices<E> indices, final Object... parameters)
+            throws SQLException {
+        return executor.iterate(iterator, indices, check(parameters));
+    }
+
+    /**
+     * Lazily runs the query over the supplied spliterator, as a sequential stream. Use
+     * {@link Stream#parallel()} to traverse it in parallel. Errors found along the way are thrown
+     * as UncheckedSQLException.
+     *
+     * @param source spliterator over the collection we want to restrict
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return a stream of the elements matching the restriction
+     *
+     * @throws SQLException if the wrong number of values is supplied
+     */
+    public Stream<E> stream(final Spliterator<E> source, final Object... parameters)
+            throws SQLException {
+        return executor.stream(source, check(parameters));
+    }
+
+    /**
+     * Lazily runs the query over the supplied collection, using the indices to reduce the
+     * universe that needs to be traversed whenever possible.
+     *
+     * @param source the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return a stream of the elements matching the restriction
+     *
+     * @throws SQLException if the wrong number of values is supplied, or the indices cannot be
+     * applied to the where clause
+     */
+    public Stream<E> stream(final Collection<E> source, final Indices<E> indices, final Object... parameters)
+            throws SQLException {
+        return executor.stream(source, indices, check(parameters));
+    }
+
+    /**
+     * Lazily runs the query over the supplied spliterator. The result splits whenever the source
+     * does, so it can be traversed in parallel.
+     *
+     * @param source spliterator over the collection we want to restrict
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return a spliterator over the elements matching the restriction
+     *
+     * @throws SQLException if the wrong number of values is supplied
+     */
+    public Spliterator<E> spliterator(final Spliterator<E> source, final Object... parameters)
+            throws SQLException {
+        return executor.spliterator(source, check(parameters));
+    }
+
+    /**
+     * Runs the query over the supplied spliterator using up to parallelism threads.
+     *
+     * @param source spliterator over the collection we want to restrict
+     * @param parallelism how many threads to use, at least one
+     * @param preserveOrder whether the matching elements should be returned in encounter order;
+     * with a LIMIT, whether they should be the first ones in encounter order
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return a list with the elements matching the restriction
+     *
+     * @throws SQLException in case of any errors
+     */
+    public List<E> executeParallel(final Spliterator<E> source, final int parallelism, final boolean preserveOrder,
+            final Object... parameters)
+            throws SQLException {
+        return executor.executeParallel(source, parallelism, preserveOrder, check(parameters));
+    }
+
+    /**
+     * Runs the query over the supplied list using up to parallelism threads, using the indices to
+     * reduce the universe that needs to be traversed whenever possible. When the indices help, the
+     * buckets of the restricted index are traversed in parallel.
+     *
+     * @param source the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param parallelism how many threads to use, at least one
+     * @param preserveOrder whether the matching elements should be returned in encounter order
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return a list with the elements matching the restriction
+     *
+     * @throws SQLException in case of any errors
+     */
+    public List<E> executeParallel(final List<E> source, final Indices<E> indices, final int parallelism,
+            final boolean preserveOrder, final Object... parameters)
+            throws SQLException {
+        return executor.executeParallel(source, indices, parallelism, preserveOrder, check(parameters));
+    }
+
+    /**
+     * Checks whether the supplied element matches the restriction
+     *
+     * @param element the element to check
+     * @param parameters the values of the bind variables, one per slot
+     *
+     * @return the element, or null if the element does not match the restriction
+     *
+     * @throws SQLException in case of errors
+     */
+    public E against(final E element, final Object... parameters)
+            throws SQLException {
+        final Evaluator evaluator = evaluatorFor(select.getWhereClause(), check(parameters));
+        if (null != evaluator) {
+            try {
+                return evaluator.matches(element, parameters) ? element : null;
+            } catch (final RuntimeException e) {
+                throw new SQLException("Error evaluating compiled WHERE clause", e);
+            }
+        }
+        return interpret(select.getWhereClause(), element, newContext(parameters)) ? element : null;
+    }
+
+    private Object[] check(final Object[] parameters)
+            throws SQLException {
+        final int supplied = null == parameters ? 0 : parameters.length;
+        if (supplied != parameterCount)
+            throw new SQLException("Statement expects " + parameterCount + " bind values, got " + supplied);
+        return null == parameters ? new Object[0] : parameters;
+    }
+
+    /**
+     * Returns the compiled where clause (or what is left of it) for the types of the supplied
+     * values, compiling it the first time those types are seen; null if it cannot be compiled and
+     * has to be interpreted
+     */
+    private Evaluator evaluatorFor(final SqlExpressionNode<E> where, final Object[] parameters) {
+        final Object[] key = new Object[parameters.length + 1];
+        final Class<?>[] types = new Class<?>[parameters.length];
+        key[0] = where;
+        for (int i = 0; i < types.length; i++)
+            key[i + 1] = types[i] = SqlParameter.typeOf(parameters[i]);
+        Optional<Evaluator> evaluator = evaluators.get(Arrays.asList(key));
+        if (null == evaluator) {
+            try {
+                evaluator = Optional.of(EvaluatorCache.shared().get(nodeType, where, functions, types));
+            } catch (final SQLException e) {
+                // Any genuine error in the where clause is reported by the interpreter
+                evaluator = Optional.empty();
+            }
+            evaluators.put(Arrays.asList(key), evaluator);
+        }
+        return evaluator.orElse(null);
+    }
+
+    /**
+     * Checks rows against the where clause (or what is left of it) with the supplied values,
+     * compiled if possible
+     */
+    private RowMatcher<E> matcherFor(final SqlExpressionNode<E> where, final Object[] values) {
+        final Evaluator evaluator = evaluatorFor(where, values);
+        return new RowMatcher<E>() {
+            @Override
+            EvaluationContext newContext() {
+                return null == evaluator ? PreparedSqlEngine.this.newContext(values) : null;
+            }
+
+            @Override
+            boolean matches(final E row, final EvaluationContext context)
+                    throws SQLException {
+                if (null == evaluator)
+                    return interpret(where, row, context);
+                try {
+                    return evaluator.matches(row, values);
+                } catch (final RuntimeException e) {
+                    throw new SQLException("Error evaluating compiled WHERE clause", e);
+                }
+            }
+
+            @Override
+            int scan(final Iterator<E> iterator, final Consumer<? super E> consumer, final int limit)
+                    throws SQLException {
+                if (null == evaluator)
+                    return super.scan(iterator, consumer, limit);
+                return evaluator.scan(iterator, values, (Consumer<Object>) consumer, limit);
+            }
+        };
+    }
+
+    private EvaluationContext newContext(final Object[] parameters) {
+        return new EvaluationContext(functions, select.getRegisterCount(), parameters);
+    }
+
+    private boolean interpret(final SqlExpressionNode<E> where, final E row, final EvaluationContext context)
+            throws SQLException {
+        try {
+            return (Boolean) where.eval(row, context);
+        } catch (final ClassCastException e) {
+            throw new SQLException("WHERE clause did not evaluate to boolean", e);
+        }
+    }
+}
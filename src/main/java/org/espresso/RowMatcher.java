@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso;
+
+import org.espresso.eval.EvaluationContext;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Checks rows against a where clause, be it compiled or interpreted. Interpreted where clauses
+ * keep intermediate values in an evaluation context, which cannot be shared across threads, so
+ * whoever scans rows asks for a context of its own and passes it along with every row.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+abstract class RowMatcher<E> {
+    /**
+     * Creates the context used by a single thread
+     *
+     * @return a new context, or null if the where clause does not need one
+     */
+    abstract EvaluationContext newContext();
+
+    /**
+     * Checks a row against the where clause
+     *
+     * @param row the row to check
+     * @param context a context created by newContext, owned by the calling thread
+     *
+     * @return whether the row matches
+     *
+     * @throws SQLException if the where clause fails to evaluate
+     */
+    abstract boolean matches(final E row, final EvaluationContext context)
+            throws SQLException;
+
+    /**
+     * Checks rows until the iterator is exhausted or enough rows matched, handing each matching
+     * row to the consumer. Compiled where clauses override this with a loop of their own (see
+     * Evaluator.scan).
+     *
+     * @param iterator iterator over the rows to check
+     * @param consumer receives the matching rows, null if they only need to be counted
+     * @param limit at most how many rows to match
+     *
+     * @return how many rows matched
+     *
+     * @throws SQLException if the where clause fails to evaluate
+     */
+    int scan(final Iterator<E> iterator, final Consumer<? super E> consumer, final int limit)
+            throws SQLException {
+        final EvaluationContext context = newContext();
+        int matches = 0;
+        while (matches < limit && iterator.hasNext()) {
+            final E row = iterator.next();
+            if (matches(row, context)) {
+                if (null != consumer)
+                    consumer.accept(row);
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso;
+
+import org.espresso.extension.DateExtension;
+import org.espresso.index.Index;
+import org.espresso.index.IndexRestrictor;
+import org.espresso.index.Indices;
+import org.espresso.token.SqlExpressionNode;
+import org.espresso.token.SqlSelect;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a select statement over a collection, with or without indices, for the values of its bind
+ * variables. This is what SqlEngine and PreparedSqlEngine have in common: using the indices to
+ * restrict the scan, returning the elements the indices know to match exactly without checking
+ * them, checking the others against what is left of the where clause, stopping at the LIMIT, and
+ * handing the matches over as a list, to a consumer, lazily or in parallel. How rows are checked
+ * against the where clause, compiled or interpreted, is up to the engine (see matcherFor).
+ * <p>
+ * Statements without bind variables are run with NO_PARAMETERS.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+abstract class SelectExecutor<E> {
+    static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final SqlSelect select;
+    private final DateExtension dateExtension;
+    private final ConcurrentMap<List<SqlExpressionNode>, SqlExpressionNode<E>> residuals =
+            new ConcurrentHashMap<List<SqlExpressionNode>, SqlExpressionNode<E>>();
+
+    /**
+     * Builds an executor
+     *
+     * @param select the parsed statement
+     * @param dateExtension converts date strings to dates, for the indices
+     */
+    SelectExecutor(final SqlSelect select, final DateExtension dateExtension) {
+        this.select = select;
+        this.dateExtension = dateExtension;
+    }
+
+    /**
+     * Checks rows against the where clause of the statement, or what is left of it once the
+     * indices answered some of its conjuncts. What is left for the same conjuncts is always the
+     * same instance, so engines can keep what they built for each one.
+     *
+     * @param where the where clause, or what is left of it
+     * @param values the values of the bind variables, one per slot
+     *
+     * @return the matcher
+     */
+    abstract RowMatcher<E> matcherFor(final SqlExpressionNode<E> where, final Object[] values);
+
+    List<E> execute(final Iterator<E> iterator, final Object[] values)
+            throws SQLException {
+        final ArrayList<E> results = new ArrayList<E>();
+        execute(iterator, collector(results), values);
+        return results;
+    }
+
+    List<E> execute(final Iterator<E> iterator, final Indices<E> indices, final Object[] values)
+            throws SQLException {
+        final ArrayList<E> results = new ArrayList<E>();
+        execute(iterator, indices, collector(results), values);
+        return results;
+    }
+
+    int execute(final Iterator<E> iterator, final Consumer<? super E> consumer, final Object[] values)
+            throws SQLException {
+        return matcherFor(select.getWhereClause(), values).scan(iterator, consumer, select.getLimit());
+    }
+
+    int execute(final Iterator<E> iterator, final Indices<E> indices, final Consumer<? super E> consumer,
+            final Object[] values)
+            throws SQLException {
+        return scan(iterator, indices, consumer, select.getLimit(), values);
+    }
+
+    int count(final Iterator<E> iterator, final Object[] values)
+            throws SQLException {
+        return execute(iterator, (Consumer<? super E>) null, values);
+    }
+
+    /**
+     * Counts straight from the size of the buckets when an exact index can answer the where clause
+     */
+    int count(final Iterator<E> iterator, final Indices<E> indices, final Object[] values)
+            throws SQLException {
+        final IndexRestrictor<E> restrictor = new IndexRestrictor<E>(dateExtension, indices, values);
+        final int count = restrictor.count(select);
+        if (0 <= count)
+            return Math.min(count, select.getLimit());
+        final Iterator<E> restricted = restrictor.restrict(select, iterator);
+        return matcherFor(restrictor, values).scan(restricted, null, select.getLimit());
+    }
+
+    boolean exists(final Iterator<E> iterator, final Object[] values)
+            throws SQLException {
+        return 0 < matcherFor(select.getWhereClause(), values).scan(iterator, null, Math.min(1, select.getLimit()));
+    }
+
+    boolean exists(final Iterator<E> iterator, final Indices<E> indices, final Object[] values)
+            throws SQLException {
+        return 0 < scan(iterator, indices, null, Math.min(1, select.getLimit()), values);
+    }
+
+    Iterator<E> iterate(final Iterator<E> iterator, final Object[] values) {
+        return iterate(iterator, matcherFor(select.getWhereClause(), values));
+    }
+
+    Iterator<E> iterate(final Iterator<E> iterator, final Indices<E> indices, final Object[] values)
+            throws SQLException {
+        final IndexRestrictor<E> restrictor = new IndexRestrictor<E>(dateExtension, indices, values);
+        final Index<E, ?> exact = restrictor.restrictExactly(select);
+        if (null != exact)
+            return limit(StreamSupport.stream(exact.spliterator(), false), select.getLimit()).iterator();
+        final Iterator<E> restricted = restrictor.restrict(select, iterator);
+        return iterate(restricted, matcherFor(restrictor, values));
+    }
+
+    Spliterator<E> spliterator(final Spliterator<E> source, final Object[] values) {
+        final RowMatcher<E> matcher = matcherFor(select.getWhereClause(), values);
+        if (SqlSelect.NO_LIMIT == select.getLimit())
+            return new MatchingSpliterator<E>(source, matcher);
+        return stream(source, matcher).spliterator();
+    }
+
+    Stream<E> stream(final Spliterator<E> source, final Object[] values) {
+        return stream(source, matcherFor(select.getWhereClause(), values));
+    }
+
+    Stream<E> stream(final Collection<E> source, final Indices<E> indices, final Object[] values)
+            throws SQLException {
+        final IndexRestrictor<E> restrictor = new IndexRestrictor<E>(dateExtension, indices, values);
+        final Index<E, ?> exact = restrictor.restrictExactly(select);
+        if (null != exact)
+            return limit(StreamSupport.stream(exact.spliterator(), false), select.getLimit());
+        final Index<E, ?> restricted = restrictor.restrict(select);
+        return stream(null == restricted ? source.spliterator() : restricted.spliterator(),
+                matcherFor(restrictor, values));
+    }
+
+    List<E> executeParallel(final Spliterator<E> source, final int parallelism, final boolean preserveOrder,
+            final Object[] values)
+            throws SQLException {
+        return new ParallelScan<E>(matcherFor(select.getWhereClause(), values), parallelism, preserveOrder,
+                select.getLimit()).execute(source);
+    }
+
+    /**
+     * When the indices help, the buckets of the restricted index are traversed in parallel
+     */
+    List<E> executeParallel(final List<E> source, final Indices<E> indices, final int parallelism,
+            final boolean preserveOrder, final Object[] values)
+            throws SQLException {
+        final IndexRestrictor<E> restrictor = new IndexRestrictor<E>(dateExtension, indices, values);
+        final Index<E, ?> exact = restrictor.restrictExactly(select);
+        if (null != exact) {
+            final ArrayList<E> results = new ArrayList<E>();
+            take(exact.iterator(), collector(results), select.getLimit());
+            return results;
+        }
+        final Index<E, ?> restricted = restrictor.restrict(select);
+        return new ParallelScan<E>(matcherFor(restrictor, values), parallelism, preserveOrder, select.getLimit())
+                .execute(null == restricted ? source.spliterator() : restricted.spliterator());
+    }
+
+    /**
+     * Scans what the indices could not rule out, up to the limit, unless they know exactly which
+     * elements match
+     */
+    private int scan(final Iterator<E> iterator, final Indices<E> indices, final Consumer<? super E> consumer,
+            final int limit, final Object[] values)
+            throws SQLException {
+        final IndexRestrictor<E> restrictor = new IndexRestrictor<E>(dateExtension, indices, values);
+        final Index<E, ?> exact = restrictor.restrictExactly(select);
+        if (null != exact)
+            return take(exact.iterator(), consumer, limit);
+        final Iterator<E> restricted = restrictor.restrict(select, iterator);
+        return matcherFor(restrictor, values).scan(restricted, consumer, limit);
+    }
+
+    private Iterator<E> iterate(final Iterator<E> iterator, final RowMatcher<E> matcher) {
+        return stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), matcher).iterator();
+    }
+
+    private Stream<E> stream(final Spliterator<E> source, final RowMatcher<E> matcher) {
+        return limit(StreamSupport.stream(new MatchingSpliterator<E>(source, matcher), false), select.getLimit());
+    }
+
+    /**
+     * Checks the elements of a restriction against what is left of the where clause once the
+     * conjuncts the restriction answered are taken out (see IndexRestrictor.getAnswered). What is
+     * left is kept, as a where clause only has so many combinations of conjuncts.
+     *
+     * @param restrictor the restrictor, after the restriction
+     * @param values the values of the bind variables, one per slot
+     *
+     * @return the matcher
+     */
+    private RowMatcher<E> matcherFor(final IndexRestrictor<E> restrictor, final Object[] values) {
+        final List<SqlExpressionNode> answered = restrictor.getAnswered();
+        if (answered.isEmpty())
+            return matcherFor(select.getWhereClause(), values);
+        SqlExpressionNode<E> residual = residuals.get(answered);
+        if (null == residual) {
+            residual = IndexRestrictor.residual(select.getWhereClause(), answered);
+            final SqlExpressionNode<E> existing =
+                    residuals.putIfAbsent(new ArrayList<SqlExpressionNode>(answered), residual);
+            if (null != existing)
+                residual = existing;
+        }
+        return matcherFor(residual, values);
+    }
+
+    /**
+     * Hands elements known to match the where clause to the consumer, up to the limit
+     *
+     * @param matches the matching elements
+     * @param consumer receives the elements, null if they only need to be counted
+     * @param limit at most how many elements to take
+     *
+     * @return how many elements were taken
+     */
+    private static <E> int take(final Iterator<E> matches, final Consumer<? super E> consumer, final int limit) {
+        int taken = 0;
+        while (taken < limit && matches.hasNext()) {
+            final E row = matches.next();
+            if (null != consumer)
+                consumer.accept(row);
+            taken++;
+        }
+        return taken;
+    }
+
+    private static <E> Stream<E> limit(final Stream<E> matches, final int limit) {
+        return SqlSelect.NO_LIMIT == limit ? matches : matches.limit(limit);
+    }
+
+    private static <E> Consumer<E> collector(final List<E> results) {
+        return new Consumer<E>() {
+            @Override
+            public void accept(final E row) {
+                results.add(row);
+            }
+        };
+    }
+}
@@ -15,22 +15,41 @@
  */
 package org.espresso;
 
+import org.espresso.eval.EvaluationContext;
+import org.espresso.eval.Evaluator;
 import org.espresso.extension.DateExtension;
 import org.espresso.extension.NotExtension;
 import org.espresso.extension.SqlExtension;
 import org.espresso.extension.StandardDateExtension;
 import org.espresso.index.IndexRestrictor;
 import org.espresso.index.Indices;
+import org.espresso.token.SqlExpressionNode;
 import org.espresso.token.SqlSelect;
 import org.espresso.token.SqlStatement;
+import org.espresso.visitor.CompilerVisitor;
+import org.espresso.visitor.EvaluatorCache;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.espresso.SelectExecutor.NO_PARAMETERS;
 
 /**
  * This class encapsulates a SQL Engine. It supports parsing the tree and converting it
@@ -38,16 +57,58 @@ import java.util.List;
  * the objects matching the tree are returned as a list. The engine also supports the
  * concept of extensions - those are objects with annotated methods that can be referred
  * to by the SQL code and called as part of the evaluation process.
+ * <p>
+ * Besides returning the matching objects as a list, the engine can hand them to a consumer as
+ * they are found, or return them lazily as an iterator, spliterator or stream. The lazy forms only
+ * evaluate the where clause as the result is traversed, so callers can stop early or page through
+ * the matches without materializing them; errors found along the way are thrown as
+ * {@link UncheckedSQLException}.
+ * <p>
+ * A statement with a LIMIT stops scanning as soon as it found enough matches. The engine can also
+ * count the matches, for SELECT COUNT(*) statements, or check whether there is at least one,
+ * without collecting them; counts over an indexed column may come straight from the index.
+ * Whenever the indices tell exactly which elements match the where clause (see
+ * {@link org.espresso.index.ExactIndex}), those elements are returned without checking them; when
+ * they only tell which elements match some of the conjuncts of an AND where clause, the elements
+ * are only checked against the other conjuncts (see {@link IndexRestrictor#getAnswered()}).
+ * <p>
+ * Whenever possible, the where clause is compiled to bytecode (see {@link CompilerVisitor}) and
+ * the compiled version is used to evaluate the rows. Compiling costs far more than checking a few
+ * rows, though, so the engine starts by evaluating the where clause by traversing the tree, and
+ * only compiles it, in the background, once it has checked enough rows (see
+ * {@link #setCompileThreshold(long)}); the compiled version takes over as soon as it is ready.
+ * Where clauses that cannot be compiled, e.g., because the row type or an extension is not
+ * public, are always evaluated by traversing the tree. The
+ * compiled version also comes with its own scan loop, so sequential scans do not call every
+ * compiled where clause from the same, shared, call site.
+ * Compiled where clauses are shared across engines through {@link EvaluatorCache#shared()}, so
+ * running the same query over and over again does not generate new classes, and an engine whose
+ * where clause was already compiled uses the compiled version from the start.
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
 public class SqlEngine<E> {
+    public static final long DEFAULT_COMPILE_THRESHOLD = Long.getLong("org.espresso.compileThreshold", 10000);
+
     private static final NotExtension NOT = new NotExtension();
     private static final DateExtension DATE_EXTENSION = new StandardDateExtension();
 
+    private final Class<E> nodeType;
     private final SqlSelect select;
     private HashMap<String, FunctionExtension> functions;
     private DateExtension dateExtension;
+    private volatile long compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+    private final ThreadLocal<EvaluationContext> contexts = new ThreadLocal<EvaluationContext>() {
+        @Override
+        protected EvaluationContext initialValue() {
+            return newContext();
+        }
+    };
+    private final TieredMatcher matcher;
+    // What is left of the where clause once the indices answered some of its conjuncts
+    private final Map<SqlExpressionNode<E>, TieredMatcher> residuals =
+            new ConcurrentHashMap<SqlExpressionNode<E>, TieredMatcher>();
+    private final SelectExecutor<E> executor;
 
     /**
      * Constructs and initializes an engine,
@@ -63,11 +124,54 @@ public class SqlEngine<E> {
     public SqlEngine(final Class<E> nodeType, final String selectStatement,
             final Object... extensions)
             throws SQLException {
-        Class<E> nodeType1 = nodeType;
+        this.nodeType = nodeType;
         select = parse(terminate(selectStatement));
+        if (0 != select.getParameterCount())
+            throw new SQLException("Statement has bind variables, use PreparedSqlEngine to run it");
         select.setFromAlias(nodeType.getName());
         processExtensions(extensions);
+        matcher = new TieredMatcher(select.getWhereClause());
+        executor = new SelectExecutor<E>(select, dateExtension) {
+            @Override
+            RowMatcher<E> matcherFor(final SqlExpressionNode<E> where, final Object[] values) {
+                return SqlEngine.this.matcherFor(where);
+            }
+        };
+    }
+
+    /**
+     * Whether the where clause is compiled to bytecode, or is evaluated by traversing the tree,
+     * either because it was not compiled yet or because it cannot be compiled.
+     *
+     * @return true if the where clause is compiled
+     */
+    public boolean isCompiled() {
+        return null != matcher.evaluator;
+    }
+
+    /**
+     * Compiles the where clause right away, in the calling thread, rather than waiting for it to
+     * check enough rows
+     *
+     * @return true if the where clause is compiled, false if it cannot be compiled
+     */
+    public boolean compile() {
+        return matcher.compile();
+    }
 
+    /**
+     * Sets how many rows the engine checks by traversing the where clause before compiling it in
+     * the background. This also applies to what is left of the where clause once the indices
+     * answered some of its conjuncts, which is compiled separately. Defaults to
+     * DEFAULT_COMPILE_THRESHOLD, which can be set with the org.espresso.compileThreshold system
+     * property.
+     *
+     * @param rows how many rows to check before compiling, 0 to compile on the first row
+     */
+    public void setCompileThreshold(final long rows) {
+        if (0 > rows)
+            throw new IllegalArgumentException("SqlEngine: compile threshold cannot be negative");
+        compileThreshold = rows;
     }
 
     /**
@@ -83,8 +187,7 @@ public class SqlEngine<E> {
      */
     public List<E> execute(final Iterator<E> iterator, final Indices<E> indices)
             throws SQLException {
-        final IndexRestrictor<E> restrictor = new IndexRestrictor<E>(dateExtension, indices);
-        return execute(restrictor.restrict(select, iterator));
+        return executor.execute(iterator, indices, NO_PARAMETERS);
     }
 
     /**
@@ -99,13 +202,240 @@ public class SqlEngine<E> {
      */
     public List<E> execute(final Iterator<E> iterator)
             throws SQLException {
-        final ArrayList<E> results = new ArrayList<E>();
-        while (iterator.hasNext()) {
-            final E row = against(iterator.next());
-            if (null != row)
-                results.add(row);
-        }
-        return results;
+        return executor.execute(iterator, NO_PARAMETERS);
+    }
+
+    /**
+     * Runs the query over the supplied iterator, using the indices to reduce the universe that
+     * needs to be traversed whenever possible, and hands each matching element to the consumer
+     * as soon as it is found.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param consumer receives the elements matching the restriction: in iteration order if no
+     * index restricts the scan, in the order of the index buckets otherwise
+     *
+     * @return how many elements matched the restriction
+     *
+     * @throws SQLException in case of any error
+     */
+    public int execute(final Iterator<E> iterator, final Indices<E> indices, final Consumer<? super E> consumer)
+            throws SQLException {
+        return executor.execute(iterator, indices, consumer, NO_PARAMETERS);
+    }
+
+    /**
+     * Runs the query over the supplied iterator, with no indices to support it, and hands each
+     * matching element to the consumer as soon as it is found. Nothing is materialized, and
+     * exceptions thrown by the consumer are propagated as is.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param consumer receives the elements matching the restriction, in iteration order, as no
+     * index is used
+     *
+     * @return how many elements matched the restriction
+     *
+     * @throws SQLException in case of any errors
+     */
+    public int execute(final Iterator<E> iterator, final Consumer<? super E> consumer)
+            throws SQLException {
+        return executor.execute(iterator, consumer, NO_PARAMETERS);
+    }
+
+    /**
+     * Whether the statement is a SELECT COUNT(*), i.e., callers should run count rather than
+     * execute. Any statement can be counted, and any statement can be executed, though.
+     *
+     * @return true for SELECT COUNT(*) statements
+     */
+    public boolean isCount() {
+        return select.isCount();
+    }
+
+    /**
+     * Counts how many elements match the restriction, up to the limit of the statement, if any.
+     * The matching elements are not collected.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     *
+     * @return the number of matching elements
+     *
+     * @throws SQLException in case of any errors
+     */
+    public int count(final Iterator<E> iterator)
+            throws SQLException {
+        return executor.count(iterator, NO_PARAMETERS);
+    }
+
+    /**
+     * Counts how many elements match the restriction, up to the limit of the statement, if any.
+     * If the where clause is a single equality restriction that an exact index can answer, the
+     * count comes from the size of the buckets and the collection is not traversed at all.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     *
+     * @return the number of matching elements
+     *
+     * @throws SQLException in case of any errors
+     */
+    public int count(final Iterator<E> iterator, final Indices<E> indices)
+            throws SQLException {
+        return executor.count(iterator, indices, NO_PARAMETERS);
+    }
+
+    /**
+     * Checks whether at least one element matches the restriction, stopping at the first one
+     *
+     * @param iterator iterator over the collection we want to restrict
+     *
+     * @return true if any element matches
+     *
+     * @throws SQLException in case of any errors
+     */
+    public boolean exists(final Iterator<E> iterator)
+            throws SQLException {
+        return executor.exists(iterator, NO_PARAMETERS);
+    }
+
+    /**
+     * Checks whether at least one element matches the restriction, using the indices to reduce the
+     * universe that needs to be traversed whenever possible
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     *
+     * @return true if any element matches
+     *
+     * @throws SQLException in case of any errors
+     */
+    public boolean exists(final Iterator<E> iterator, final Indices<E> indices)
+            throws SQLException {
+        return executor.exists(iterator, indices, NO_PARAMETERS);
+    }
+
+    /**
+     * Lazily runs the query over the supplied iterator: the where clause is only evaluated as the
+     * returned iterator is traversed.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     *
+     * @return an iterator over the elements matching the restriction
+     */
+    public Iterator<E> iterate(final Iterator<E> iterator) {
+        return executor.iterate(iterator, NO_PARAMETERS);
+    }
+
+    /**
+     * Lazily runs the query over the supplied iterator, using the indices to reduce the universe
+     * that needs to be traversed whenever possible.
+     *
+     * @param iterator iterator over the collection we want to restrict
+     * @param indices the cache indices, never missing
+     *
+     * @return an iterator over the elements matching the restriction
+     *
+     * @throws SQLException if the indices cannot be applied to the where clause
+     */
+    public Iterator<E> iterate(final Iterator<E> iterator, final Indices<E> indices)
+            throws SQLException {
+        return executor.iterate(iterator, indices, NO_PARAMETERS);
+    }
+
+    /**
+     * Lazily runs the query over the supplied spliterator. The result splits whenever the source
+     * does, so it can be traversed in parallel.
+     *
+     * @param source spliterator over the collection we want to restrict
+     *
+     * @return a spliterator over the elements matching the restriction
+     */
+    public Spliterator<E> spliterator(final Spliterator<E> source) {
+        return executor.spliterator(source, NO_PARAMETERS);
+    }
+
+    /**
+     * Lazily runs the query over the supplied spliterator, as a sequential stream. Use
+     * {@link Stream#parallel()} to traverse it in parallel.
+     *
+     * @param source spliterator over the collection we want to restrict
+     *
+     * @return a stream of the elements matching the restriction
+     */
+    public Stream<E> stream(final Spliterator<E> source) {
+        return executor.stream(source, NO_PARAMETERS);
+    }
+
+    /**
+     * Lazily runs the query over the supplied collection, using the indices to reduce the
+     * universe that needs to be traversed whenever possible.
+     *
+     * @param source the collection we want to restrict
+     * @param indices the cache indices, never missing
+     *
+     * @return a stream of the elements matching the restriction
+     *
+     * @throws SQLException if the indices cannot be applied to the where clause
+     */
+    public Stream<E> stream(final Collection<E> source, final Indices<E> indices)
+            throws SQLException {
+        return executor.stream(source, indices, NO_PARAMETERS);
+    }
+
+    /**
+     * Runs the query over the supplied list using up to parallelism threads. The list is split in
+     * chunks that are evaluated independently, so it should support efficient splitting (e.g., an
+     * ArrayList).
+     *
+     * @param source the collection we want to restrict
+     * @param parallelism how many threads to use, at least one
+     * @param preserveOrder whether the matching elements should be returned in the list order
+     *
+     * @return a list with the elements matching the restriction
+     *
+     * @throws SQLException in case of any errors
+     */
+    public List<E> executeParallel(final List<E> source, final int parallelism, final boolean preserveOrder)
+            throws SQLException {
+        return executeParallel(source.spliterator(), parallelism, preserveOrder);
+    }
+
+    /**
+     * Runs the query over the supplied spliterator using up to parallelism threads.
+     *
+     * @param source spliterator over the collection we want to restrict
+     * @param parallelism how many threads to use, at least one
+     * @param preserveOrder whether the matching elements should be returned in encounter order;
+     * with a LIMIT, whether they should be the first ones in encounter order
+     *
+     * @return a list with the elements matching the restriction
+     *
+     * @throws SQLException in case of any errors
+     */
+    public List<E> executeParallel(final Spliterator<E> source, final int parallelism,
+            final boolean preserveOrder)
+            throws SQLException {
+        return executor.executeParallel(source, parallelism, preserveOrder, NO_PARAMETERS);
+    }
+
+    /**
+     * Runs the query over the supplied list using up to parallelism threads, using the indices to
+     * reduce the universe that needs to be traversed whenever possible. When the indices help, the
+     * buckets of the restricted index are traversed in parallel.
+     *
+     * @param source the collection we want to restrict
+     * @param indices the cache indices, never missing
+     * @param parallelism how many threads to use, at least one
+     * @param preserveOrder whether the matching elements should be returned in encounter order
+     *
+     * @return a list with the elements matching the restriction
+     *
+     * @throws SQLException in case of any errors
+     */
+    public List<E> executeParallel(final List<E> source, final Indices<E> indices, final int parallelism,
+            final boolean preserveOrder)
+            throws SQLException {
+        return executor.executeParallel(source, indices, parallelism, preserveOrder, NO_PARAMETERS);
     }
 
     /**
@@ -119,16 +449,171 @@ public class SqlEngine<E> {
      */
     public E against(final E element)
             throws SQLException {
+        return matcher.matches(element, contexts.get()) ? element : null;
+    }
+
+    /**
+     * Evaluates the where clause by traversing the tree
+     *
+     * @param where the where clause, or what is left of it
+     * @param row the element to check
+     * @param context the evaluation context, owned by the calling thread
+     *
+     * @return whether the element matches the restriction
+     *
+     * @throws SQLException in case of errors
+     */
+    private boolean interpret(final SqlExpressionNode<E> where, final E row, final EvaluationContext context)
+            throws SQLException {
         try {
-            if ((Boolean) select.getWhereClause().eval(element, functions))
-                return element;
-            return null;
+            return (Boolean) where.eval(row, context);
         } catch (final ClassCastException e) {
             throw new SQLException("WHERE clause did not evaluate to boolean", e);
         }
     }
 
-    private static SqlSelect parse(final String selectStatement)
+    /**
+     * Checks rows against the where clause, or what is left of it once the indices answered some
+     * of its conjuncts. Each of those is compiled separately, once it checked enough rows.
+     *
+     * @param where the where clause, or what is left of it
+     *
+     * @return the matcher
+     */
+    private RowMatcher<E> matcherFor(final SqlExpressionNode<E> where) {
+        if (select.getWhereClause() == where)
+            return matcher;
+        TieredMatcher residual = residuals.get(where);
+        if (null == residual) {
+            residual = new TieredMatcher(where);
+            residuals.put(where, residual);
+        }
+        return residual;
+    }
+
+    /**
+     * Creates a context to interpret the where clause. Each thread needs its own.
+     *
+     * @return a new context
+     */
+    private EvaluationContext newContext() {
+        return new EvaluationContext(functions, select.getRegisterCount());
+    }
+
+    /**
+     * Compiles the where clause. If it cannot be compiled, returns null so the engine falls back
+     * to evaluating the tree - any genuine error in the where clause will then be reported when
+     * the query is executed.
+     *
+     * @param where the where clause, or what is left of it
+     *
+     * @return the compiled where clause, or null if it could not be compiled
+     */
+    private Evaluator compile(final SqlExpressionNode<E> where) {
+        try {
+            return EvaluatorCache.shared().get(nodeType, where, functions());
+        } catch (final SQLException e) {
+            return null;
+        }
+    }
+
+    private Map<String, FunctionExtension> functions() {
+        return null == functions ? Collections.<String, FunctionExtension>emptyMap() : functions;
+    }
+
+    /**
+     * Checks rows against a where clause, traversing the tree until it checked enough rows (see
+     * setCompileThreshold), then compiling it in the background and switching to the compiled
+     * version as soon as it is ready. Where clauses compiled by other engines are used from the
+     * start.
+     */
+    private final class TieredMatcher
+            extends RowMatcher<E> {
+        private final SqlExpressionNode<E> where;
+        private final AtomicLong checked = new AtomicLong();
+        private final AtomicBoolean compiling = new AtomicBoolean();
+        private volatile Evaluator evaluator;
+
+        TieredMatcher(final SqlExpressionNode<E> where) {
+            this.where = where;
+            evaluator = EvaluatorCache.shared().getIfPresent(nodeType, where, functions());
+            compiling.set(null != evaluator);
+        }
+
+        /**
+         * A context is only needed to traverse the tree; once compiled, the where clause stays
+         * compiled, so scans that started with a context can switch to the compiled version
+         */
+        @Override
+        EvaluationContext newContext() {
+            return null == evaluator ? SqlEngine.this.newContext() : null;
+        }
+
+        @Override
+        boolean matches(final E row, final EvaluationContext context)
+                throws SQLException {
+            final Evaluator compiled = evaluator;
+            if (null == compiled) {
+                if (!compiling.get())
+                    count();
+                return interpret(where, row, context);
+            }
+            try {
+                return compiled.matches(row);
+            } catch (final RuntimeException e) {
+                throw new SQLException("Error evaluating compiled WHERE clause", e);
+            }
+        }
+
+        @Override
+        int scan(final Iterator<E> iterator, final Consumer<? super E> consumer, final int limit)
+                throws SQLException {
+            final Evaluator compiled = evaluator;
+            if (null == compiled)
+                return super.scan(iterator, consumer, limit);
+            return compiled.scan(iterator, null, (Consumer<Object>) consumer, limit);
+        }
+
+        /**
+         * Compiles the where clause in the calling thread, unless it is compiled already
+         *
+         * @return whether the where clause is compiled
+         */
+        boolean compile() {
+            compiling.set(true);
+            if (null == evaluator)
+                evaluator = SqlEngine.this.compile(where);
+            return null != evaluator;
+        }
+
+        /** Counts a row checked by traversing the tree, compiling in the background when enough were */
+        private void count() {
+            if (checked.incrementAndGet() >= compileThreshold && compiling.compareAndSet(false, true))
+                BackgroundCompiler.EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        evaluator = SqlEngine.this.compile(where);
+                    }
+                });
+        }
+    }
+
+    /**
+     * The thread that compiles where clauses in the background, started on first use. It is a
+     * daemon thread, so it does not keep the JVM alive.
+     */
+    private static final class BackgroundCompiler {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "espresso-compiler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static SqlSelect parse(final String selectStatement)
             throws SQLException {
         final SqlStatement statement = SqlParser.parse(selectStatement);
         if (!(statement instanceof SqlSelect))
@@ -140,14 +625,26 @@ public class SqlEngine<E> {
             throws SQLException {
         if (null == extensions)
             return;
-        buildFunctions(extensions);
-        if (null == dateExtension)
-            dateExtension = DATE_EXTENSION;
+        functions = buildFunctions(extensions);
+        dateExtension = dateExtensionFor(extensions);
     }
 
-    private void buildFunctions(final Object... extensions)
+    /**
+     * The date extension used to convert date strings: the last extension object implementing
+     * DateExtension, or the standard one if there is none
+     */
+    static DateExtension dateExtensionFor(final Object... extensions) {
+        DateExtension dateExtension = DATE_EXTENSION;
+        for (final Object extension : extensions)
+            if (DateExtension.class.isInstance(extension))
+                dateExtension = (DateExtension) extension;
+        return dateExtension;
+    }
+
+    static HashMap<String, FunctionExtension> buildFunctions(final Object... extensions)
             throws SQLException {
-        functions = new HashMap<String, FunctionExtension>(extensions.length);
+        final HashMap<String, FunctionExtension> functions =
+                new HashMap<String, FunctionExtension>(extensions.length);
         for (final Object extension : extensions) {
             for (final Method method : extension.getClass().getDeclaredMethods()) {
                 if (method.isAnnotationPresent(SqlExtension.class)) {
@@ -162,8 +659,6 @@ public class SqlEngine<E> {
                                 + " is annotated as SqlExtension, but it is not public. FIX YOUR CODE!");
                 }
             }
-            if (DateExtension.class.isInstance(extension))
-                dateExtension = (DateExtension) extension;
         }
 
         try {
@@ -174,9 +669,10 @@ public class SqlEngine<E> {
             throw new SQLException(
                     "NotFunction disappeared from SqlEngine class. SHOULD NEVER HAPPEN!", e);
         }
+        return functions;
     }
 
-    private static String terminate(final String rawStatement) {
+    static String terminate(final String rawStatement) {
         final String statement = rawStatement.trim();
         return statement.endsWith(";") ? statement : statement + ';';
     }
@@ -31,6 +31,7 @@ public abstract class SqlNodeVisitor<E> {
     public abstract void visit(final SqlLikeExpression<E> node) throws SQLException;
     public abstract void visit(final SqlNull<E> node) throws SQLException;
     public abstract void visit(final SqlNumber<E> node) throws SQLException;
+    public abstract void visit(final SqlParameter<E> node) throws SQLException;
     public abstract void visit(final SqlString<E> node) throws SQLException;
 
 
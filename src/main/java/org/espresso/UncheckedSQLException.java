@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso;
+
+import java.sql.SQLException;
+
+/**
+ * Wraps a SQLException raised while a where clause is evaluated lazily, i.e., while the caller
+ * traverses an iterator, spliterator or stream returned by the engine. Those interfaces do not
+ * allow checked exceptions, so the original exception is available as the cause.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class UncheckedSQLException
+        extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Wraps the exception
+     *
+     * @param cause the exception raised by the where clause, never missing
+     */
+    public UncheckedSQLException(final SQLException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
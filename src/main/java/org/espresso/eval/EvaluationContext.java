@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.eval;
+
+import org.espresso.FunctionExtension;
+import org.espresso.token.SqlParameter;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Holds the state needed to interpret a where clause, so the tree itself can be immutable and
+ * shared by concurrent callers: the function extensions, the values bound to the bind variables,
+ * and one scratch NumberWrapper (a register) for each node that produces numbers. Nodes write
+ * their numeric results to their own register rather than allocating a new wrapper per row.
+ * <br/>
+ * A context must not be shared across threads: each thread interpreting a where clause needs its
+ * own context, which can then be reused for every row it evaluates.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public final class EvaluationContext {
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final Map<String, FunctionExtension> functions;
+    private final NumberWrapper[] registers;
+    private final Object[] parameters;
+
+    /**
+     * Builds a context for a where clause with no bind variables
+     *
+     * @param functions Function extensions, null if there are none
+     * @param registers how many registers the where clause needs (see SqlSelect.getRegisterCount)
+     */
+    public EvaluationContext(final Map<String, FunctionExtension> functions, final int registers) {
+        this(functions, registers, NO_PARAMETERS);
+    }
+
+    /**
+     * Builds a context for a where clause with bind variables
+     *
+     * @param functions Function extensions, null if there are none
+     * @param registers how many registers the where clause needs (see SqlSelect.getRegisterCount)
+     * @param parameters the values bound to the bind variables, one per slot
+     */
+    public EvaluationContext(final Map<String, FunctionExtension> functions, final int registers,
+            final Object[] parameters) {
+        this.functions = null == functions ? Collections.<String, FunctionExtension>emptyMap() : functions;
+        this.registers = new NumberWrapper[registers];
+        for (int i = 0; i < registers; i++)
+            this.registers[i] = new NumberWrapper(0L);
+        this.parameters = new Object[parameters.length];
+        for (int i = 0; i < parameters.length; i++)
+            this.parameters[i] = SqlParameter.normalize(parameters[i]);
+    }
+
+    /**
+     * Accessor to the function extensions
+     *
+     * @return the function extensions, never null
+     */
+    public Map<String, FunctionExtension> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * The scratch number owned by a node
+     *
+     * @param register the register assigned to the node
+     *
+     * @return the register
+     */
+    public NumberWrapper getRegister(final int register) {
+        return registers[register];
+    }
+
+    /**
+     * The value bound to a bind variable, numbers already converted to NumberWrappers
+     *
+     * @param slot the slot of the bind variable
+     *
+     * @return the value
+     */
+    public Object getParameter(final int slot) {
+        return parameters[slot];
+    }
+
+    /**
+     * How many values are bound to bind variables
+     *
+     * @return the number of slots
+     */
+    public int getParameterCount() {
+        return parameters.length;
+    }
+}
@@ -15,6 +15,10 @@
  */
 package org.espresso.eval;
 
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
 /**
  * Interface implemented by the class generated by the CompilerVisitor.
  *
@@ -27,4 +31,30 @@ public interface Evaluator {
      * @return true if it satisfies the (compiled) where clause; false otherwise.
      */
     public boolean matches(final Object row);
+
+    /**
+     * Whether the object matches the (compiled) where clause, reading the bind variables from the
+     * supplied slots
+     * @param row object representing a "database" row
+     * @param parameters values of the bind variables, one per slot
+     * @return true if it satisfies the (compiled) where clause; false otherwise.
+     */
+    public boolean matches(final Object row, final Object[] parameters);
+
+    /**
+     * Checks rows against the (compiled) where clause until the iterator is exhausted or enough
+     * rows matched, handing each matching row to the consumer. The loop is generated along with
+     * the where clause, so the where clause is inlined into a loop of its own rather than called
+     * from a loop shared by all queries.
+     * @param rows iterator over the rows to check
+     * @param parameters values of the bind variables, one per slot
+     * @param consumer receives the matching rows, null if they only need to be counted
+     * @param limit at most how many rows to match
+     * @return how many rows matched
+     * @throws SQLException if the where clause fails to evaluate; exceptions thrown by the
+     * iterator or the consumer are propagated as is
+     */
+    public int scan(final Iterator<?> rows, final Object[] parameters, final Consumer<Object> consumer,
+            final int limit)
+            throws SQLException;
 }
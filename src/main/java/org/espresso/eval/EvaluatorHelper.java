@@ -15,74 +15,29 @@
  */
 package org.espresso.eval;
 
-import org.espresso.token.SqlComparisonOperator;
-
-import static org.espresso.token.SqlComparisonOperator.*;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
 public class
         EvaluatorHelper {
-    public static boolean evalBetween(final long column, final long lower, final long upper) {
-        return column >= lower && column <= upper;
-    }
-
-    public static boolean evalBetween(final long column, final long lower, final double upper) {
-        return column >= lower && column <= upper;
-    }
-
-    public static boolean evalBetween(final long column, final double lower, final long upper) {
-        return column >= lower && column <= upper;
-    }
-
-    public static boolean evalBetween(final long column, final double lower, final double upper) {
-        return column >= lower && column <= upper;
-    }
-
-    public static boolean evalBetween(final double column, final long lower, final long upper) {
-        return column >= lower && column <= upper;
-    }
-
-    public static boolean evalBetween(final double column, final long lower, final double upper) {
-        return column >= lower && column <= upper;
-    }
-
-    public static boolean evalBetween(final double column, final double lower, final long upper) {
-        return column >= lower && column <= upper;
-    }
-
-    public static boolean evalBetween(final double column, final double lower, final double upper) {
-        return column >= lower && column <= upper;
-    }
-    
-    
-    public static boolean evalCompare(final long lhs, final long rhs, SqlComparisonOperator operator) {
-        if (lhs < rhs) return operator == LT;
-        if (lhs > rhs) return operator == GT;
-        return operator == EQ || operator == GE || operator == LE;
-    }
-
-    public static boolean evalCompare(final long lhs, final double rhs, SqlComparisonOperator operator) {
-        if (lhs < rhs) return operator == LT;
-        if (lhs > rhs) return operator == GT;
-        return operator == EQ || operator == GE || operator == LE;
+    public static boolean evalIn(final long value, final long[] sortedInList) {
+        return Arrays.binarySearch(sortedInList, value) >= 0;
     }
 
-    public static boolean evalCompare(final double lhs, final long rhs, SqlComparisonOperator operator) {
-        if (lhs < rhs) return operator == LT;
-        if (lhs > rhs) return operator == GT;
-        return operator == EQ || operator == GE || operator == LE;
+    public static boolean evalIn(final double value, final double[] sortedInList) {
+        return Arrays.binarySearch(sortedInList, value) >= 0;
     }
 
-    public static boolean evalCompare(final double lhs, final double rhs, SqlComparisonOperator operator) {
-        if (lhs < rhs) return operator == LT;
-        if (lhs > rhs) return operator == GT;
-        return operator == EQ || operator == GE || operator == LE;
+    public static boolean evalIn(final Object value, final Set inList) {
+        return null != value && inList.contains(value);
     }
 
-    public static boolean evalCompare(final Comparable lhs, final Comparable rhs, SqlComparisonOperator operator) {
-        return operator.eval(lhs.compareTo(rhs));
+    public static boolean evalLike(final String value, final Pattern pattern) {
+        return null != value && pattern.matcher(value).matches();
     }
 
     public static boolean evalIsNull(final Object test, final boolean checkIfNull) {
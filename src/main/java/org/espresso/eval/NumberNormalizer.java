@@ -25,51 +25,37 @@ package org.espresso.eval;
 public enum NumberNormalizer {
     TO_DOUBLE {
         @Override
-        public Object convertIfNeeded(final Object source, NumberWrapper wrapper,
-                final NumberWrapperSetter setter) {
+        public Object convertIfNeeded(final Object source, final NumberWrapper register) {
             if (null == source)
                 return null;
-            if (null == wrapper) {
-                wrapper = new NumberWrapper(((Number) source).doubleValue());
-                setter.setNumberWrapper(wrapper);
-            }
-            return wrapper.setDouble(((Number) source).doubleValue());
+            return register.setDouble(((Number) source).doubleValue());
         }
     },
     TO_LONG {
         @Override
-        public Object convertIfNeeded(final Object source, NumberWrapper wrapper,
-                final NumberWrapperSetter setter) {
+        public Object convertIfNeeded(final Object source, final NumberWrapper register) {
             if (null == source)
                 return null;
-            if (null == wrapper) {
-                wrapper = new NumberWrapper(((Number) source).longValue());
-                setter.setNumberWrapper(wrapper);
-            }
-            return wrapper.setLong(((Number) source).longValue());
+            return register.setLong(((Number) source).longValue());
         }
     },
     NO_OP {
         @Override
-        public Object convertIfNeeded(final Object source, NumberWrapper wrapper,
-                final NumberWrapperSetter setter) {
+        public Object convertIfNeeded(final Object source, final NumberWrapper register) {
             return source;
         }
     };
 
     /**
      * Converts the source object if required, or performs a noop if the value is not
-     * numeric. Sets the NumberWrapper created, so it can be memoized, avoiding the
-     * creation of too many temporary objects.
+     * numeric. Numbers are written to the register supplied by the caller, so no temporary
+     * objects are created.
      *
      * @param source Object to be converted (if necessary)
-     * @param wrapper If the source is numeric, a number wrapper to use to set the value
-     * @param setter If the source is numeric and no number wrapper was provided, create
-     * one and use this call to set it on the object holding the wrapper.
+     * @param register If the source is numeric, the number wrapper where to set the value
      * @return the converted object (or the original one if no conversion was required)
      */
-    public abstract Object convertIfNeeded(final Object source, final NumberWrapper wrapper,
-            final NumberWrapperSetter setter);
+    public abstract Object convertIfNeeded(final Object source, final NumberWrapper register);
 
     /**
      * Identifies the appropriate normalized for a given object (based on the class)
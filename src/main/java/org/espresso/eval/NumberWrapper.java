@@ -67,15 +67,23 @@ public final class NumberWrapper extends Number {
         return this;
     }
 
+    public NumberWrapper set(final NumberWrapper value) {
+        this.isDouble = value.isDouble;
+        this.doubleValue = value.doubleValue;
+        this.longValue = value.longValue;
+        return this;
+    }
+
     public void add(final NumberWrapper value) {
         if (this.isDouble) {
             if (value.isDouble)
                 this.doubleValue += value.doubleValue;
             else
                 this.doubleValue += value.longValue;
-        } else if (value.isDouble)
+        } else if (value.isDouble) {
             this.doubleValue = this.longValue + value.doubleValue;
-                    else this.longValue += value.longValue;
+            this.isDouble = true;
+        } else this.longValue += value.longValue;
     }
 
     public void subtract(final NumberWrapper value) {
@@ -84,9 +92,10 @@ public final class NumberWrapper extends Number {
                 this.doubleValue -= value.doubleValue;
             else
                 this.doubleValue -= value.longValue;
-        } else if (value.isDouble)
+        } else if (value.isDouble) {
             this.doubleValue = this.longValue - value.doubleValue;
-                    else this.longValue -= value.longValue;
+            this.isDouble = true;
+        } else this.longValue -= value.longValue;
     }
 
     public void multiply(final NumberWrapper value) {
@@ -95,9 +104,10 @@ public final class NumberWrapper extends Number {
                 this.doubleValue *= value.doubleValue;
             else
                 this.doubleValue *= value.longValue;
-        } else if (value.isDouble)
+        } else if (value.isDouble) {
             this.doubleValue = this.longValue * value.doubleValue;
-                    else this.longValue *= value.longValue;
+            this.isDouble = true;
+        } else this.longValue *= value.longValue;
     }
 
     public void divide(final NumberWrapper value) {
@@ -106,9 +116,10 @@ public final class NumberWrapper extends Number {
                 this.doubleValue /= value.doubleValue;
             else
                 this.doubleValue /= value.longValue;
-        } else if (value.isDouble)
+        } else if (value.isDouble) {
             this.doubleValue = this.longValue / value.doubleValue;
-                    else this.longValue /= value.longValue;
+            this.isDouble = true;
+        } else this.longValue /= value.longValue;
     }
 
     public double asDouble() {
@@ -20,7 +20,8 @@ import static org.espresso.eval.ClassUtil.isNumber;
 
 /**
  * Implements the different possible numeric comparisons, or assumes the operands
- * implement "Comparable".
+ * implement "Comparable". All comparisons return -1, 0 or 1, or UNORDERED when one of the numbers
+ * is NaN, which only satisfies != (see SqlComparisonOperator), as in the compiled where clause.
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
@@ -28,57 +29,75 @@ public enum SqlComparisonEvaluator {
     LONG_LONG {
         @Override
         public int compare(final Object leftOperand, final Object rightOperand) {
-            long left = ((NumberWrapper) leftOperand).asLong();
-            long right = ((NumberWrapper) rightOperand).asLong();
-            return left == right ? 0 : (left < right ? -1 : 1);
+            return compareLongs(((Number) leftOperand).longValue(), ((Number) rightOperand).longValue());
         }
     },
     LONG_DOUBLE {
         @Override
-        public int compare(Object leftOperand, Object rightOperand) {
-            double left = ((NumberWrapper) leftOperand).asLong();
-            double right = ((NumberWrapper) leftOperand).asDouble();
-            return left == right ? 0 : (left < right ? -1 : 1);
+        public int compare(final Object leftOperand, final Object rightOperand) {
+            return compareDoubles(((Number) leftOperand).longValue(), ((Number) rightOperand).doubleValue());
         }
     },
     DOUBLE_LONG {
         @Override
-        public int compare(Object leftOperand, Object rightOperand) {
-            double left = ((NumberWrapper) leftOperand).asDouble();
-            double right = ((NumberWrapper) leftOperand).asDouble();
-            return left == right ? 0 : (left < right ? -1 : 1);
+        public int compare(final Object leftOperand, final Object rightOperand) {
+            return compareDoubles(((Number) leftOperand).doubleValue(), ((Number) rightOperand).longValue());
         }
     },
     DOUBLE_DOUBLE {
         @Override
-        public int compare(Object leftOperand, Object rightOperand) {
-            double left = ((NumberWrapper) leftOperand).asDouble();
-            double right = ((NumberWrapper) leftOperand).asDouble();
-            return left == right ? 0 : (left < right ? -1 : 1);
+        public int compare(final Object leftOperand, final Object rightOperand) {
+            return compareDoubles(((Number) leftOperand).doubleValue(), ((Number) rightOperand).doubleValue());
         }
     },
     OTHER_OTHER {
         @Override
-        public int compare(Object leftOperand, Object rightOperand) {
-            return ((Comparable) leftOperand).compareTo(rightOperand);
+        public int compare(final Object leftOperand, final Object rightOperand) {
+            return Integer.signum(((Comparable) leftOperand).compareTo(rightOperand));
         }
     };
 
+    /** The result of comparing NaN to any number, including NaN itself */
+    public static final int UNORDERED = 2;
+
     public abstract int compare(final Object leftOperand, final Object rightOperand);
 
+    /**
+     * Picks the comparison for the operands. NumberWrappers are compared according to what they
+     * currently hold, so the choice depends on the values and not only on their classes.
+     *
+     * @param left the left operand, never null
+     * @param right the right operand, never null
+     *
+     * @return the comparison
+     */
     public static SqlComparisonEvaluator pickEvaluator(final Object left, final Object right) {
-        final Class leftClass = left.getClass();
-        final Class rightClass = right.getClass();
-        if (isNumber(leftClass) && isNumber(rightClass)) {
-            if (isFloatPrecision(leftClass))
-                if (isFloatPrecision(rightClass))
+        if (isNumber(left.getClass()) && isNumber(right.getClass())) {
+            if (isDouble(left))
+                if (isDouble(right))
                     return DOUBLE_DOUBLE;
                 else
                     return DOUBLE_LONG;
-            else if (isFloatPrecision(rightClass))
+            else if (isDouble(right))
                 return LONG_DOUBLE;
             else return LONG_LONG;
         }
         return OTHER_OTHER;
     }
+
+    public static int compareLongs(final long left, final long right) {
+        return left == right ? 0 : (left < right ? -1 : 1);
+    }
+
+    public static int compareDoubles(final double left, final double right) {
+        if (left != left || right != right)
+            return UNORDERED;
+        return left == right ? 0 : (left < right ? -1 : 1);
+    }
+
+    private static boolean isDouble(final Object number) {
+        if (number instanceof NumberWrapper)
+            return ((NumberWrapper) number).isDouble();
+        return isFloatPrecision(number.getClass());
+    }
 }
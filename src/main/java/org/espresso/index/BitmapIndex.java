@@ -0,0 +1,523 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import org.espresso.util.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.espresso.index.ExactIndex.keyFor;
+
+/**
+ * Index that keeps, for each distinct value of the column, a compressed bitmap of the ids of the
+ * rows with that value (see Bitmap and RowIds). Like ExactIndex, it is exact and meant for columns
+ * with few distinct values, such as books or databases; unlike ExactIndex, its restrictions are
+ * sets of row ids rather than buckets, so all bitmap indices sharing the same row ids are
+ * compatible with each other, even over different columns. AND, OR and NOT across those columns
+ * are then computed with bitmap operations, yielding exactly the matching rows before any row is
+ * touched - and counts straight from the bitmaps.
+ * <p/>
+ * The index itself is changed under a lock shared with its restrictions, which are copies of the
+ * bitmaps taken when they are made and cannot be changed themselves. Numbers are compared by value,
+ * regardless of their class, as in ExactIndex. Columns of comparable types (numbers, dates, strings)
+ * keep their values sorted, so they also support less than and greater than by ORing the bitmaps of
+ * the values in range; like the other indices, the range includes the value compared to.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class BitmapIndex<T, V>
+        extends Index<T, V> {
+    // Estimated bytes taken by the entry and the key of each distinct value, besides its bitmap
+    private static final long VALUE_BYTES = 64;
+
+    /**
+     * Orders the values of a column: numbers by value, whatever their class, and values of
+     * different kinds by the name of the kind, so that looking up a value of the wrong type finds
+     * nothing rather than failing
+     */
+    private static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(final Object left, final Object right) {
+            final Class<?> leftKind = kindOf(left);
+            final Class<?> rightKind = kindOf(right);
+            if (leftKind != rightKind)
+                return leftKind.getName().compareTo(rightKind.getName());
+            if (Number.class != leftKind)
+                return ((Comparable<Object>) left).compareTo(right);
+            if (left instanceof Long && right instanceof Long)
+                return Long.compare((Long) left, (Long) right);
+            return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        }
+    };
+
+    private final Column<T> shared;
+    private final Bitmap selection;
+
+    public static <T, V> Index<T, V> newIndex(final RowIds<T> rows, final Class<V> type, final String name,
+            final Getter<T, V> column) {
+        return new BitmapIndex<T, V>(type, name, column, new Column<T>(rows, type), null);
+    }
+
+    /**
+     * Builds an index over a column of the row type, read the same way the where clause reads it
+     * (see Getters)
+     *
+     * @param rows the row ids, shared by all bitmap indices over the same rows
+     * @param rowType the row type
+     * @param type the type of the column, the wrapper type for primitive columns
+     * @param name the column name
+     *
+     * @return the index
+     *
+     * @throws IllegalArgumentException if the row type has no such column, or it is of another type
+     */
+    public static <T, V> Index<T, V> newIndex(final RowIds<T> rows, final Class<T> rowType,
+            final Class<V> type, final String name) {
+        return newIndex(rows, type, name, Getters.forColumn(rowType, name, type));
+    }
+
+    /**
+     * Builds the index, or one of its restrictions
+     *
+     * @param selection the rows of the restriction, or null for the index itself
+     */
+    private BitmapIndex(final Class<V> type, final String name, final Getter<T, V> column,
+            final Column<T> shared, final Bitmap selection) {
+        super(type, name, column, 1);
+        this.shared = shared;
+        this.selection = selection;
+    }
+
+    /**
+     * Returns an empty restriction of this index
+     */
+    @Override
+    public Index<T, V> newIndex() {
+        return restriction(new Bitmap());
+    }
+
+    /**
+     * Bitmap indices are compatible whenever they share the row ids, whatever their columns
+     */
+    @Override
+    public boolean isCompatibleWith(final Index<T, V> other) {
+        return other instanceof BitmapIndex && shared.rows == ((BitmapIndex) other).shared.rows;
+    }
+
+    @Override
+    public boolean isExact() {
+        return true;
+    }
+
+    /**
+     * Returns the rows with the value, which are none if the value was never seen
+     */
+    @Override
+    public Index<T, V> singleBucket(final V what) {
+        synchronized (shared) {
+            final Bitmap rows = null == what ? shared.nulls : shared.values.get(keyFor(what));
+            return restriction(null == rows ? new Bitmap() : rows.copy());
+        }
+    }
+
+    /**
+     * Returns the rows with any of the values, ORing their bitmaps into a single one
+     */
+    @Override
+    public Index<T, V> multipleBuckets(final Collection<? extends V> values) {
+        synchronized (shared) {
+            final List<Bitmap> bitmaps = new ArrayList<Bitmap>(values.size());
+            for (final V what : values) {
+                final Bitmap rows = null == what ? shared.nulls : shared.values.get(keyFor(what));
+                if (null != rows)
+                    bitmaps.add(rows);
+            }
+            return restriction(Bitmap.or(bitmaps));
+        }
+    }
+
+    @Override
+    public int estimateSingleBucket(final V what) {
+        synchronized (shared) {
+            final Bitmap rows = null == what ? shared.nulls : shared.values.get(keyFor(what));
+            return null == rows ? 0 : rows.cardinality();
+        }
+    }
+
+    @Override
+    public Index<T, V> notNull() {
+        synchronized (shared) {
+            return restriction(shared.notNulls.copy());
+        }
+    }
+
+    @Override
+    public Index<T, V> intersection(final Index<T, V> other) {
+        if (!isCompatibleWith(other))
+            return null;
+        return restriction(rows().and(((BitmapIndex<T, V>) other).rows()));
+    }
+
+    @Override
+    public Index<T, V> union(final Index<T, V> other) {
+        if (!isCompatibleWith(other))
+            return null;
+        return restriction(rows().or(((BitmapIndex<T, V>) other).rows()));
+    }
+
+    @Override
+    public Index<T, V> difference(final Index<T, V> other) {
+        if (!isCompatibleWith(other))
+            return null;
+        return restriction(rows().andNot(((BitmapIndex<T, V>) other).rows()));
+    }
+
+    @Override
+    public Index<T, V> filter(final Predicate<? super T> filter) {
+        final Bitmap rows = rows();
+        final Bitmap filtered = new Bitmap();
+        for (int id = rows.next(0); 0 <= id; id = rows.next(id + 1)) {
+            final T row = shared.rows.rowAt(id);
+            if (null != row && filter.test(row))
+                filtered.add(id);
+        }
+        return restriction(filtered);
+    }
+
+    @Override
+    public Index<T, V> lessThan(final V what) {
+        synchronized (shared) {
+            final NavigableMap<Object, Bitmap> values = valuesComparableTo(what);
+            return null == values ? null
+                    : restriction(Bitmap.or(new ArrayList<Bitmap>(values.headMap(keyFor(what), true).values())));
+        }
+    }
+
+    @Override
+    public Index<T, V> greaterThan(final V what) {
+        synchronized (shared) {
+            final NavigableMap<Object, Bitmap> values = valuesComparableTo(what);
+            return null == values ? null
+                    : restriction(Bitmap.or(new ArrayList<Bitmap>(values.tailMap(keyFor(what), true).values())));
+        }
+    }
+
+    @Override
+    public int estimateLessThan(final V what) {
+        synchronized (shared) {
+            final NavigableMap<Object, Bitmap> values = valuesComparableTo(what);
+            return null == values ? -1 : cardinality(values.headMap(keyFor(what), true).values());
+        }
+    }
+
+    @Override
+    public int estimateGreaterThan(final V what) {
+        synchronized (shared) {
+            final NavigableMap<Object, Bitmap> values = valuesComparableTo(what);
+            return null == values ? -1 : cardinality(values.tailMap(keyFor(what), true).values());
+        }
+    }
+
+    /**
+     * Estimates the memory taken by the index, in bytes: the bitmaps of the values, of the nulls
+     * and of the non nulls, plus an entry for each distinct value. The row ids are shared by all
+     * bitmap indices over the same rows, so they are left out (see RowIds#memoryFootprint).
+     */
+    @Override
+    public long memoryFootprint() {
+        synchronized (shared) {
+            long size = shared.notNulls.sizeInBytes() + shared.nulls.sizeInBytes();
+            for (final Bitmap rows : shared.values.values())
+                size += VALUE_BYTES + rows.sizeInBytes();
+            return size;
+        }
+    }
+
+    /**
+     * Not used: the rows are kept in bitmaps, rather than in buckets
+     */
+    @Override
+    protected int whichBucket(final V object) {
+        return 0;
+    }
+
+    @Override
+    public boolean add(final T element) {
+        checkChangeable();
+        final V value = getColumnValue(element);
+        synchronized (shared) {
+            final int existing = shared.rows.idOf(element);
+            if (0 <= existing && (shared.notNulls.contains(existing) || shared.nulls.contains(existing)))
+                return false;
+            final int id = shared.rows.acquire(element);
+            if (null == value)
+                return shared.nulls.add(id);
+            Bitmap rows = shared.values.get(keyFor(value));
+            if (null == rows) {
+                rows = new Bitmap();
+                shared.values.put(keyFor(value), rows);
+            }
+            shared.notNulls.add(id);
+            return rows.add(id);
+        }
+    }
+
+    @Override
+    public boolean remove(final Object element) {
+        checkChangeable();
+        final V value = getColumnValue((T) element);
+        synchronized (shared) {
+            final int id = shared.rows.idOf(element);
+            if (0 > id)
+                return false;
+            final Bitmap rows = null == value ? shared.nulls : shared.values.get(keyFor(value));
+            if (null == rows || !rows.remove(id))
+                return false;
+            if (null != value) {
+                shared.notNulls.remove(id);
+                if (rows.isEmpty())
+                    shared.values.remove(keyFor(value));
+            }
+            shared.rows.release(id);
+            return true;
+        }
+    }
+
+    @Override
+    public void clear() {
+        checkChangeable();
+        synchronized (shared) {
+            final Bitmap rows = shared.notNulls.or(shared.nulls);
+            for (int id = rows.next(0); 0 <= id; id = rows.next(id + 1))
+                shared.rows.release(id);
+            shared.values.clear();
+            shared.notNulls.clear();
+            shared.nulls.clear();
+        }
+    }
+
+    /**
+     * Whether the index holds an element, looking up the id of the element in the bitmap
+     */
+    @Override
+    public boolean contains(final Object element) {
+        final int id = shared.rows.idOf(element);
+        if (0 > id)
+            return false;
+        if (null != selection)
+            return selection.contains(id);
+        synchronized (shared) {
+            return shared.notNulls.contains(id) || shared.nulls.contains(id);
+        }
+    }
+
+    @Override
+    public int size() {
+        if (null != selection)
+            return selection.cardinality();
+        synchronized (shared) {
+            return shared.notNulls.cardinality() + shared.nulls.cardinality();
+        }
+    }
+
+    /** Creates an iterator over the rows, in the order of their ids */
+    @Override
+    public Iterator<T> iterator() {
+        final Bitmap rows = rows();
+        return new Iterator<T>() {
+            private int id = -1;
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                while (null == next) {
+                    id = rows.next(id + 1);
+                    if (0 > id)
+                        return false;
+                    next = shared.rows.rowAt(id);
+                }
+                return true;
+            }
+
+            @Override
+            public T next()
+                    throws NoSuchElementException {
+                if (!hasNext())
+                    throw new NoSuchElementException("Attempting to read beyond end of set");
+                final T row = next;
+                next = null;
+                return row;
+            }
+
+            @Override
+            public void remove()
+                    throws UnsupportedOperationException {
+                throw new UnsupportedOperationException(
+                        "Index does not allow removal of elements.");
+            }
+        };
+    }
+
+    /**
+     * Creates a spliterator that splits the range of row ids in halves, so the rows can be
+     * traversed in parallel, in the order of their ids
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        final Bitmap rows = rows();
+        return new RowSpliterator(rows, 0, rows.last() + 1, rows.cardinality());
+    }
+
+    /**
+     * The rows of this index: the selection of a restriction, or a copy of all rows of the index
+     */
+    private Bitmap rows() {
+        if (null != selection)
+            return selection;
+        synchronized (shared) {
+            return shared.notNulls.or(shared.nulls);
+        }
+    }
+
+    /**
+     * The sorted values of the column, if the value can be compared to them, or null if the column
+     * is not sorted or the value is of another kind. Must be called holding the lock.
+     */
+    private NavigableMap<Object, Bitmap> valuesComparableTo(final V what) {
+        if (null == what || !(shared.values instanceof NavigableMap))
+            return null;
+        final NavigableMap<Object, Bitmap> values = (NavigableMap<Object, Bitmap>) shared.values;
+        if (!values.isEmpty() && kindOf(values.firstKey()) != kindOf(keyFor(what)))
+            return null;
+        return values;
+    }
+
+    private static int cardinality(final Collection<Bitmap> bitmaps) {
+        int cardinality = 0;
+        for (final Bitmap rows : bitmaps)
+            cardinality += rows.cardinality();
+        return cardinality;
+    }
+
+    /**
+     * The kind of a value, to tell which values can be compared: all numbers are of the same kind,
+     * as are all dates, while any other value is of the kind of its class
+     */
+    private static Class<?> kindOf(final Object value) {
+        if (value instanceof Number)
+            return Number.class;
+        if (value instanceof Date)
+            return Date.class;
+        return value.getClass();
+    }
+
+    private Index<T, V> restriction(final Bitmap rows) {
+        return new BitmapIndex<T, V>(getIndexType(), getName(), column, shared, rows);
+    }
+
+    private void checkChangeable() {
+        if (null != selection)
+            throw new UnsupportedOperationException("Restrictions of a bitmap index cannot be changed");
+    }
+
+    /**
+     * The bitmaps of a column, shared by an index and all its restrictions, which also use them as
+     * the lock that guards changes to the index
+     */
+    private static final class Column<T> {
+        final RowIds<T> rows;
+        final Map<Object, Bitmap> values;
+        final Bitmap notNulls = new Bitmap();
+        final Bitmap nulls = new Bitmap();
+
+        Column(final RowIds<T> rows, final Class<?> type) {
+            this.rows = rows;
+            values = Number.class.isAssignableFrom(type) || Comparable.class.isAssignableFrom(type)
+                    ? new TreeMap<Object, Bitmap>(VALUE_ORDER) : new HashMap<Object, Bitmap>();
+        }
+    }
+
+    /**
+     * Spliterator over the ids [from, to) of a bitmap, whose size is estimated as a share of the
+     * bitmap proportional to the range of ids
+     */
+    private final class RowSpliterator
+            implements Spliterator<T> {
+        private final Bitmap rows;
+        private int from;
+        private final int to;
+        private long estimate;
+
+        RowSpliterator(final Bitmap rows, final int from, final int to, final long estimate) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            for (; ; ) {
+                final int id = rows.next(from);
+                if (0 > id || id >= to) {
+                    from = to;
+                    return false;
+                }
+                from = id + 1;
+                final T row = shared.rows.rowAt(id);
+                if (null != row) {
+                    action.accept(row);
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (2 > to - from || 2 > estimate)
+                return null;
+            final int middle = (from + to) >>> 1;
+            final long half = estimate >>> 1;
+            final Spliterator<T> prefix = new RowSpliterator(rows, from, middle, half);
+            from = middle;
+            estimate -= half;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL;
+        }
+    }
+}
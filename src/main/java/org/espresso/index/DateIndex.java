@@ -15,54 +15,219 @@
  */
 package org.espresso.index;
 
-import java.util.Calendar;
 import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.function.Predicate;
 
 /**
- * Index suitable for dates. The dates are arranged following an order, with all dates that are <=
- * 1990 going to the first bucket, and the last bucket holding all dates beyond the last date we can
- * fit. The buckets on this index follow a natural order, so less than and greater than are
- * supported.
+ * Index suitable for dates. The dates are arranged in buckets of a day, a week or a month, in
+ * order, starting at an origin: all dates before the origin go to the first bucket, and the last
+ * bucket holds all dates beyond the last date we can fit. The buckets on this index follow a
+ * natural order, so less than and greater than are supported.
  * </p>
- * This is suitable for MTS-related applications, where we can specify the earliest date as 01/01/1990.
- * If wider date ranges are required, we should change this class to pass the ranges as part of the
- * constructor.
+ * By default, buckets are months starting on 01/01/1990, which is suitable for MTS-related
+ * applications. Indices over wider ranges, or queried with narrower ranges (e.g., maturities in
+ * the next few days), should pick their own origin and granularity.
+ * </p>
+ * Buckets are calculated from the time of the date with plain arithmetic, in the time zone that
+ * was the default one when the index was built. Less than and greater than only keep the dates of
+ * the boundary bucket that are in the range, so a restriction starting on a given day does not
+ * bring along the whole month of that day.
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
 public class DateIndex<T>
         extends OrderedIndex<T, Date> {
-    private static final int earliestYear = 1990;
+    private static final Date EARLIEST_DATE = new GregorianCalendar(1990, 0, 1).getTime();
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * How long a period each bucket spans
+     */
+    public enum Granularity {
+        DAY {
+            @Override
+            long periodOf(final long epochDay) {
+                return epochDay;
+            }
+        },
+        /** Weeks starting on Mondays */
+        WEEK {
+            @Override
+            long periodOf(final long epochDay) {
+                // 01/01/1970 was a Thursday
+                return Math.floorDiv(epochDay + 3, 7);
+            }
+        },
+        MONTH {
+            @Override
+            long periodOf(final long epochDay) {
+                // Converts days to the proleptic gregorian calendar, with years starting in March
+                final long days = epochDay + 719468;
+                final long era = Math.floorDiv(days, 146097);
+                final long dayOfEra = days - era * 146097;
+                final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+                final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+                final long shiftedMonth = (5 * dayOfYear + 2) / 153;
+                final long month = shiftedMonth < 10 ? shiftedMonth + 2 : shiftedMonth - 10;
+                final long year = yearOfEra + era * 400 + (month < 2 ? 1 : 0);
+                return year * 12 + month;
+            }
+        };
+
+        /**
+         * Numbers the period a day belongs to, so consecutive periods have consecutive numbers
+         *
+         * @param epochDay days since 01/01/1970
+         *
+         * @return the period number
+         */
+        abstract long periodOf(final long epochDay);
+    }
+
+    private final Granularity granularity;
+    private final TimeZone zone;
+    private final long origin;
 
     public static <T> Index<T, Date> newIndex(final String name, final Getter<T, Date> column,
             final int totalBuckets) {
-        return new DateIndex<T>(name, column, totalBuckets);
+        return newIndex(name, column, EARLIEST_DATE, Granularity.MONTH, totalBuckets);
     }
 
     public static <T> Index<T, Date> newIndex(final String name, final Getter<T, Date> column) {
         return new DateIndex<T>(name, column);
     }
 
-    private DateIndex(final String name, final Getter<T, Date> column, final int totalBuckets) {
+    /**
+     * Builds an index with buckets of the given granularity
+     *
+     * @param name the column name
+     * @param column the column to which the index refer
+     * @param origin the first date of the first bucket
+     * @param granularity how long a period each bucket spans
+     * @param totalBuckets how many buckets, i.e., how many periods after the origin are indexed
+     *
+     * @return the index
+     */
+    public static <T> Index<T, Date> newIndex(final String name, final Getter<T, Date> column,
+            final Date origin, final Granularity granularity, final int totalBuckets) {
+        final TimeZone zone = TimeZone.getDefault();
+        return new DateIndex<T>(name, column, granularity, zone,
+                granularity.periodOf(epochDay(origin.getTime(), zone)), totalBuckets);
+    }
+
+    /**
+     * Builds an index over a date column of the row type, read the same way the where clause reads
+     * it (see Getters)
+     *
+     * @param rowType the row type
+     * @param name the column name
+     *
+     * @return the index
+     *
+     * @throws IllegalArgumentException if the row type has no such column, or it is not a date
+     */
+    public static <T> Index<T, Date> newIndex(final Class<T> rowType, final String name) {
+        return new DateIndex<T>(name, Getters.forColumn(rowType, name, Date.class));
+    }
+
+    /**
+     * Builds an index over a date column of the row type with buckets of the given granularity
+     *
+     * @param rowType the row type
+     * @param name the column name
+     * @param origin the first date of the first bucket
+     * @param granularity how long a period each bucket spans
+     * @param totalBuckets how many buckets, i.e., how many periods after the origin are indexed
+     *
+     * @return the index
+     *
+     * @throws IllegalArgumentException if the row type has no such column, or it is not a date
+     */
+    public static <T> Index<T, Date> newIndex(final Class<T> rowType, final String name, final Date origin,
+            final Granularity granularity, final int totalBuckets) {
+        return newIndex(name, Getters.forColumn(rowType, name, Date.class), origin, granularity, totalBuckets);
+    }
+
+    private DateIndex(final String name, final Getter<T, Date> column, final Granularity granularity,
+            final TimeZone zone, final long origin, final int totalBuckets) {
         super(Date.class, name, column, totalBuckets);
+        this.granularity = granularity;
+        this.zone = zone;
+        this.origin = origin;
     }
 
     DateIndex(final String name, final Getter<T, Date> column) {
         super(Date.class, name, column);
+        granularity = Granularity.MONTH;
+        zone = TimeZone.getDefault();
+        origin = granularity.periodOf(epochDay(EARLIEST_DATE.getTime(), zone));
     }
 
     @Override
     public Index<T, Date> newIndex() {
-        return newIndex(getName(), column, totalBuckets);
+        return new DateIndex<T>(getName(), column, granularity, zone, origin, totalBuckets);
+    }
+
+    @Override
+    public boolean isCompatibleWith(final Index<T, Date> other) {
+        if (!(other instanceof DateIndex))
+            return false;
+        final DateIndex that = (DateIndex) other;
+        return granularity == that.granularity && origin == that.origin && zone.equals(that.zone)
+                && super.isCompatibleWith(other);
+    }
+
+    /**
+     * Returns the buckets up to the one holding the date, keeping only the dates up to the given one
+     * from that last bucket - unless the date is the last instant of the bucket
+     */
+    @Override
+    public Index<T, Date> lessThan(final Date what) {
+        final Index<T, Date> index = super.lessThan(what);
+        if (null != index && bucketOf(what.getTime() + 1) == bucketOf(what.getTime()))
+            copySetAt(index, whichBucket(what), new Predicate<T>() {
+                @Override
+                public boolean test(final T element) {
+                    return !getColumnValue(element).after(what);
+                }
+            });
+        return index;
+    }
+
+    /**
+     * Returns the buckets from the one holding the date on, keeping only the dates from the given
+     * one on from that first bucket - unless the date is the first instant of the bucket, such as
+     * midnight for buckets of a day
+     */
+    @Override
+    public Index<T, Date> greaterThan(final Date what) {
+        final Index<T, Date> index = super.greaterThan(what);
+        if (null != index && bucketOf(what.getTime() - 1) == bucketOf(what.getTime()))
+            copySetAt(index, whichBucket(what), new Predicate<T>() {
+                @Override
+                public boolean test(final T element) {
+                    return !getColumnValue(element).before(what);
+                }
+            });
+        return index;
     }
 
     @Override
     protected int whichBucket(final Date other) {
-        final Calendar calendar = Calendar.getInstance();
-        calendar.setTime(other);
-        final int year = calendar.get(Calendar.YEAR);
-        final int month = calendar.get(Calendar.MONTH); // Month is 0 based
-        final int index = (year - earliestYear) * 12 + month;
+        return bucketOf(other.getTime());
+    }
+
+    /**
+     * The bucket of a point in time
+     *
+     * @param time milliseconds since the epoch
+     *
+     * @return the bucket
+     */
+    private int bucketOf(final long time) {
+        final long index = granularity.periodOf(epochDay(time, zone)) - origin;
         // Note that we bundle everything that is < earlierst date into bucket 0, and everything
         // that is > latest date into the last bucket. We do this so we can preserve the ordering
         // of the buckets and find, for example, all dates that are greater than a certain date.
@@ -71,6 +236,18 @@ public class DateIndex<T>
             return 0;
         if (index > totalBuckets - 1)
             return totalBuckets - 1;
-        return index;
+        return (int) index;
+    }
+
+    /**
+     * The day of a point in time, in the given time zone
+     *
+     * @param time milliseconds since the epoch
+     * @param zone the time zone
+     *
+     * @return days since 01/01/1970
+     */
+    private static long epochDay(final long time, final TimeZone zone) {
+        return Math.floorDiv(time + zone.getOffset(time), MILLIS_PER_DAY);
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import org.espresso.eval.ClassUtil;
+import org.espresso.eval.NumberWrapper;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Index that gives each distinct value of the column a bucket of its own, so the bucket returned
+ * by singleBucket holds exactly the elements equal to the value, instead of every element whose
+ * value happens to hash to the same bucket. Equality and IN restrictions answered by this index
+ * need no further checking, and counts come straight from the size of the buckets. It is meant
+ * for columns with few distinct values, such as books or deal types.
+ * <p>
+ * Buckets are handed out as new values show up, and are never reclaimed. Numbers are compared by
+ * value, regardless of their class, so an index over an integer column answers restrictions over
+ * longs or doubles with the same value. If the column ends up with more distinct values than
+ * buckets, the values that do not fit share buckets by hash, as in HashIndex, and the index is
+ * no longer exact. Like HashIndex, this index does not support less than and greater than.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class ExactIndex<T, V>
+        extends Index<T, V> {
+    private final Dictionary dictionary;
+
+    public static <T, V> Index<T, V> newIndex(final Class<V> type, final String name,
+            final Getter<T, V> column, final int totalBuckets) {
+        return new ExactIndex<T, V>(type, name, column, totalBuckets, new Dictionary(totalBuckets));
+    }
+
+    public static <T, V> Index<T, V> newIndex(final Class<V> type, final String name,
+            final Getter<T, V> column) {
+        return new ExactIndex<T, V>(type, name, column);
+    }
+
+    /**
+     * Builds an index over a column of the row type, read the same way the where clause reads it
+     * (see Getters)
+     *
+     * @param rowType the row type
+     * @param type the type of the column, the wrapper type for primitive columns
+     * @param name the column name
+     *
+     * @return the index
+     *
+     * @throws IllegalArgumentException if the row type has no such column, or it is of another type
+     */
+    public static <T, V> Index<T, V> newIndex(final Class<T> rowType, final Class<V> type,
+            final String name) {
+        return new ExactIndex<T, V>(type, name, Getters.forColumn(rowType, name, type));
+    }
+
+    private ExactIndex(final Class<V> type, final String name, final Getter<T, V> column,
+            final int totalBuckets, final Dictionary dictionary) {
+        super(type, name, column, totalBuckets);
+        this.dictionary = dictionary;
+    }
+
+    private ExactIndex(final Class<V> type, final String name, final Getter<T, V> column) {
+        super(type, name, column);
+        dictionary = new Dictionary(totalBuckets);
+    }
+
+    /**
+     * Copies share the buckets handed out to the values, so they can be combined with each other
+     */
+    @Override
+    public Index<T, V> newIndex() {
+        return new ExactIndex<T, V>(getIndexType(), getName(), column, totalBuckets, dictionary);
+    }
+
+    @Override
+    public boolean isCompatibleWith(final Index<T, V> other) {
+        return other instanceof ExactIndex && dictionary == ((ExactIndex) other).dictionary
+                && super.isCompatibleWith(other);
+    }
+
+    @Override
+    public boolean isExact() {
+        return !dictionary.overflowed;
+    }
+
+    /**
+     * Returns an index with the bucket of the value, which is empty if the value was never seen
+     */
+    @Override
+    public Index<T, V> singleBucket(final V what) {
+        if (null == what)
+            return super.singleBucket(null);
+        final Integer bucket = dictionary.buckets.get(keyFor(what));
+        final Index<T, V> index = newIndex();
+        if (null != bucket)
+            copySetAt(index, bucket);
+        else if (dictionary.overflowed)
+            copySetAt(index, dictionary.overflowBucket(keyFor(what)));
+        return index;
+    }
+
+    /**
+     * Returns an index with the buckets of the values, leaving out the values never seen
+     */
+    @Override
+    public Index<T, V> multipleBuckets(final Collection<? extends V> values) {
+        final Index<T, V> index = newIndex();
+        for (final V what : values) {
+            if (null == what) {
+                copyNullSet(index, this);
+                continue;
+            }
+            final Integer bucket = dictionary.buckets.get(keyFor(what));
+            if (null != bucket)
+                copySetAt(index, bucket);
+            else if (dictionary.overflowed)
+                copySetAt(index, dictionary.overflowBucket(keyFor(what)));
+        }
+        return index;
+    }
+
+    @Override
+    public int estimateSingleBucket(final V what) {
+        if (null == what || dictionary.overflowed)
+            return super.estimateSingleBucket(what);
+        final Integer bucket = dictionary.buckets.get(keyFor(what));
+        return null == bucket ? 0 : setAt(bucket).size();
+    }
+
+    @Override
+    public Index<T, V> lessThan(final V what) {
+        return null;
+    }
+
+    @Override
+    public Index<T, V> greaterThan(final V what) {
+        return null;
+    }
+
+    /**
+     * Looks up the bucket of a value, without handing out a bucket to a value never added
+     */
+    @Override
+    protected int whichBucket(final V object) {
+        final Object key = keyFor(object);
+        final Integer bucket = dictionary.buckets.get(key);
+        return null == bucket ? dictionary.overflowBucket(key) : bucket;
+    }
+
+    @Override
+    protected int whichBucketToAdd(final V object) {
+        return dictionary.bucketFor(keyFor(object));
+    }
+
+    /**
+     * The key under which a value is kept: numbers with no fractional part become longs, the other
+     * numbers doubles, so values of different classes are equal whenever SQL says they are.
+     *
+     * @param value the value of the column, or the value we are looking for
+     *
+     * @return the key
+     */
+    static Object keyFor(final Object value) {
+        if (!(value instanceof Number))
+            return value;
+        final boolean floating = value instanceof NumberWrapper
+                ? ((NumberWrapper) value).isDouble() : ClassUtil.isFloatPrecision(value.getClass());
+        if (!floating)
+            return ((Number) value).longValue();
+        final double number = ((Number) value).doubleValue();
+        final long integral = (long) number;
+        return number == integral ? (Object) integral : (Object) number;
+    }
+
+    /**
+     * The buckets handed out to the values so far, shared by an index and all its copies
+     */
+    private static final class Dictionary {
+        final ConcurrentMap<Object, Integer> buckets = new ConcurrentHashMap<Object, Integer>();
+        final AtomicInteger next = new AtomicInteger();
+        final int totalBuckets;
+        final Function<Object, Integer> newBucket = new Function<Object, Integer>() {
+            @Override
+            public Integer apply(final Object key) {
+                if (overflowed)
+                    return null;
+                final int bucket = next.getAndIncrement();
+                if (bucket < totalBuckets)
+                    return bucket;
+                overflowed = true;
+                return null;
+            }
+        };
+        volatile boolean overflowed;
+
+        Dictionary(final int totalBuckets) {
+            this.totalBuckets = totalBuckets;
+        }
+
+        int bucketFor(final Object key) {
+            final Integer bucket = buckets.computeIfAbsent(key, newBucket);
+            return null == bucket ? overflowBucket(key) : bucket;
+        }
+
+        int overflowBucket(final Object key) {
+            return Math.abs(key.hashCode() % totalBuckets);
+        }
+    }
+}
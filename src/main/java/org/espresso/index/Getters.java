@@ -0,0 +1,309 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.lang.Character.toLowerCase;
+import static java.lang.Character.toUpperCase;
+
+/**
+ * Resolves columns to accessors. A column NAME_LIKE_THIS is read through the public getter
+ * getNameLikeThis() or isNameLikeThis() if the row type has one, and through the field
+ * nameLikeThis otherwise. The interpreter, the compiler and the indices all resolve columns here,
+ * so they agree on what a column means.
+ * <p>
+ * Each column is resolved once per row type. Accessors to public members of public types are
+ * generated with LambdaMetafactory, so reading a column costs about as much as calling the getter
+ * directly; the others go through a MethodHandle. Columns of primitive numeric types also get an
+ * accessor that does not box (see LongGetter and DoubleGetter).
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public final class Getters {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final ClassValue<ConcurrentMap<String, Accessor>> accessors =
+            new ClassValue<ConcurrentMap<String, Accessor>>() {
+                @Override
+                protected ConcurrentMap<String, Accessor> computeValue(final Class<?> type) {
+                    return new ConcurrentHashMap<String, Accessor>();
+                }
+            };
+
+    private Getters() {}
+
+    /**
+     * Finds the member that holds a column: the public getter, or the field if there is no getter
+     *
+     * @param rowType the row type
+     * @param column the column name
+     *
+     * @return the getter (a Method) or the field (a Field)
+     *
+     * @throws IllegalArgumentException if the row type has neither
+     */
+    public static Member findMember(final Class<?> rowType, final String column) {
+        final String name = convertToCamelBack(column);
+        for (final String prefix : new String[]{"get", "is"})
+            try {
+                final Method method = rowType.getMethod(prefix + name);
+                if (void.class != method.getReturnType() && !Modifier.isStatic(method.getModifiers()))
+                    return method;
+            } catch (final NoSuchMethodException ignored) {
+                // try the next one
+            }
+        final String fieldName = toLowerCase(name.charAt(0)) + name.substring(1);
+        for (Class<?> current = rowType; null != current; current = current.getSuperclass())
+            try {
+                final Field field = current.getDeclaredField(fieldName);
+                if (!Modifier.isStatic(field.getModifiers()))
+                    return field;
+            } catch (final NoSuchFieldException ignored) {
+                // try the superclass
+            }
+        throw new IllegalArgumentException("Could not find getter get" + name + " or field " + fieldName
+                + " for column " + column + " in " + rowType.getName());
+    }
+
+    /**
+     * The type of a column, as declared by its getter or field
+     *
+     * @param rowType the row type
+     * @param column the column name
+     *
+     * @return the declared type, possibly primitive
+     *
+     * @throws IllegalArgumentException if the column cannot be found
+     */
+    public static Class<?> typeOf(final Class<?> rowType, final String column) {
+        return accessor(rowType, column).type;
+    }
+
+    /**
+     * Accessor to a column; primitive values are boxed
+     *
+     * @param rowType the row type
+     * @param column the column name
+     *
+     * @return the accessor
+     *
+     * @throws IllegalArgumentException if the column cannot be found
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Getter<T, Object> forColumn(final Class<T> rowType, final String column) {
+        return (Getter<T, Object>) accessor(rowType, column).getter;
+    }
+
+    /**
+     * Accessor to a column of a known type, suitable for building indices
+     *
+     * @param rowType the row type
+     * @param column the column name
+     * @param type the type of the values, the wrapper type for primitive columns
+     *
+     * @return the accessor
+     *
+     * @throws IllegalArgumentException if the column cannot be found or is not of the given type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, V> Getter<T, V> forColumn(final Class<T> rowType, final String column,
+            final Class<V> type) {
+        final Accessor accessor = accessor(rowType, column);
+        if (!type.isAssignableFrom(MethodType.methodType(accessor.type).wrap().returnType()))
+            throw new IllegalArgumentException("Column " + column + " of " + rowType.getName() + " is a "
+                    + accessor.type.getName() + ", not a " + type.getName());
+        return (Getter<T, V>) accessor.getter;
+    }
+
+    /**
+     * Unboxed accessor to a column of type byte, short, int or long
+     *
+     * @param rowType the row type
+     * @param column the column name
+     *
+     * @return the accessor, or null if the column is not of an integral primitive type
+     *
+     * @throws IllegalArgumentException if the column cannot be found
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> LongGetter<T> forLongColumn(final Class<T> rowType, final String column) {
+        return (LongGetter<T>) accessor(rowType, column).longGetter;
+    }
+
+    /**
+     * Unboxed accessor to a column of type float or double
+     *
+     * @param rowType the row type
+     * @param column the column name
+     *
+     * @return the accessor, or null if the column is not of a floating point primitive type
+     *
+     * @throws IllegalArgumentException if the column cannot be found
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> DoubleGetter<T> forDoubleColumn(final Class<T> rowType, final String column) {
+        return (DoubleGetter<T>) accessor(rowType, column).doubleGetter;
+    }
+
+    /**
+     * Helper to convert a column NAME_LIKE_THIS to NameLikeThis.
+     * @param name column name
+     * @return the camel back name
+     */
+    public static String convertToCamelBack(final String name) {
+        final StringBuilder builder = new StringBuilder();
+        boolean toUpper = true;
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if ('_' == c)
+                toUpper = true;
+            else {
+                builder.append(toUpper ? toUpperCase(c) : toLowerCase(c));
+                toUpper = false;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static Accessor accessor(final Class<?> rowType, final String column) {
+        final ConcurrentMap<String, Accessor> columns = accessors.get(rowType);
+        Accessor accessor = columns.get(column);
+        if (null == accessor) {
+            accessor = new Accessor(rowType, findMember(rowType, column));
+            final Accessor existing = columns.putIfAbsent(column, accessor);
+            if (null != existing)
+                accessor = existing;
+        }
+        return accessor;
+    }
+
+    /**
+     * The accessors to a column: boxed, and unboxed if the column is a primitive number
+     */
+    private static final class Accessor {
+        final Class<?> type;
+        final Getter<?, ?> getter;
+        final LongGetter<?> longGetter;
+        final DoubleGetter<?> doubleGetter;
+
+        Accessor(final Class<?> rowType, final Member member) {
+            final MethodHandle handle;
+            try {
+                if (!isPublic(rowType, member))
+                    ((AccessibleObject) member).setAccessible(true);
+                handle = member instanceof Method ? LOOKUP.unreflect((Method) member)
+                        : LOOKUP.unreflectGetter((Field) member);
+            } catch (final IllegalAccessException e) {
+                throw new IllegalArgumentException("Cannot access " + member, e);
+            } catch (final RuntimeException e) {
+                throw new IllegalArgumentException("Cannot access " + member, e);
+            }
+            type = handle.type().returnType();
+            // Lambdas can only be spun for public getters of types our class loader can see
+            final boolean spin = member instanceof Method && isPublic(rowType, member) && isVisible(rowType);
+            getter = (Getter<?, ?>) implement(Getter.class, "get", Object.class, rowType, handle, spin);
+            longGetter = long.class == type || int.class == type || short.class == type || byte.class == type
+                    ? (LongGetter<?>) implement(LongGetter.class, "getLong", long.class, rowType, handle, spin)
+                    : null;
+            doubleGetter = double.class == type || float.class == type
+                    ? (DoubleGetter<?>) implement(DoubleGetter.class, "getDouble", double.class, rowType, handle, spin)
+                    : null;
+        }
+
+        /**
+         * Implements one of the getter interfaces on top of the handle, with a lambda if possible
+         */
+        private static Object implement(final Class<?> getterType, final String method, final Class<?> returnType,
+                final Class<?> rowType, final MethodHandle handle, final boolean spin) {
+            if (spin)
+                try {
+                    return LambdaMetafactory.metafactory(LOOKUP, method, MethodType.methodType(getterType),
+                            MethodType.methodType(returnType, Object.class), handle,
+                            MethodType.methodType(returnType, rowType)).getTarget().invoke();
+                } catch (final Throwable ignored) {
+                    // Fall back to the method handle
+                }
+            final MethodHandle adapted = handle.asType(MethodType.methodType(returnType, Object.class));
+            if (long.class == returnType)
+                return new LongGetter<Object>() {
+                    @Override
+                    public long getLong(final Object row) {
+                        try {
+                            return (long) adapted.invokeExact(row);
+                        } catch (final Throwable e) {
+                            throw rethrow(e);
+                        }
+                    }
+                };
+            if (double.class == returnType)
+                return new DoubleGetter<Object>() {
+                    @Override
+                    public double getDouble(final Object row) {
+                        try {
+                            return (double) adapted.invokeExact(row);
+                        } catch (final Throwable e) {
+                            throw rethrow(e);
+                        }
+                    }
+                };
+            return new Getter<Object, Object>() {
+                @Override
+                public Object get(final Object row) {
+                    try {
+                        return adapted.invokeExact(row);
+                    } catch (final Throwable e) {
+                        throw rethrow(e);
+                    }
+                }
+            };
+        }
+
+        private static boolean isPublic(final Class<?> rowType, final Member member) {
+            if (!Modifier.isPublic(member.getModifiers()))
+                return false;
+            for (Class<?> current = rowType; null != current; current = current.getEnclosingClass())
+                if (!Modifier.isPublic(current.getModifiers()))
+                    return false;
+            return Modifier.isPublic(member.getDeclaringClass().getModifiers());
+        }
+
+        private static boolean isVisible(final Class<?> rowType) {
+            try {
+                return rowType == Class.forName(rowType.getName(), false, Getters.class.getClassLoader());
+            } catch (final ClassNotFoundException e) {
+                return false;
+            }
+        }
+
+        private static RuntimeException rethrow(final Throwable e) {
+            if (e instanceof RuntimeException)
+                return (RuntimeException) e;
+            if (e instanceof Error)
+                throw (Error) e;
+            return new RuntimeException(e);
+        }
+    }
+}
@@ -36,6 +36,23 @@ public class HashIndex<T, V>
         return new HashIndex<T, V>(type, name, column);
     }
 
+    /**
+     * Builds an index over a column of the row type, read the same way the where clause reads it
+     * (see Getters)
+     *
+     * @param rowType the row type
+     * @param type the type of the column, the wrapper type for primitive columns
+     * @param name the column name
+     *
+     * @return the index
+     *
+     * @throws IllegalArgumentException if the row type has no such column, or it is of another type
+     */
+    public static <T, V> Index<T, V> newIndex(final Class<T> rowType, final Class<V> type,
+            final String name) {
+        return new HashIndex<T, V>(type, name, Getters.forColumn(rowType, name, type));
+    }
+
     private HashIndex(final Class<V> type, final String name, final Getter<T, V> column,
             final int totalBuckets) {
         super(type, name, column, totalBuckets);
@@ -16,9 +16,16 @@
 package org.espresso.index;
 
 import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static org.espresso.util.Sets.newConcurrentSet;
 
@@ -38,6 +45,11 @@ import static org.espresso.util.Sets.newConcurrentSet;
  * immutable, i.e., they are never replaced. The sets themselves may change, but they are shared
  * across all the different copies of indices over the same column.
  * <p/>
+ * Buckets start out with a shared, immutable empty set, and get a set of their own when the first
+ * element is added to them. Restrictions (singleBucket, lessThan, intersection...) never add
+ * elements, so building one costs the array of buckets plus the buckets they select, rather than
+ * a set for every bucket.
+ * <p/>
  * Nulls are easily handled with this approach - elements with corresponding null attributes
  * are placed in a special bucket. Although this complicates the processing of indices a bit, it
  * avoids having to take byzantine measures such as wrapping nulls with some special class, or
@@ -53,6 +65,10 @@ public abstract class Index<T, V>
         extends AbstractSet<T>
         implements Cloneable {
     private static final int DEFAULT_BUCKETS = 1024;
+    private static final Set EMPTY = Collections.emptySet();
+    // Estimated bytes taken by the concurrent set of a bucket, and by each element of the set
+    private static final long SET_BYTES = 168;
+    private static final long ELEMENT_BYTES = 40;
 
     private final Class<V> type;
     private final String name;
@@ -60,6 +76,8 @@ public abstract class Index<T, V>
     protected final int totalBuckets;
     private final Set<T>[] buckets;
     private Set<T> nullBucket;
+    private final LongAdder count = new LongAdder();
+    private boolean restriction;
 
     /**
      * Builds an index given the number of buckets and the associated column.  The column name is
@@ -77,9 +95,8 @@ public abstract class Index<T, V>
         this.column = column;
         this.name = name.toLowerCase();
         buckets = new Set[totalBuckets];
-        for (int i = 0; i < totalBuckets; i++)
-            buckets[i] = newSet();
-        nullBucket = newSet();
+        Arrays.fill(buckets, EMPTY);
+        nullBucket = EMPTY;
     }
 
     /**
@@ -114,6 +131,25 @@ public abstract class Index<T, V>
         return buckets[bucket];
     }
 
+    /**
+     * Returns the set of a bucket, giving the bucket a set of its own if it still has the shared
+     * empty set, so elements can be added to it
+     *
+     * @param bucket the bucket number, totalBuckets for the null bucket
+     *
+     * @return the set of the bucket
+     */
+    private Set<T> modifiableSetAt(final int bucket) {
+        final Set<T> set = bucket == totalBuckets ? nullBucket : buckets[bucket];
+        if (EMPTY != set)
+            return set;
+        synchronized (buckets) {
+            if (bucket == totalBuckets)
+                return EMPTY == nullBucket ? nullBucket = newSet() : nullBucket;
+            return EMPTY == buckets[bucket] ? buckets[bucket] = newSet() : buckets[bucket];
+        }
+    }
+
     /**
      * Copies the set contained by the given bucket to the destination
      *
@@ -122,6 +158,25 @@ public abstract class Index<T, V>
      */
     protected void copySetAt(final Index<T, V> destination, final int bucket) {
         destination.buckets[bucket] = buckets[bucket];
+        destination.restriction = true;
+    }
+
+    /**
+     * Copies to the destination only the elements of the given bucket that pass the filter, e.g.,
+     * to drop the elements of a boundary bucket that fall outside a range. The elements are copied
+     * to a new set, so the set of this index is left untouched.
+     *
+     * @param destination Index to where the elements should be copied
+     * @param bucket the bucket number
+     * @param filter which elements to copy
+     */
+    protected void copySetAt(final Index<T, V> destination, final int bucket, final Predicate<? super T> filter) {
+        final Set<T> filtered = newSet();
+        for (final T element : buckets[bucket])
+            if (filter.test(element))
+                filtered.add(element);
+        destination.buckets[bucket] = filtered;
+        destination.restriction = true;
     }
 
     /**
@@ -132,6 +187,7 @@ public abstract class Index<T, V>
      */
     protected void copyNullSet(final Index<T, V> destination, final Index<T, V> source) {
         destination.nullBucket = source.nullBucket;
+        destination.restriction = true;
     }
 
     /**
@@ -146,6 +202,18 @@ public abstract class Index<T, V>
         return column.equals(other.column) && totalBuckets == other.totalBuckets;
     }
 
+    /**
+     * Whether every bucket holds elements with a single value of the column, so the elements of
+     * the bucket returned by singleBucket are exactly the ones equal to the value. Exact indices
+     * can answer counts over equality restrictions straight from the size of the buckets. Note
+     * that the null bucket only ever holds elements whose column is null, for any index.
+     *
+     * @return true if the index is exact, false if it only restricts the elements to traverse
+     */
+    public boolean isExact() {
+        return false;
+    }
+
     /**
      * Creates an instance of this index. This is required because the Index class is abstract.
      *
@@ -172,6 +240,19 @@ public abstract class Index<T, V>
      */
     protected abstract int whichBucket(final V object);
 
+    /**
+     * Calculates the bucket where an object being added should be placed. This is whichBucket,
+     * unless the index hands out buckets to the values as they are added, in which case looking
+     * up a value never added should not take one.
+     *
+     * @param object The object being added
+     *
+     * @return the bucket where the object should be placed.
+     */
+    protected int whichBucketToAdd(final V object) {
+        return whichBucket(object);
+    }
+
     /**
      * Returns an index that represents a subset of the buckets that are less than or equal to the
      * object that was passed as a parameter
@@ -214,6 +295,7 @@ public abstract class Index<T, V>
      */
     public Index<T, V> singleBucket(final V what) {
         final Index<T, V> index = newIndex();
+        index.restriction = true;
         if (null == what)
             copyNullSet(index, this);
         else
@@ -221,10 +303,31 @@ public abstract class Index<T, V>
         return index;
     }
 
+    /**
+     * Returns an index with the buckets of all the values populated, as a single index rather than
+     * a union of single buckets, e.g., for IN lists. Like singleBucket, it is a superset of the
+     * elements equal to any of the values.
+     *
+     * @param values the values to compare, null for the elements whose column is null
+     *
+     * @return the index representing the subset
+     */
+    public Index<T, V> multipleBuckets(final Collection<? extends V> values) {
+        final Index<T, V> index = newIndex();
+        index.restriction = true;
+        for (final V what : values)
+            if (null == what)
+                copyNullSet(index, this);
+            else
+                copySetAt(index, whichBucket(what));
+        return index;
+    }
+
     /**
      * Calculates the intersection between two indices. If they are not compatible, then return null
      * to indicate. The intersection basically selects the buckets that are populated on both
-     * indices
+     * indices; buckets holding different sets of elements, such as those of a restriction that
+     * kept only some of the elements of a bucket, are intersected element by element.
      *
      * @param other the index to which we want to intersect
      *
@@ -234,18 +337,59 @@ public abstract class Index<T, V>
         if (!isCompatibleWith(other))
             return null;
         final Index<T, V> copy = newIndex();
+        copy.restriction = true;
         for (int i = 0; i < totalBuckets; i++)
             if (!buckets[i].isEmpty() && !other.buckets[i].isEmpty())
-                copy.buckets[i] = buckets[i];
+                copy.buckets[i] = intersect(buckets[i], other.buckets[i]);
         if (!nullBucket.isEmpty() && !other.nullBucket.isEmpty())
+            copy.nullBucket = intersect(nullBucket, other.nullBucket);
+        return copy;
+    }
+
+    /**
+     * Calculates the elements of this index that are not in the other one. The difference selects
+     * the buckets that are populated on this index but not on the other one; buckets populated on
+     * both with different sets of elements are subtracted element by element. Note that this only
+     * tells which elements are not in a restriction if the restriction is exact.
+     *
+     * @param other the index with the elements to leave out
+     *
+     * @return the difference, or null if they are not compatible
+     */
+    public Index<T, V> difference(final Index<T, V> other) {
+        if (!isCompatibleWith(other))
+            return null;
+        final Index<T, V> copy = newIndex();
+        copy.restriction = true;
+        for (int i = 0; i < totalBuckets; i++)
+            if (other.buckets[i].isEmpty())
+                copy.buckets[i] = buckets[i];
+            else if (buckets[i] != other.buckets[i] && !buckets[i].isEmpty())
+                copy.buckets[i] = subtract(buckets[i], other.buckets[i]);
+        if (other.nullBucket.isEmpty())
             copy.nullBucket = nullBucket;
+        else if (nullBucket != other.nullBucket && !nullBucket.isEmpty())
+            copy.nullBucket = subtract(nullBucket, other.nullBucket);
         return copy;
     }
 
+    /**
+     * Returns an index with every bucket populated but the null bucket, i.e., with exactly the
+     * elements whose column is not null
+     *
+     * @return the index representing the subset
+     */
+    public Index<T, V> notNull() {
+        final Index<T, V> index = newIndex();
+        for (int i = 0; i < totalBuckets; i++)
+            copySetAt(index, i);
+        return index;
+    }
+
     /**
      * Calculates the union between two indices. If they are not compatible, then return null to
      * indicate. The union basically selects the buckets that are populated in one of the two
-     * indices.
+     * indices; buckets populated on both with different sets of elements are merged.
      *
      * @param other the index to which we want the union
      *
@@ -255,15 +399,35 @@ public abstract class Index<T, V>
         if (!isCompatibleWith(other))
             return null;
         final Index<T, V> copy = newIndex();
+        copy.restriction = true;
+        for (int i = 0; i < totalBuckets; i++)
+            copy.buckets[i] = merge(buckets[i], other.buckets[i]);
+        copy.nullBucket = merge(nullBucket, other.nullBucket);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this index with only the elements that pass the filter, e.g., the ones that
+     * are also in the restrictions of other, incompatible indices. The elements are copied to new
+     * sets, so the sets of this index are left untouched.
+     *
+     * @param filter which elements to keep
+     *
+     * @return the index with the elements that passed the filter
+     */
+    public Index<T, V> filter(final Predicate<? super T> filter) {
+        final Index<T, V> copy = newIndex();
+        copy.restriction = true;
         for (int i = 0; i < totalBuckets; i++)
             if (!buckets[i].isEmpty())
-                copy.buckets[i] = buckets[i];
-            else
-                copy.buckets[i] = other.buckets[i];
-        if (nullBucket.isEmpty())
-            copy.nullBucket = other.nullBucket;
-        else
-            copy.nullBucket = nullBucket;
+                copySetAt(copy, i, filter);
+        if (!nullBucket.isEmpty()) {
+            final Set<T> filtered = newSet();
+            for (final T element : nullBucket)
+                if (filter.test(element))
+                    filtered.add(element);
+            copy.nullBucket = filtered;
+        }
         return copy;
     }
 
@@ -277,9 +441,10 @@ public abstract class Index<T, V>
     @Override
     public boolean add(final T element) {
         final V object = getColumnValue(element);
-        if (null == object)
-            return nullBucket.add(element);
-        return setAt(whichBucket(object)).add(element);
+        final boolean added = modifiableSetAt(null == object ? totalBuckets : whichBucketToAdd(object)).add(element);
+        if (added)
+            count.increment();
+        return added;
     }
 
     /**
@@ -291,17 +456,39 @@ public abstract class Index<T, V>
      */
     @Override
     public boolean remove(final Object element) {
+        final V object = getColumnValue((T) element);
+        final boolean removed = null == object ? nullBucket.remove(element)
+                : setAt(whichBucket(object)).remove(element);
+        if (removed)
+            count.decrement();
+        return removed;
+    }
+
+    /**
+     * Whether the index holds an element, looking it up in the bucket of its value rather than
+     * going over all elements. As with remove, the value of the column is assumed not to have
+     * changed since the element was added.
+     *
+     * @param element the element to look for
+     *
+     * @return true if the element is in the index
+     */
+    @Override
+    public boolean contains(final Object element) {
         final V object = getColumnValue((T) element);
         if (null == object)
-            return nullBucket.remove(element);
-        return setAt(whichBucket(object)).remove(element);
+            return nullBucket.contains(element);
+        return buckets[whichBucket(object)].contains(element);
     }
 
     /** Make this an empty index (supporting the Set standard) */
     @Override
     public void clear() {
-        for (int i = 0; i < totalBuckets; i++)
-            buckets[i] = newSet();
+        synchronized (buckets) {
+            Arrays.fill(buckets, EMPTY);
+            nullBucket = EMPTY;
+        }
+        count.reset();
     }
 
     /** Creates an iterator to go over all elements of this index */
@@ -347,16 +534,159 @@ public abstract class Index<T, V>
     }
 
     /**
-     * Computes the number of elements of this index
+     * Creates a spliterator that splits the index along its buckets, so the buckets can be
+     * traversed in parallel. Once a single bucket is left, it is split using the spliterator of the
+     * bucket itself. The encounter order is the same as the iterator's.
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return new BucketSpliterator(0, totalBuckets + 1);
+    }
+
+    /**
+     * Computes the number of elements of this index. The index keeps count of the elements added to
+     * and removed from it, so this takes constant time; restrictions add up the sizes of their
+     * buckets instead.
      *
      * @return the number of elements
      */
     @Override
     public int size() {
+        if (!restriction)
+            return count.intValue();
+        return countBuckets(0, totalBuckets - 1) + nullBucket.size();
+    }
+
+    /**
+     * Estimates how many elements singleBucket would return, without building the index: the size
+     * of the bucket of the value, which its set keeps track of as elements come and go.
+     *
+     * @param what object to compare
+     *
+     * @return the estimate, or -1 if the index does not restrict over the value
+     */
+    public int estimateSingleBucket(final V what) {
+        return null == what ? nullBucket.size() : buckets[whichBucket(what)].size();
+    }
+
+    /**
+     * Estimates how many elements lessThan would return, without building the index
+     *
+     * @param what the object to compare to
+     *
+     * @return the estimate, or -1 if the index does not support the less than operation
+     */
+    public int estimateLessThan(final V what) {
+        return -1;
+    }
+
+    /**
+     * Estimates how many elements greaterThan would return, without building the index
+     *
+     * @param what the object to compare to
+     *
+     * @return the estimate, or -1 if the index does not support the greater than operation
+     */
+    public int estimateGreaterThan(final V what) {
+        return -1;
+    }
+
+    /**
+     * Estimates the memory taken by the index, in bytes, not counting the elements themselves: the
+     * array of buckets, plus the concurrent set of each populated bucket, with an entry for each of
+     * its elements. Restrictions share the sets of the index they were made from, so this is only
+     * meaningful for the index itself.
+     *
+     * @return the estimated size
+     */
+    public long memoryFootprint() {
+        long size = 16 + 4L * totalBuckets;
+        for (int i = 0; i <= totalBuckets; i++) {
+            final Set<T> set = i == totalBuckets ? nullBucket : buckets[i];
+            if (EMPTY != set)
+                size += SET_BYTES + ELEMENT_BYTES * set.size();
+        }
+        return size;
+    }
+
+    /**
+     * Adds up the sizes of a range of buckets
+     *
+     * @param from the first bucket
+     * @param to the last bucket, included
+     *
+     * @return the number of elements in the buckets
+     */
+    protected int countBuckets(final int from, final int to) {
         int size = 0;
-        for (int i = 0; i < totalBuckets; i++)
+        for (int i = from; i <= to; i++)
             size += buckets[i].size();
-        return size + nullBucket.size();
+        return size;
+    }
+
+    /**
+     * Spliterator over the buckets [from, to) of this index - bucket totalBuckets being the null
+     * bucket. Splitting hands over the first half of the buckets not yet started.
+     */
+    private final class BucketSpliterator implements Spliterator<T> {
+        private int from;
+        private final int to;
+        private Spliterator<T> current;
+
+        BucketSpliterator(final int from, final int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            for (; ; ) {
+                if (null != current && current.tryAdvance(action))
+                    return true;
+                if (from >= to)
+                    return false;
+                current = bucketAt(from++).spliterator();
+            }
+        }
+
+        @Override
+        public void forEachRemaining(final Consumer<? super T> action) {
+            if (null != current)
+                current.forEachRemaining(action);
+            for (; from < to; from++)
+                bucketAt(from).forEach(action);
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (null == current && 1 < to - from) {
+                final int middle = (from + to) >>> 1;
+                final Spliterator<T> prefix = new BucketSpliterator(from, middle);
+                from = middle;
+                return prefix;
+            }
+            if (null == current && 1 == to - from)
+                current = bucketAt(from++).spliterator();
+            // Splitting the bucket being traversed keeps the encounter order only if it is the last
+            return null != current && from == to ? current.trySplit() : null;
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = null == current ? 0 : current.estimateSize();
+            for (int i = from; i < to; i++)
+                size += bucketAt(i).size();
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL | CONCURRENT;
+        }
+
+        private Set<T> bucketAt(final int bucket) {
+            return bucket == totalBuckets ? nullBucket : buckets[bucket];
+        }
     }
 
     /**
@@ -367,4 +697,38 @@ public abstract class Index<T, V>
     private static <T> Set<T> newSet() {
         return newConcurrentSet();
     }
+
+    /** The elements in both sets, which are shared if they are the same set */
+    private static <T> Set<T> intersect(final Set<T> left, final Set<T> right) {
+        if (left == right)
+            return left;
+        final Set<T> smaller = left.size() < right.size() ? left : right;
+        final Set<T> larger = smaller == left ? right : left;
+        final Set<T> both = newSet();
+        for (final T element : smaller)
+            if (larger.contains(element))
+                both.add(element);
+        return both;
+    }
+
+    /** The elements of the first set that are not in the second one, which are different sets */
+    private static <T> Set<T> subtract(final Set<T> left, final Set<T> right) {
+        final Set<T> difference = newSet();
+        for (final T element : left)
+            if (!right.contains(element))
+                difference.add(element);
+        return difference;
+    }
+
+    /** The elements in either set, which are shared if only one of the sets is populated */
+    private static <T> Set<T> merge(final Set<T> left, final Set<T> right) {
+        if (left.isEmpty())
+            return right;
+        if (right.isEmpty() || left == right)
+            return left;
+        final Set<T> either = newSet();
+        either.addAll(left);
+        either.addAll(right);
+        return either;
+    }
 }
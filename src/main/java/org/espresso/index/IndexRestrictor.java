@@ -19,7 +19,15 @@ import org.espresso.extension.DateExtension;
 import org.espresso.token.*;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * This class traverses a SqlExpression representing a where clause looking for opportunities to
@@ -28,13 +36,42 @@ import java.util.Iterator;
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
 public final class IndexRestrictor<T> {
+    /**
+     * How much more it costs to go over an element through the buckets of an index than over an
+     * element of the original collection, roughly, as measured by ScanBenchmark. The indices are
+     * only used when they are expected to cut the elements to traverse by more than this.
+     */
+    static final int INDEX_ROW_COST = 4;
+
+    /**
+     * The largest share of the elements a restriction over another index may be expected to keep
+     * for it to be worth probing the elements against it (see intersect): probing an element costs
+     * about as much as checking the where clause against it.
+     */
+    static final double PROBE_SELECTIVITY = 0.5;
 
     private final DateExtension dateProcessor;
     private final Indices<T> indices;
+    private final Object[] parameters;
+    private int rows = -1;
+    private final List<SqlExpressionNode> answered = new ArrayList<SqlExpressionNode>();
 
     public IndexRestrictor(final DateExtension dateProcessor, final Indices<T> indices) {
+        this(dateProcessor, indices, new Object[0]);
+    }
+
+    /**
+     * Builds a restrictor for a where clause with bind variables
+     *
+     * @param dateProcessor converts date strings to dates
+     * @param indices the supporting indices
+     * @param parameters the values bound to the bind variables, one per slot
+     */
+    public IndexRestrictor(final DateExtension dateProcessor, final Indices<T> indices,
+            final Object[] parameters) {
         this.dateProcessor = dateProcessor;
         this.indices = indices;
+        this.parameters = parameters;
     }
 
     /**
@@ -52,14 +89,350 @@ public final class IndexRestrictor<T> {
      */
     public <V> Iterator<T> restrict(final SqlSelect select, final Iterator<T> original)
             throws SQLException {
-        if (null == indices)
-            return original;
-        final Index<T, V> restricted = restrictSqlExpressionNode(select.getWhereClause());
+        final Index<T, V> restricted = restrict(select);
         if (null == restricted)
             return original;
         return restricted.iterator();
     }
 
+    /**
+     * Returns the index that should be used to restrict the where clause, or null if the indices
+     * do not help. Unlike the iterator, the index can be split by buckets and traversed in
+     * parallel. The indices do not help if, judging by the size of their buckets, traversing the
+     * elements they select would take longer than traversing the whole collection (see
+     * INDEX_ROW_COST).
+     * <p>
+     * The elements of the restriction still need to be checked against the where clause, but for
+     * the conjuncts of an AND where clause that the restriction answered exactly (see
+     * getAnswered).
+     *
+     * @param select the select statement over which to restrict
+     *
+     * @return the restricted index, or null if the whole collection needs to be traversed
+     * @throws java.sql.SQLException if where cause is badly constructed. Shouldn't happen, as the
+     * parsing of the SQL statement should catch those cases.
+     */
+    public <V> Index<T, V> restrict(final SqlSelect select)
+            throws SQLException {
+        answered.clear();
+        if (null == indices)
+            return null;
+        final SqlExpressionNode where = select.getWhereClause();
+        final long estimate = estimate(where);
+        if (0 <= estimate && estimate * INDEX_ROW_COST > rows)
+            return null;
+        if (!(where instanceof SqlExpression)
+                || !SqlBooleanOperator.AND.name().equals(((SqlExpression) where).getOperator()))
+            return restrictSqlExpressionNode(where);
+        final Set<SqlExpressionNode> exact = Collections.newSetFromMap(new IdentityHashMap<SqlExpressionNode, Boolean>());
+        final Index<T, V> restricted = andRestriction(((SqlExpression) where).iterator(), exact);
+        // All conjuncts are only answered when restrictExactly answers the whole where clause
+        boolean checked = false;
+        for (final Object conjunct : (SqlExpression) where)
+            if (exact.contains(conjunct))
+                answered.add((SqlExpressionNode) conjunct);
+            else
+                checked = true;
+        if (null == restricted || !checked)
+            answered.clear();
+        return restricted;
+    }
+
+    /**
+     * The conjuncts of the where clause that the last restriction (see restrict) answered exactly,
+     * i.e., the ones every element of the restriction matches, in where clause order. Those come
+     * from exact indices (see Index.isExact), so restrictions over ranges of buckets never answer
+     * anything, and the elements still need to be checked against the whole where clause.
+     *
+     * @return the conjuncts there is no need to check, empty if all need to be checked
+     */
+    public List<SqlExpressionNode> getAnswered() {
+        return Collections.unmodifiableList(answered);
+    }
+
+    /**
+     * Returns the part of an AND where clause that is left to check once some of its conjuncts
+     * were answered by the indices (see getAnswered)
+     *
+     * @param where the where clause
+     * @param answered the conjuncts of the where clause there is no need to check
+     *
+     * @return the remaining conjuncts - ANDed, unless there is a single one
+     */
+    public static <E> SqlExpressionNode<E> residual(final SqlExpressionNode<E> where,
+            final List<SqlExpressionNode> answered) {
+        if (answered.isEmpty())
+            return where;
+        final List<SqlExpressionNode> remaining = new ArrayList<SqlExpressionNode>();
+        for (final Object conjunct : (SqlExpression) where)
+            if (!answered.contains(conjunct))
+                remaining.add((SqlExpressionNode) conjunct);
+        if (1 == remaining.size())
+            return remaining.get(0);
+        final SqlBooleanExpression<E> residual = new SqlBooleanExpression<E>(SqlBooleanOperator.AND);
+        for (final SqlExpressionNode conjunct : remaining)
+            residual.addOperand(conjunct);
+        return residual;
+    }
+
+    /**
+     * Estimates how many elements the indices would select for an expression, from the size of the
+     * buckets involved, without building any restriction. Only AND, OR, comparisons (but !=), IN,
+     * BETWEEN and IS [NOT] NULL are estimated.
+     *
+     * @param exp the where clause (or part of it, since this is recursive)
+     *
+     * @return the estimate, or -1 if there is none
+     * @throws java.sql.SQLException if where cause is badly constructed. Shouldn't happen, as the
+     * parsing of the SQL statement should catch those cases.
+     */
+    private long estimate(final SqlExpressionNode exp)
+            throws SQLException {
+        if (!(exp instanceof SqlExpression))
+            return -1;
+        final SqlExpression expression = (SqlExpression) exp;
+        final String operator = expression.getOperator();
+        if (SqlBooleanOperator.AND.name().equals(operator)) {
+            long smallest = -1;
+            for (final Object operand : expression) {
+                final long estimate = estimate((SqlExpressionNode) operand);
+                if (0 <= estimate && (0 > smallest || estimate < smallest))
+                    smallest = estimate;
+            }
+            return smallest;
+        }
+        if (SqlBooleanOperator.OR.name().equals(operator)) {
+            long sum = 0;
+            for (final Object operand : expression) {
+                final long estimate = estimate((SqlExpressionNode) operand);
+                if (0 > estimate)
+                    return -1;
+                sum += estimate;
+            }
+            return sum;
+        }
+        if (SqlInExpression.IN_OPERATOR.equals(operator)) {
+            final Index<T, Object> index = estimatingIndexFor(((SqlInExpression) expression).getColumn());
+            if (null == index)
+                return -1;
+            long sum = 0;
+            for (final Object option : expression) {
+                final Object value = valueFor((SqlExpressionNode) option);
+                final int estimate = null == value ? -1 : index.estimateSingleBucket(value);
+                if (0 > estimate)
+                    return -1;
+                sum += estimate;
+            }
+            return sum;
+        }
+        if (SqlIsNullExpression.IS_NULL_OPERATOR.equals(operator)
+                || SqlIsNullExpression.IS_NOT_NULL_OPERATOR.equals(operator)) {
+            final Index<T, Object> index = estimatingIndexFor(((SqlIsNullExpression) expression).getColumn());
+            if (null == index)
+                return -1;
+            final int nulls = index.estimateSingleBucket(null);
+            return SqlIsNullExpression.IS_NULL_OPERATOR.equals(operator) ? nulls : rows - nulls;
+        }
+        if (SqlBetweenExpression.BETWEEN_OPERATOR.equals(operator)) {
+            final Iterator<SqlExpressionNode> operands = expression.iterator();
+            final SqlExpressionNode column = operands.next();
+            final Index<T, Object> index = column instanceof SqlColumn ? estimatingIndexFor((SqlColumn) column) : null;
+            if (null == index)
+                return -1;
+            final Object lower = valueFor(operands.next());
+            final Object higher = valueFor(operands.next());
+            final int below = null == higher ? -1 : index.estimateLessThan(higher);
+            final int above = null == lower ? -1 : index.estimateGreaterThan(lower);
+            if (0 > below || 0 > above)
+                return -1;
+            // Both ranges hold all elements but the nulls, plus those in between twice
+            return Math.max(0, below + above - (rows - index.estimateSingleBucket(null)));
+        }
+        final boolean greater = SqlComparisonOperator.GE.toString().equals(operator)
+                || SqlComparisonOperator.GT.toString().equals(operator);
+        final boolean less = SqlComparisonOperator.LE.toString().equals(operator)
+                || SqlComparisonOperator.LT.toString().equals(operator);
+        if (!greater && !less && !SqlComparisonOperator.EQ.toString().equals(operator))
+            return -1;
+        final SqlExpressionNodePair pair = new SqlExpressionNodePair(expression.iterator());
+        final boolean columnFirst = pair.left instanceof SqlColumn;
+        if (!columnFirst && !(pair.right instanceof SqlColumn))
+            return -1;
+        final Index<T, Object> index = estimatingIndexFor((SqlColumn) (columnFirst ? pair.left : pair.right));
+        final Object value = valueFor(columnFirst ? pair.right : pair.left);
+        if (null == index || null == value)
+            return -1;
+        if (!greater && !less)
+            return index.estimateSingleBucket(value);
+        return greater == columnFirst ? index.estimateGreaterThan(value) : index.estimateLessThan(value);
+    }
+
+    /**
+     * Returns the index associated with a column, taking note of the number of elements in the
+     * collection the first time an index is found - all indices hold all elements.
+     *
+     * @param column the column used to lookup the index.
+     *
+     * @return the associated index, null if there isn't one.
+     */
+    private <V> Index<T, V> estimatingIndexFor(final SqlColumn column) {
+        final Index<T, V> index = indexFor(column);
+        if (null != index && 0 > rows)
+            rows = index.size();
+        return index;
+    }
+
+    /**
+     * Counts the elements matching the where clause straight from the size of the buckets, with
+     * no need to check each element (see restrictExactly).
+     *
+     * @param select the select statement to count
+     *
+     * @return how many elements match the where clause, or -1 if they need to be checked one by one
+     * @throws java.sql.SQLException if where cause is badly constructed. Shouldn't happen, as the
+     * parsing of the SQL statement should catch those cases.
+     */
+    public int count(final SqlSelect select)
+            throws SQLException {
+        final Index<T, Object> restricted = restrictExactly(select);
+        return null == restricted ? -1 : restricted.size();
+    }
+
+    /**
+     * Returns the index holding exactly the elements that match the where clause, so they need not
+     * be checked against it. This is only possible when the where clause is made of =, != and IN
+     * restrictions over a column with an exact index (see Index.isExact) and IS [NOT] NULL
+     * restrictions over any indexed column, combined with AND over any indices, and with OR and
+     * NOT over compatible indices - a single index, or bitmap indices over the same rows.
+     *
+     * @param select the select statement over which to restrict
+     *
+     * @return the elements matching the where clause, or null if they need to be checked one by one
+     * @throws java.sql.SQLException if where cause is badly constructed. Shouldn't happen, as the
+     * parsing of the SQL statement should catch those cases.
+     */
+    public <V> Index<T, V> restrictExactly(final SqlSelect select)
+            throws SQLException {
+        if (null == indices)
+            return null;
+        return exactRestriction(select.getWhereClause());
+    }
+
+    /**
+     * Traverses the expression recursively, as long as the indices can tell exactly which elements
+     * match each part of it
+     *
+     * @param exp the where clause (or part of it, since this is recursive)
+     *
+     * @return the elements matching the expression, or null if the indices cannot tell exactly
+     * @throws java.sql.SQLException if where cause is badly constructed. Shouldn't happen, as the
+     * parsing of the SQL statement should catch those cases.
+     */
+    private <V> Index<T, V> exactRestriction(final SqlExpressionNode exp)
+            throws SQLException {
+        if (!(exp instanceof SqlExpression))
+            return null;
+        final SqlExpression expression = (SqlExpression) exp;
+        final String operator = expression.getOperator();
+        if (SqlBooleanOperator.AND.name().equals(operator)) {
+            final List<Index<T, V>> candidates = new ArrayList<Index<T, V>>();
+            for (final Object operand : expression) {
+                final Index<T, V> temp = exactRestriction((SqlExpressionNode) operand);
+                if (null == temp)
+                    return null;
+                addCandidate(candidates, temp);
+            }
+            return intersect(candidates);
+        }
+        if (SqlBooleanOperator.OR.name().equals(operator)) {
+            Index<T, V> result = null;
+            for (final Object operand : expression) {
+                final Index<T, V> temp = exactRestriction((SqlExpressionNode) operand);
+                if (null == temp)
+                    return null;
+                result = null == result ? temp : result.union(temp);
+                if (null == result)
+                    return null;
+            }
+            return result;
+        }
+        if (SqlBooleanOperator.NOT.name().equals(operator))
+            return notRestriction((SqlExpressionNode) expression.iterator().next());
+        if (SqlIsNullExpression.IS_NULL_OPERATOR.equals(operator))
+            return isNullRestriction(((SqlIsNullExpression) expression).getColumn());
+        if (SqlIsNullExpression.IS_NOT_NULL_OPERATOR.equals(operator))
+            return isNotNullRestriction(((SqlIsNullExpression) expression).getColumn());
+        final SqlColumn column;
+        V value = null;
+        final boolean notEqual = SqlComparisonOperator.NE.toString().equals(operator);
+        if (SqlInExpression.IN_OPERATOR.equals(operator)) {
+            column = ((SqlInExpression) expression).getColumn();
+            for (final Object option : expression)
+                if (null == valueFor((SqlExpressionNode) option))
+                    return null;
+        } else if (notEqual || SqlComparisonOperator.EQ.toString().equals(operator)) {
+            final SqlExpressionNodePair pair = new SqlExpressionNodePair(expression.iterator());
+            if (pair.left instanceof SqlColumn && null != (value = valueFor(pair.right)))
+                column = (SqlColumn) pair.left;
+            else if (pair.right instanceof SqlColumn && null != (value = valueFor(pair.left)))
+                column = (SqlColumn) pair.right;
+            else
+                return null;
+        } else
+            return null;
+        final Index<T, V> index = indexFor(column);
+        if (null == index || !index.isExact())
+            return null;
+        if (notEqual)
+            return index.notNull().difference(index.singleBucket(value));
+        return restrictSqlExpression(expression);
+    }
+
+    /**
+     * Returns exactly the elements for which an expression is false, as long as the indices can tell
+     * exactly which ones make it true: those are taken out of all the elements of the index over a
+     * column of the expression. Note that comparisons against null columns are false rather than
+     * unknown, so NOT picks those elements up.
+     *
+     * @param exp the expression being negated
+     *
+     * @return the elements not matching the expression, or null if the indices cannot tell exactly
+     * @throws java.sql.SQLException if where cause is badly constructed. Shouldn't happen, as the
+     * parsing of the SQL statement should catch those cases.
+     */
+    private <V> Index<T, V> notRestriction(final SqlExpressionNode exp)
+            throws SQLException {
+        final Index<T, V> matching = exactRestriction(exp);
+        if (null == matching)
+            return null;
+        final SqlColumn column = columnOf(exp);
+        final Index<T, V> index = null == column ? null : indexFor(column);
+        return null == index ? null : index.difference(matching);
+    }
+
+    /**
+     * Finds a column the expression refers to
+     *
+     * @param exp the expression
+     *
+     * @return the first column found, or null if there is none
+     */
+    private static SqlColumn columnOf(final SqlExpressionNode exp) {
+        if (exp instanceof SqlColumn)
+            return (SqlColumn) exp;
+        if (exp instanceof SqlInExpression)
+            return ((SqlInExpression) exp).getColumn();
+        if (exp instanceof SqlIsNullExpression)
+            return ((SqlIsNullExpression) exp).getColumn();
+        if (exp instanceof SqlExpression)
+            for (final Object operand : (SqlExpression) exp) {
+                final SqlColumn column = columnOf((SqlExpressionNode) operand);
+                if (null != column)
+                    return column;
+            }
+        return null;
+    }
+
     /**
      * Traverses the expression recursively attempting to identify a smaller set
      *
@@ -91,7 +464,7 @@ public final class IndexRestrictor<T> {
         final String operator = sqlExpression.getOperator();
         final Iterator<SqlExpressionNode> operands = sqlExpression.iterator();
         if (SqlBooleanOperator.AND.name().equals(operator))
-            return andRestriction(operands);
+            return andRestriction(operands, null);
         if (SqlBooleanOperator.OR.name().equals(operator))
             return orRestriction(operands);
         if (SqlComparisonOperator.GE.toString().equals(operator) || SqlComparisonOperator.GT.toString().equals(operator))
@@ -104,37 +477,138 @@ public final class IndexRestrictor<T> {
             return inRestriction(((SqlInExpression) sqlExpression).getColumn(), operands);
         if (SqlIsNullExpression.IS_NULL_OPERATOR.equals(operator))
             return isNullRestriction(((SqlIsNullExpression) sqlExpression).getColumn());
+        if (SqlBooleanOperator.NOT.name().equals(operator)
+                || SqlComparisonOperator.NE.toString().equals(operator)
+                || SqlIsNullExpression.IS_NOT_NULL_OPERATOR.equals(operator))
+            return exactRestriction(sqlExpression);
         if (SqlBetweenExpression.BETWEEN_OPERATOR.equals(operator))
             return isBetweenRestriction(operands);
         return null;
     }
 
     /**
-     * Attempts to AND all operands of an expression using the support indices. Note that even when
-     * the indices are not compatible, AND is still OK - just return the smaller set.
+     * Attempts to AND all operands of an expression using the support indices. Operands are
+     * restricted from the most selective on, judging by their estimates (see estimate), and only
+     * if they are worth it: restrictions over compatible indices are intersected bucket by bucket
+     * (bitmap indices over the same rows are compatible even over different columns), which is
+     * cheap, while the restrictions left over incompatible indices are intersected element by
+     * element (see intersect), which is only worth it for selective restrictions (see
+     * PROBE_SELECTIVITY). Operands the indices do not help with are simply ignored, as AND can
+     * only make the set smaller.
      *
      * @param operands the operands of the AND clause (a AND b AND c...)
+     * @param exact receives the operands restricted exactly, so there is no need to check them;
+     * null if that does not matter
      *
      * @return the smaller collection, or null if the indices do not help
      * @throws java.sql.SQLException if where cause is badly constructed. Shouldn't happen, as the
      * parsing of the SQL statement should catch those cases.
      */
-    private <V> Index<T, V> andRestriction(final Iterator<SqlExpressionNode> operands)
+    private <V> Index<T, V> andRestriction(final Iterator<SqlExpressionNode> operands,
+            final Set<SqlExpressionNode> exact)
             throws SQLException {
-        Index<T, V> result = null;
+        final List<SqlExpressionNode> conjuncts = new ArrayList<SqlExpressionNode>();
+        final Map<SqlExpressionNode, Long> estimates = new IdentityHashMap<SqlExpressionNode, Long>();
         while (operands.hasNext()) {
-            final Index<T, V> temp = restrictSqlExpressionNode(operands.next());
-            if (null == result)
-                result = temp;
-            else if (null != temp) {
-                final Index<T, V> intersection = result.intersection(temp);
-                if (null != intersection)
-                    result = intersection;
-                else if (temp.size() < result.size())
-                    result = temp;
+            final SqlExpressionNode conjunct = operands.next();
+            final long estimate = estimate(conjunct);
+            conjuncts.add(conjunct);
+            estimates.put(conjunct, 0 > estimate ? Long.MAX_VALUE : estimate);
+        }
+        Collections.sort(conjuncts, new Comparator<SqlExpressionNode>() {
+            @Override
+            public int compare(final SqlExpressionNode left, final SqlExpressionNode right) {
+                return estimates.get(left).compareTo(estimates.get(right));
             }
+        });
+        final List<Index<T, V>> candidates = new ArrayList<Index<T, V>>();
+        for (final SqlExpressionNode conjunct : conjuncts) {
+            if (!candidates.isEmpty() && estimates.get(conjunct) > rows * PROBE_SELECTIVITY
+                    && !isCompatibleWithAny(candidates, conjunct))
+                continue;
+            Index<T, V> temp = null == exact ? null : exactRestriction(conjunct);
+            if (null != temp)
+                exact.add(conjunct);
+            else
+                temp = restrictSqlExpressionNode(conjunct);
+            if (null != temp)
+                addCandidate(candidates, temp);
         }
-        return result;
+        return intersect(candidates);
+    }
+
+    /**
+     * Whether the restriction of an expression could be intersected bucket by bucket with one of
+     * the restrictions so far, judging by the index over the (first) column of the expression
+     *
+     * @param candidates the restrictions so far
+     * @param exp the expression
+     *
+     * @return true if the index of the expression is compatible with one of the restrictions
+     */
+    private <V> boolean isCompatibleWithAny(final List<Index<T, V>> candidates, final SqlExpressionNode exp) {
+        final SqlColumn column = columnOf(exp);
+        final Index<T, V> index = null == column ? null : indexFor(column);
+        if (null == index)
+            return false;
+        for (final Index<T, V> candidate : candidates)
+            if (candidate.isCompatibleWith(index))
+                return true;
+        return false;
+    }
+
+    /**
+     * Adds a restriction to the ones being ANDed, intersecting it with the first compatible one
+     *
+     * @param candidates the restrictions over incompatible indices so far
+     * @param restriction the restriction to add
+     */
+    private static <T, V> void addCandidate(final List<Index<T, V>> candidates, final Index<T, V> restriction) {
+        for (int i = 0; i < candidates.size(); i++) {
+            final Index<T, V> intersection = candidates.get(i).intersection(restriction);
+            if (null != intersection) {
+                candidates.set(i, intersection);
+                return;
+            }
+        }
+        candidates.add(restriction);
+    }
+
+    /**
+     * Intersects restrictions over incompatible indices element by element: the elements of the
+     * smallest restriction are probed against the others, smallest first, so each element is
+     * usually discarded after a single lookup (see Index.contains). The result is exact if all the
+     * restrictions are.
+     *
+     * @param candidates the restrictions, over incompatible indices
+     *
+     * @return the elements in all restrictions, or null if there are none
+     */
+    private static <T, V> Index<T, V> intersect(final List<Index<T, V>> candidates) {
+        if (2 > candidates.size())
+            return candidates.isEmpty() ? null : candidates.get(0);
+        final List<Index<T, V>> others = new ArrayList<Index<T, V>>(candidates);
+        final Map<Index<T, V>, Integer> sizes = new IdentityHashMap<Index<T, V>, Integer>();
+        for (final Index<T, V> candidate : others)
+            sizes.put(candidate, candidate.size());
+        Collections.sort(others, new Comparator<Index<T, V>>() {
+            @Override
+            public int compare(final Index<T, V> left, final Index<T, V> right) {
+                return sizes.get(left).compareTo(sizes.get(right));
+            }
+        });
+        final Index<T, V> smallest = others.remove(0);
+        if (0 == sizes.get(smallest))
+            return smallest;
+        return smallest.filter(new Predicate<T>() {
+            @Override
+            public boolean test(final T element) {
+                for (final Index<T, V> other : others)
+                    if (!other.contains(element))
+                        return false;
+                return true;
+            }
+        });
     }
 
     /**
@@ -264,7 +738,8 @@ public final class IndexRestrictor<T> {
 
     /**
      * Attempts to use the support indices to return a smaller set based on in restriction. This is
-     * equivalent to col = operand1 or col = operand2 or col = operand3...
+     * equivalent to col = operand1 or col = operand2 or col = operand3..., but the buckets of all
+     * operands are looked up at once (see Index.multipleBuckets).
      *
      * @param column the column that drives the IN clause
      * @param operands the operands as in IN (operand1, operand2, operand3...)
@@ -276,10 +751,14 @@ public final class IndexRestrictor<T> {
         final Index<T, V> index = indexFor(column);
         if (null == index)
             return null;
-        Index<T, V> result = index.newIndex();
-        while (null != result && operands.hasNext())
-            result = result.union(index.singleBucket((V) valueFor(operands.next())));
-        return result;
+        final List<V> values = new ArrayList<V>();
+        while (operands.hasNext()) {
+            final V value = valueFor(operands.next());
+            if (null == value)
+                return null;
+            values.add(value);
+        }
+        return index.multipleBuckets(values);
     }
 
     /**
@@ -296,6 +775,21 @@ public final class IndexRestrictor<T> {
         return index.singleBucket(null);
     }
 
+    /**
+     * Attempts to use the support indices to return exactly the elements matching an IS NOT NULL
+     * restriction
+     *
+     * @param column the colum for which we want to check the condition
+     *
+     * @return the elements with a value on the column, or null if the column is not indexed
+     */
+    private <V> Index<T, V> isNotNullRestriction(final SqlColumn column) {
+        final Index<T, V> index = indexFor(column);
+        if (null == index)
+            return null;
+        return index.notNull();
+    }
+
     /**
      * Attempts to use the support indices to return a smaller set based BETWEEN restriction. First
      * operand is, by construction, required to be a column, followed by two values: column between
@@ -353,6 +847,8 @@ public final class IndexRestrictor<T> {
                 return (V) ((SqlString) node).getString();
             if (node instanceof SqlDate)
                 return (V) dateProcessor.toDate(((SqlDate) node).getDateString());
+            if (node instanceof SqlParameter)
+                return (V) SqlParameter.normalize(parameters[((SqlParameter) node).getIndex()]);
             return null;
         } catch (final Exception e) {
             // Any weirdness with the expressions will be dealt with downstream.
@@ -18,6 +18,7 @@ package org.espresso.index;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import static java.util.Collections.emptyMap;
 
@@ -127,6 +128,19 @@ public class Indices<T> {
         return (Index<T, V>) indexMap.get(column.toLowerCase());
     }
 
+    /**
+     * Estimates the memory taken by each index (see {@link Index#memoryFootprint()}), so the cost
+     * of indexing a column can be weighed against how often queries filter on it.
+     *
+     * @return the estimated size in bytes of each index, by column name
+     */
+    public final Map<String, Long> memoryFootprint() {
+        final Map<String, Long> footprint = new TreeMap<String, Long>();
+        for (final Map.Entry<String, Index<T, ?>> entry : indexMap.entrySet())
+            footprint.put(entry.getKey(), entry.getValue().memoryFootprint());
+        return footprint;
+    }
+
     private HashMap newHashMapWithExpectedSize(final int size) {
         return new HashMap(size, 1.0F);
     }
@@ -13,13 +13,15 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package org.espresso.eval;
+package org.espresso.index;
 
 /**
- * Interface to set a NumberWrapper into a holder class.
+ * Getter specialized for columns of integral primitive types (byte, short, int and long), so the
+ * value can be read without boxing.
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
-public interface NumberWrapperSetter {
-    public void setNumberWrapper(final NumberWrapper wrapper);
+public interface LongGetter<T> {
+
+    long getLong(T t);
 }
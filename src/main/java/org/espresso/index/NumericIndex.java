@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import org.espresso.eval.ClassUtil;
+
+import java.util.Collection;
+
+/**
+ * Index suitable for numeric columns, supporting less than, greater than and between. The range
+ * [lower, upper] of expected values is split in buckets of the same width, in order, with values
+ * below the range going to the first bucket and values above it going to the last one.
+ * <p>
+ * For integral columns, buckets always hold whole numbers, so if the range has no more values than
+ * buckets (e.g., a child number between 0 and 99), each bucket holds a single value and a range
+ * restriction traverses nothing but the matching values, plus the boundary itself for < and >.
+ * Wider ranges, and floating point columns, are answered with the granularity of a bucket.
+ * <p>
+ * Values are compared as numbers, whatever their class, so an index over an integer column
+ * answers restrictions over longs, doubles and the values of the where clause alike.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class NumericIndex<T, V>
+        extends OrderedIndex<T, V> {
+    private static final int DEFAULT_BUCKETS = 1024;
+
+    private final double lower;
+    private final double upper;
+    private final double width;
+
+    public static <T, V extends Number> Index<T, V> newIndex(final Class<V> type, final String name,
+            final Getter<T, V> column, final double lower, final double upper, final int totalBuckets) {
+        if (!(lower < upper) || 1 > totalBuckets)
+            throw new IllegalArgumentException("NumericIndex: empty range, or no buckets");
+        final boolean integral = !ClassUtil.isFloatPrecision(type);
+        final double span = integral ? Math.floor(upper) - Math.ceil(lower) + 1 : upper - lower;
+        final double width = integral ? Math.max(1, Math.ceil(span / totalBuckets)) : span / totalBuckets;
+        final int buckets = integral ? (int) Math.ceil(span / width) : totalBuckets;
+        return new NumericIndex<T, V>(type, name, column, integral ? Math.ceil(lower) : lower, upper, width,
+                buckets);
+    }
+
+    public static <T, V extends Number> Index<T, V> newIndex(final Class<V> type, final String name,
+            final Getter<T, V> column, final double lower, final double upper) {
+        return newIndex(type, name, column, lower, upper, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * Builds an index over a numeric column of the row type, read the same way the where clause
+     * reads it (see Getters)
+     *
+     * @param rowType the row type
+     * @param type the type of the column, the wrapper type for primitive columns
+     * @param name the column name
+     * @param lower the lowest value expected
+     * @param upper the highest value expected
+     *
+     * @return the index
+     *
+     * @throws IllegalArgumentException if the row type has no such column, or it is of another type
+     */
+    public static <T, V extends Number> Index<T, V> newIndex(final Class<T> rowType, final Class<V> type,
+            final String name, final double lower, final double upper) {
+        return newIndex(type, name, Getters.forColumn(rowType, name, type), lower, upper);
+    }
+
+    private NumericIndex(final Class<V> type, final String name, final Getter<T, V> column,
+            final double lower, final double upper, final double width, final int totalBuckets) {
+        super(type, name, column, totalBuckets);
+        this.lower = lower;
+        this.upper = upper;
+        this.width = width;
+    }
+
+    @Override
+    public Index<T, V> newIndex() {
+        return new NumericIndex<T, V>(getIndexType(), getName(), column, lower, upper, width, totalBuckets);
+    }
+
+    @Override
+    public boolean isCompatibleWith(final Index<T, V> other) {
+        return other instanceof NumericIndex && lower == ((NumericIndex) other).lower
+                && width == ((NumericIndex) other).width && super.isCompatibleWith(other);
+    }
+
+    /**
+     * Values that are not numbers cannot be compared to the column, so the index does not help
+     */
+    @Override
+    public Index<T, V> lessThan(final V what) {
+        return what instanceof Number ? super.lessThan(what) : null;
+    }
+
+    @Override
+    public Index<T, V> greaterThan(final V what) {
+        return what instanceof Number ? super.greaterThan(what) : null;
+    }
+
+    @Override
+    public Index<T, V> singleBucket(final V what) {
+        return null == what || what instanceof Number ? super.singleBucket(what) : null;
+    }
+
+    @Override
+    public Index<T, V> multipleBuckets(final Collection<? extends V> values) {
+        for (final V what : values)
+            if (null != what && !(what instanceof Number))
+                return null;
+        return super.multipleBuckets(values);
+    }
+
+    @Override
+    public int estimateLessThan(final V what) {
+        return what instanceof Number ? super.estimateLessThan(what) : -1;
+    }
+
+    @Override
+    public int estimateGreaterThan(final V what) {
+        return what instanceof Number ? super.estimateGreaterThan(what) : -1;
+    }
+
+    @Override
+    public int estimateSingleBucket(final V what) {
+        return null == what || what instanceof Number ? super.estimateSingleBucket(what) : -1;
+    }
+
+    @Override
+    protected int whichBucket(final V object) {
+        final double value = ((Number) object).doubleValue();
+        if (value < lower)
+            return 0;
+        final double bucket = Math.floor((value - lower) / width);
+        // Also takes NaN to the last bucket
+        return bucket < totalBuckets ? (int) bucket : totalBuckets - 1;
+    }
+}
@@ -56,4 +56,14 @@ public abstract class OrderedIndex<T, V>
             copySetAt(index, i);
         return index;
     }
+
+    @Override
+    public int estimateLessThan(final V what) {
+        return null == what ? -1 : countBuckets(0, whichBucket(what));
+    }
+
+    @Override
+    public int estimateGreaterThan(final V what) {
+        return null == what ? -1 : countBuckets(whichBucket(what), totalBuckets - 1);
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands out dense integer ids to the rows of a collection, so bitmap indices can keep rows as bits
+ * rather than references. All bitmap indices over the same collection must share the same ids,
+ * which is what allows their restrictions to be combined with AND and OR across columns (see
+ * BitmapIndex):
+ * <pre>
+ * final RowIds&lt;Deal&gt; rows = new RowIds&lt;Deal&gt;();
+ * final Indices&lt;Deal&gt; indices = new Indices&lt;Deal&gt;(
+ *         BitmapIndex.newIndex(rows, Deal.class, String.class, "book"),
+ *         BitmapIndex.newIndex(rows, Deal.class, String.class, "database_name"));</pre>
+ * A row keeps its id for as long as some index holds it. Ids of rows removed from all indices are
+ * handed out again to rows added later, so the ids stay dense as the collection changes; as a
+ * consequence, a restriction that outlives a removal followed by an addition may see the new row
+ * in place of the removed one. Restrictions are meant to be consumed right away, as the engines do.
+ * <p/>
+ * Finding the row with a given id is lock free; everything else synchronizes on the registry.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public final class RowIds<T> {
+    private final Map<T, Integer> ids = new HashMap<T, Integer>();
+    private volatile AtomicReferenceArray<T> rows = new AtomicReferenceArray<T>(16);
+    private int[] references = new int[16];
+    private int[] free = new int[16];
+    private int freeCount;
+    private int bound;
+
+    /**
+     * Returns the id of a row, giving it one if it has none yet. Each call must be matched by a
+     * call to release once the caller no longer refers to the row by its id.
+     *
+     * @param row the row
+     *
+     * @return the id of the row
+     */
+    synchronized int acquire(final T row) {
+        Integer id = ids.get(row);
+        if (null == id) {
+            id = 0 < freeCount ? free[--freeCount] : newId();
+            ids.put(row, id);
+            rows.set(id, row);
+        }
+        references[id] += 1;
+        return id;
+    }
+
+    /**
+     * Releases an id obtained from acquire. Once no index refers to the row, its id is free to be
+     * handed out again.
+     *
+     * @param id the id of the row
+     */
+    synchronized void release(final int id) {
+        if (0 < --references[id])
+            return;
+        ids.remove(rows.get(id));
+        rows.set(id, null);
+        if (freeCount == free.length)
+            free = Arrays.copyOf(free, 2 * freeCount);
+        free[freeCount++] = id;
+    }
+
+    /**
+     * Finds the id of a row
+     *
+     * @param row the row
+     *
+     * @return the id, or -1 if the row has none
+     */
+    public synchronized int idOf(final Object row) {
+        final Integer id = ids.get(row);
+        return null == id ? -1 : id;
+    }
+
+    /**
+     * Finds the row with the given id
+     *
+     * @param id the id
+     *
+     * @return the row, or null if the id is not in use
+     */
+    public T rowAt(final int id) {
+        final AtomicReferenceArray<T> current = rows;
+        return id < current.length() ? current.get(id) : null;
+    }
+
+    /**
+     * How many rows have ids
+     *
+     * @return the number of rows
+     */
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * Estimates the memory taken by the ids, in bytes, not counting the rows themselves: an entry
+     * in the map from rows to ids, and a slot in each of the arrays indexed by id
+     *
+     * @return the estimated size
+     */
+    public synchronized long memoryFootprint() {
+        return 56L * ids.size() + 32 + 4L * rows.length() + 16 + 4L * references.length + 16 + 4L * free.length;
+    }
+
+    private int newId() {
+        final int id = bound++;
+        if (id == references.length) {
+            final AtomicReferenceArray<T> grown = new AtomicReferenceArray<T>(2 * id);
+            for (int i = 0; i < id; i++)
+                grown.set(i, rows.get(i));
+            references = Arrays.copyOf(references, 2 * id);
+            rows = grown;
+        }
+        return id;
+    }
+}
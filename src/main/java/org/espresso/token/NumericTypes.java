@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.token;
+
+import org.espresso.eval.EvaluationContext;
+import org.espresso.eval.NumberWrapper;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The numeric types of the operands of an expression, for a given row type. If all operands are
+ * primitive numbers, the expression is evaluated with longs if they are all longs, and with doubles
+ * otherwise; if any of them is not, the expression goes through NumberWrappers and the checks that
+ * come with them.
+ * <br/>
+ * Expressions keep the types for the last row type they saw. Instances are immutable, so they can
+ * be safely replaced by concurrent threads.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+final class NumericTypes {
+    final Class<?> rowType;
+    final Class<?>[] operandTypes;
+    final Class<?> type;
+
+    private NumericTypes(final Class<?> rowType, final List<SqlExpressionNode> operands) {
+        this.rowType = rowType;
+        operandTypes = new Class<?>[operands.size()];
+        Class<?> common = long.class;
+        for (int i = 0; i < operandTypes.length; i++) {
+            final SqlExpressionNode operand = operands.get(i);
+            operandTypes[i] = operand instanceof SqlNumericNode ? ((SqlNumericNode) operand).numericType(rowType)
+                    : null;
+            if (null == operandTypes[i])
+                common = null;
+            else if (null != common && double.class == operandTypes[i])
+                common = double.class;
+        }
+        type = common;
+    }
+
+    /**
+     * Returns the current types if they are for the row type, or the types for the row type
+     *
+     * @param current the types cached by the expression, possibly null
+     * @param rowType the class of the current row
+     * @param operands the operands of the expression
+     *
+     * @return the types for the row type
+     */
+    static NumericTypes forRowType(final NumericTypes current, final Class<?> rowType,
+            final List<SqlExpressionNode> operands) {
+        if (null != current && current.rowType == rowType)
+            return current;
+        return new NumericTypes(rowType, operands);
+    }
+
+    /**
+     * Evaluates an operand as a double, reading it as a long first if it is a long
+     */
+    @SuppressWarnings("unchecked")
+    <E> double evalDouble(final List<SqlExpressionNode> operands, final int operand, final E row,
+            final EvaluationContext context) throws SQLException {
+        final SqlNumericNode<E> node = (SqlNumericNode<E>) operands.get(operand);
+        return long.class == operandTypes[operand] ? node.evalLong(row, context) : node.evalDouble(row, context);
+    }
+
+    /**
+     * Evaluates an operand as a long
+     */
+    @SuppressWarnings("unchecked")
+    static <E> long evalLong(final List<SqlExpressionNode> operands, final int operand, final E row,
+            final EvaluationContext context) throws SQLException {
+        return ((SqlNumericNode<E>) operands.get(operand)).evalLong(row, context);
+    }
+
+    /**
+     * Checks the result of a node evaluated the regular way is a number
+     *
+     * @param value the result
+     *
+     * @return the number
+     *
+     * @throws SQLException if the value is null or not a number
+     */
+    static NumberWrapper asNumber(final Object value) throws SQLException {
+        if (value instanceof NumberWrapper)
+            return (NumberWrapper) value;
+        throw new SQLException("Numeric type expected, got " + value);
+    }
+}
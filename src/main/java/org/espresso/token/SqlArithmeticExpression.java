@@ -15,23 +15,33 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 import org.espresso.eval.NumberWrapper;
 
 import java.sql.SQLException;
-import java.util.Map;
 
 /**
  * Implements an arithmetic expression, i.e., one that involves +, -, * or /
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
-public class SqlArithmeticExpression<E> extends SqlExpression<E> {
+public class SqlArithmeticExpression<E> extends SqlExpression<E> implements SqlNumericNode<E> {
     private final SqlArithmeticOperator operator;
+    private final int register;
+    private volatile NumericTypes types = null;
 
-    public SqlArithmeticExpression(final SqlArithmeticOperator operator) {
+    /**
+     * Builds the expression
+     *
+     * @param operator the arithmetic operator
+     * @param register the register in the evaluation context where the result is accumulated
+     */
+    public SqlArithmeticExpression(final SqlArithmeticOperator operator, final int register) {
+        if (0 > register)
+            throw new IllegalArgumentException("SqlArithmeticExpression: register cannot be negative");
         this.operator = operator;
+        this.register = register;
     }
 
     @Override
@@ -44,22 +54,68 @@ public class SqlArithmeticExpression<E> extends SqlExpression<E> {
     }
 
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
+    public Class<?> numericType(final Class<?> rowType) {
+        return typesFor(rowType).type;
+    }
+
+    /**
+     * Evaluates the expression with longs, if all operands are longs
+     */
+    @Override
+    public long evalLong(final E row, final EvaluationContext context) throws SQLException {
+        if (long.class != typesFor(row.getClass()).type)
+            return NumericTypes.asNumber(eval(row, context)).asLong();
+        long result = NumericTypes.evalLong(operands, 0, row, context);
+        for (int i = 1; i < operands.size(); i++)
+            result = operator.eval(result, NumericTypes.evalLong(operands, i, row, context));
+        return result;
+    }
+
+    /**
+     * Evaluates the expression with doubles, unless all operands are longs - in which case the
+     * expression is evaluated with longs, so integer division works as expected
+     */
+    @Override
+    public double evalDouble(final E row, final EvaluationContext context) throws SQLException {
+        final NumericTypes current = typesFor(row.getClass());
+        if (long.class == current.type)
+            return evalLong(row, context);
+        if (null == current.type)
+            return NumericTypes.asNumber(eval(row, context)).asDouble();
+        double result = current.evalDouble(operands, 0, row, context);
+        for (int i = 1; i < operands.size(); i++)
+            result = operator.eval(result, current.evalDouble(operands, i, row, context));
+        return result;
+    }
+
+    @Override
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        final NumericTypes current = typesFor(row.getClass());
+        if (long.class == current.type)
+            return context.getRegister(register).setLong(evalLong(row, context));
+        if (double.class == current.type)
+            return context.getRegister(register).setDouble(evalDouble(row, context));
         try {
             boolean first = true;
-            NumberWrapper result = null;
+            final NumberWrapper result = context.getRegister(register);
             for (SqlExpressionNode node : operands)
                 if (first) {
-                    result = new NumberWrapper(node.eval(row, functions));
+                    result.set((NumberWrapper) node.eval(row, context));
                     first = false;
                 } else
-                    operator.eval(result, (NumberWrapper) node.eval(row, functions));
+                    operator.eval(result, (NumberWrapper) node.eval(row, context));
             return result;
         } catch (final ClassCastException e) {
             throw new SQLException("Numeric type expected", e);
         }
     }
 
+    private NumericTypes typesFor(final Class<?> rowType) {
+        final NumericTypes current = NumericTypes.forRowType(types, rowType, operands);
+        types = current;
+        return current;
+    }
+
     /**
      * Accept method for the visitor pattern, turn around and call visit on the visitor.
      * Pretty standard, nothing new here...
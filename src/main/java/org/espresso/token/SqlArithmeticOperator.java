@@ -37,6 +37,14 @@ public enum SqlArithmeticOperator {
             result.add(operand);
         }
         @Override
+        public long eval(final long left, final long right) {
+            return left + right;
+        }
+        @Override
+        public double eval(final double left, final double right) {
+            return left + right;
+        }
+        @Override
         public Instruction getInstruction(final boolean isFloatPrecision) {
             return isFloatPrecision ? new DADD() : new LADD();
         }
@@ -51,6 +59,14 @@ public enum SqlArithmeticOperator {
             result.subtract(operand);
         }
         @Override
+        public long eval(final long left, final long right) {
+            return left - right;
+        }
+        @Override
+        public double eval(final double left, final double right) {
+            return left - right;
+        }
+        @Override
         public Instruction getInstruction(final boolean isFloatPrecision) {
             return isFloatPrecision ? new DSUB() : new LSUB();
         }
@@ -65,6 +81,14 @@ public enum SqlArithmeticOperator {
             result.multiply(operand);
         }
         @Override
+        public long eval(final long left, final long right) {
+            return left * right;
+        }
+        @Override
+        public double eval(final double left, final double right) {
+            return left * right;
+        }
+        @Override
         public Instruction getInstruction(final boolean isFloatPrecision) {
             return isFloatPrecision ? new DMUL() : new LMUL();
         }
@@ -79,6 +103,14 @@ public enum SqlArithmeticOperator {
             result.divide(operand);
         }
         @Override
+        public long eval(final long left, final long right) {
+            return left / right;
+        }
+        @Override
+        public double eval(final double left, final double right) {
+            return left / right;
+        }
+        @Override
         public Instruction getInstruction(final boolean isFloatPrecision) {
             return isFloatPrecision ? new DDIV() : new LDIV();
         }
@@ -92,6 +124,10 @@ public enum SqlArithmeticOperator {
      */
     public abstract void eval(final NumberWrapper result, final NumberWrapper operand) throws SQLException;
 
+    public abstract long eval(final long left, final long right);
+
+    public abstract double eval(final double left, final double right);
+
     /**
      * Return the VM instruction that corresponds to this operator
      * @param isFloatPrecision whether the stack contains a floating or fixed point precision
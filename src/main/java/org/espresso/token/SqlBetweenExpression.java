@@ -15,13 +15,11 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
-import org.espresso.eval.SqlComparisonEvaluator;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
 import java.util.Iterator;
-import java.util.Map;
 
 import static org.espresso.eval.SqlComparisonEvaluator.pickEvaluator;
 
@@ -32,9 +30,8 @@ import static org.espresso.eval.SqlComparisonEvaluator.pickEvaluator;
  */
 public class SqlBetweenExpression<E>
         extends SqlExpression<E> {
-    private SqlComparisonEvaluator leftComparator = null;
-    private SqlComparisonEvaluator rightComparator = null;
     public final static String BETWEEN_OPERATOR = "BETWEEN";
+    private volatile NumericTypes types = null;
 
     public SqlBetweenExpression() {
     }
@@ -61,32 +58,40 @@ public class SqlBetweenExpression<E>
     /**
      * Evaluates what BETWEEN lower AND higher
      * @param row Reference to the current object
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return true or false depending on whether the condition was satisfied
      * @throws SQLException wraps all types of errors that may happen
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
         if (3 != operands.size())
             throw new SQLException("BETWEEN requires 3 operands");
+        final NumericTypes current = NumericTypes.forRowType(types, row.getClass(), operands);
+        types = current;
+        if (long.class == current.type) {
+            final long what = NumericTypes.evalLong(operands, 0, row, context);
+            return NumericTypes.evalLong(operands, 1, row, context) <= what
+                    && what <= NumericTypes.evalLong(operands, 2, row, context);
+        }
+        if (double.class == current.type) {
+            final double what = current.evalDouble(operands, 0, row, context);
+            return current.evalDouble(operands, 1, row, context) <= what
+                    && what <= current.evalDouble(operands, 2, row, context);
+        }
         final Iterator<SqlExpressionNode> iterator = operands.iterator();
         try {
-            final Object what = iterator.next().eval(row, functions);
+            final Object what = iterator.next().eval(row, context);
             if (null == what)
                 return false;
-            final Object lower = iterator.next().eval(row, functions);
+            final Object lower = iterator.next().eval(row, context);
             if (null == lower)
                 return false;
-            if (null == leftComparator)
-                leftComparator = pickEvaluator(what, lower);
-            if (-1 == leftComparator.compare(what, lower))
+            if (!SqlComparisonOperator.GE.eval(pickEvaluator(what, lower).compare(what, lower)))
                 return false;
-            final Object right = iterator.next().eval(row, functions);
+            final Object right = iterator.next().eval(row, context);
             if (null == right)
                 return false;
-            if (null == rightComparator)
-                rightComparator = pickEvaluator(what, right);
-            return 1 != rightComparator.compare(what, right);
+            return SqlComparisonOperator.LE.eval(pickEvaluator(what, right).compare(what, right));
         } catch (ClassCastException e) {
             throw new SQLException("BETWEEN operand could not be cast to Comparable", e);
         }
@@ -15,11 +15,10 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
-import java.util.Map;
 
 /**
  * Encapsulates a boolean operation, i.e., AND, OR or NOT.
@@ -43,8 +42,8 @@ public class SqlBooleanExpression<E> extends SqlExpression<E> {
     }
 
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
-        return operator.eval(row, functions, operands);
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        return operator.eval(row, context, operands);
     }
 
     /**
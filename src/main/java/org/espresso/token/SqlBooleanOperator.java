@@ -15,11 +15,10 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Represents the possible boolean operators.
@@ -33,12 +32,12 @@ public enum SqlBooleanOperator {
             return "AND";
         }
         @Override
-        public Object eval(final Object row, final Map<String, FunctionExtension> functions,
+        public Object eval(final Object row, final EvaluationContext context,
                 final List<SqlExpressionNode> operands) throws SQLException {
             try {
                 boolean result = true;
                 for (SqlExpressionNode node : operands) {
-                    result &= (Boolean) node.eval(row, functions);
+                    result &= (Boolean) node.eval(row, context);
                     if (!result)
                         return false;
                 }
@@ -54,12 +53,12 @@ public enum SqlBooleanOperator {
             return "OR";
         }
         @Override
-        public Object eval(final Object row, final Map<String, FunctionExtension> functions,
+        public Object eval(final Object row, final EvaluationContext context,
                 final List<SqlExpressionNode> operands) throws SQLException {
             try {
                 boolean result = false;
                 for (SqlExpressionNode node : operands) {
-                    result |= (Boolean) node.eval(row, functions);
+                    result |= (Boolean) node.eval(row, context);
                     if (result)
                         return true;
                 }
@@ -75,10 +74,10 @@ public enum SqlBooleanOperator {
             return "NOT";
         }
         @Override
-        public Object eval(final Object row, final Map<String, FunctionExtension> functions,
+        public Object eval(final Object row, final EvaluationContext context,
                 final List<SqlExpressionNode> operands) throws SQLException {
             try {
-                final Boolean operand = (Boolean) operands.get(0).eval(row, functions);
+                final Boolean operand = (Boolean) operands.get(0).eval(row, context);
                 return !operand;
             } catch (final ClassCastException e) {
                 throw new SQLException("Boolean type expected", e);
@@ -88,6 +87,6 @@ public enum SqlBooleanOperator {
         }
     };
 
-    public abstract Object eval(final Object row, final Map<String, FunctionExtension> functions,
+    public abstract Object eval(final Object row, final EvaluationContext context,
             final List<SqlExpressionNode> operands) throws SQLException;
 }
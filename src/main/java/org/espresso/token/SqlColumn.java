@@ -15,40 +15,40 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 import org.espresso.eval.NumberNormalizer;
-import org.espresso.eval.NumberWrapper;
-import org.espresso.eval.NumberWrapperSetter;
 
-import java.lang.reflect.Field;
-import java.sql.SQLException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import org.espresso.index.DoubleGetter;
+import org.espresso.index.Getter;
+import org.espresso.index.Getters;
+import org.espresso.index.LongGetter;
 
-import static java.lang.Character.toLowerCase;
-import static java.lang.Character.toUpperCase;
+import java.sql.SQLException;
 
 /**
- * Represents a database column, which, in turn, is associated witha field.
+ * Represents a database column, which, in turn, is associated with a getter or a field.
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
-public class SqlColumn<E> implements SqlExpressionNode<E>, NumberWrapperSetter {
-    private final static Map<Class, Map<String, Field>> fieldRowTypes = new ConcurrentHashMap<Class, Map<String, Field>>();
+public class SqlColumn<E> implements SqlNumericNode<E> {
     private final String name;
-    private NumberNormalizer normalizer = null;
-    private NumberWrapper wrapper = null;
+    private final int register;
+    private volatile Accessors accessors = null;
 
     /**
      * Given the column name, creates the column
      * @param name the name of the column
-     * @throws IllegalArgumentException if the column name is null
+     * @param register the register in the evaluation context where numeric values are stored
+     * @throws IllegalArgumentException if the column name is null or the register is negative
      */
-    public SqlColumn(final String name) {
+    public SqlColumn(final String name, final int register) {
         if (null == name)
             throw new IllegalArgumentException("SqlColumn: column name cannot be null");
+        if (0 > register)
+            throw new IllegalArgumentException("SqlColumn: register cannot be negative");
         this.name = name;
+        this.register = register;
     }
 
     /**
@@ -59,6 +59,14 @@ public class SqlColumn<E> implements SqlExpressionNode<E>, NumberWrapperSetter {
         return name;
     }
 
+    /**
+     * Accessor to the register used by this column
+     * @return the register in the evaluation context
+     */
+    public int getRegister() {
+        return register;
+    }
+
     /**
      * @return the column name
      */
@@ -67,46 +75,90 @@ public class SqlColumn<E> implements SqlExpressionNode<E>, NumberWrapperSetter {
         return name;
     }
 
-    @Override
-    public void setNumberWrapper(final NumberWrapper wrapper) {
-        this.wrapper = wrapper;
-    }
-
     /**
      * Evaluates the column object - converts the column name to the appropriate accessor,
-     * and then calls the corresponding method on the current object. Tries both getXXX()
-     * and isXXX().
+     * and then calls it on the current object. Tries getXXX() and isXXX(), then the field
+     * (see Getters).
      * </br>
-     * If the column is numeric, convert the result to a BigDecimal before returning it,
+     * If the column is numeric, convert the result to a NumberWrapper before returning it,
      * so we have a standard representation for numeric types that can be used for the
      * basic arithmetic operations, comparisons, etc. If we don't do this, then we are
      * left with a double dispatch problem, since the left and right hand side of an
-     * operator may be any of multiple numeric types.
+     * operator may be any of multiple numeric types. The NumberWrapper is this column's
+     * register in the context, so no objects are created per row; primitive columns are read
+     * without boxing.
      * </br>
-     * This method also caches the references to methods associated with a particular class,
-     * so we don't have to fetch them every time they are referred to.
+     * This method also caches the accessors associated with the class of the rows, so we
+     * don't have to look them up every time they are referred to.
      *
      * @param row Reference to the current object
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return the value that corresponds to the required column
      * @throws SQLException wraps all types of errors that may happen
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
-        final Field field = getField(row);
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        final Accessors accessors = accessorsFor(row.getClass());
         try {
-            field.setAccessible(true);
-            final Object result = field.get(row);
+            if (null != accessors.longGetter)
+                return context.getRegister(register).setLong(accessors.longGetter.getLong(row));
+            if (null != accessors.doubleGetter)
+                return context.getRegister(register).setDouble(accessors.doubleGetter.getDouble(row));
+            final Object result = accessors.getter.get(row);
             if (null == result)
                 return result;
-            if (null == normalizer)
-                normalizer = NumberNormalizer.getNormalizer(result);
-            return normalizer.convertIfNeeded(result, wrapper, this);
+            return NumberNormalizer.getNormalizer(result).convertIfNeeded(result, context.getRegister(register));
+        } catch (Exception e) {
+            throw new SQLException("Error invoking getter for column: " + name, e);
+        }
+    }
+
+    /**
+     * Columns of primitive numeric types are read as longs or doubles; the others (including
+     * boxed numbers, which can be null) are not primitive numbers.
+     *
+     * @param rowType the class of the rows
+     *
+     * @return long.class, double.class or null
+     */
+    @Override
+    public Class<?> numericType(final Class<?> rowType) {
+        try {
+            final Accessors current = accessorsFor(rowType);
+            if (null != current.longGetter)
+                return long.class;
+            return null == current.doubleGetter ? null : double.class;
+        } catch (final SQLException e) {
+            // Reported when the column is evaluated
+            return null;
+        }
+    }
+
+    @Override
+    public long evalLong(final E row, final EvaluationContext context) throws SQLException {
+        final Accessors current = accessorsFor(row.getClass());
+        try {
+            if (null != current.longGetter)
+                return current.longGetter.getLong(row);
         } catch (Exception e) {
             throw new SQLException("Error invoking getter for column: " + name, e);
         }
+        return NumericTypes.asNumber(eval(row, context)).asLong();
+    }
+
+    @Override
+    public double evalDouble(final E row, final EvaluationContext context) throws SQLException {
+        final Accessors current = accessorsFor(row.getClass());
+        try {
+            if (null != current.doubleGetter)
+                return current.doubleGetter.getDouble(row);
+            if (null != current.longGetter)
+                return current.longGetter.getLong(row);
+        } catch (Exception e) {
+            throw new SQLException("Error invoking getter for column: " + name, e);
+        }
+        return NumericTypes.asNumber(eval(row, context)).asDouble();
     }
-    
 
     /**
      * Accept method for the visitor pattern, turn around and call visit on the visitor.
@@ -119,39 +171,39 @@ public class SqlColumn<E> implements SqlExpressionNode<E>, NumberWrapperSetter {
         visitor.visit(this);
     }
 
-    private Field getField(final E row) throws SQLException {
-        final Class clazz = row.getClass();
-        Map<String, Field> fields = fieldRowTypes.get(clazz);
-        if (null == fields) {
-            fields = new ConcurrentHashMap<String, Field>();
-            fieldRowTypes.put(clazz, fields);
-        }
-        Field field = fields.get(name);
-        if (null == field) {
-            final String fieldName = convertToCamelBackGetter("", name);
+    /**
+     * The accessors for the class of the current row. Rows are almost always of the same class, so
+     * we keep the accessors of the last class seen; they are immutable, so it is fine if threads
+     * evaluating rows of different classes replace each other's.
+     */
+    private Accessors accessorsFor(final Class rowType) throws SQLException {
+        Accessors current = accessors;
+        if (null == current || current.rowType != rowType) {
             try {
-                field = clazz.getDeclaredField(fieldName);
-                fields.put(name, field);
-            } catch (final NoSuchFieldException e) {
-                throw new SQLException("Could not find field: " + fieldName, e); 
+                current = new Accessors(rowType, name);
+            } catch (final IllegalArgumentException e) {
+                throw new SQLException(e.getMessage(), e);
             }
+            accessors = current;
         }
-        return field;
+        return current;
     }
 
+    /**
+     * The accessors to this column for a given row type. Only one of the unboxed accessors is
+     * set, and only if the column is of a primitive numeric type.
+     */
+    private static final class Accessors {
+        final Class rowType;
+        final Getter<Object, Object> getter;
+        final LongGetter<Object> longGetter;
+        final DoubleGetter<Object> doubleGetter;
 
-    private static String convertToCamelBackGetter(final String prefix, final String name) {
-        final StringBuilder builder = new StringBuilder(prefix);
-        boolean toUpper = false;
-        for (int i = 0; i < name.length(); i++) {
-            final char c = name.charAt(i);
-            if ('_' == c)
-                toUpper = true;
-            else {
-                builder.append(toUpper ? toUpperCase(c) : toLowerCase(c));
-                toUpper = false;
-            }
+        Accessors(final Class rowType, final String column) {
+            this.rowType = rowType;
+            getter = Getters.forColumn(rowType, column);
+            longGetter = Getters.forLongColumn(rowType, column);
+            doubleGetter = Getters.forDoubleColumn(rowType, column);
         }
-        return builder.toString();
     }
 }
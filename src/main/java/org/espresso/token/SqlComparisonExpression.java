@@ -15,12 +15,14 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 import org.espresso.eval.SqlComparisonEvaluator;
 
 import java.sql.SQLException;
-import java.util.Map;
+
+import static org.espresso.eval.SqlComparisonEvaluator.compareDoubles;
+import static org.espresso.eval.SqlComparisonEvaluator.compareLongs;
 
 /**
  * Represents the possible comparisons (less than, greater than, etc.)
@@ -29,7 +31,7 @@ import java.util.Map;
  */
 public class SqlComparisonExpression<E> extends SqlExpression<E> {
     private final SqlComparisonOperator operator;
-    private SqlComparisonEvaluator evaluator; // Memoize how to evaluate the comparison
+    private volatile NumericTypes types = null;
     /**
      */
     public SqlComparisonExpression(final SqlComparisonOperator operator) {
@@ -46,13 +48,24 @@ public class SqlComparisonExpression<E> extends SqlExpression<E> {
     }
 
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        if (2 != operands.size())
+            throw new SQLException("Comparison requires two operators");
+        final NumericTypes current = NumericTypes.forRowType(types, row.getClass(), operands);
+        types = current;
+        if (long.class == current.type)
+            return operator.eval(compareLongs(NumericTypes.evalLong(operands, 0, row, context),
+                    NumericTypes.evalLong(operands, 1, row, context)));
+        if (double.class == current.type)
+            return operator.eval(compareDoubles(current.evalDouble(operands, 0, row, context),
+                    current.evalDouble(operands, 1, row, context)));
         try {
-            final Object left = operands.get(0).eval(row, functions);
-            final Object right = operands.get(1).eval(row, functions);
-            if (null == evaluator)
-                evaluator = SqlComparisonEvaluator.pickEvaluator(left, right);
-            return operator.eval(evaluator.compare(left, right));
+            final Object left = operands.get(0).eval(row, context);
+            final Object right = operands.get(1).eval(row, context);
+            // Comparisons with null always fail, as in the compiled where clause
+            if (null == left || null == right)
+                return false;
+            return operator.eval(SqlComparisonEvaluator.pickEvaluator(left, right).compare(left, right));
         } catch (ClassCastException e) {
             throw new SQLException("At least one comparison side was not a comparable");
         } catch (final IndexOutOfBoundsException e) {
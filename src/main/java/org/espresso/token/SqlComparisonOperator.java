@@ -59,7 +59,7 @@ public enum SqlComparisonOperator {
         }
         @Override
         public boolean eval(int comparison) {
-            return 1 != comparison;
+            return -1 == comparison || 0 == comparison;
         }
     },
     GT {
@@ -79,13 +79,14 @@ public enum SqlComparisonOperator {
         }
         @Override
         public boolean eval(int comparison) {
-            return -1 != comparison;
+            return 1 == comparison || 0 == comparison;
         }
     };
 
     /**
      * Given the result of a call to Comparable.compareTo(), returns true or false depending
-     * on whether the condition was satisfied.
+     * on whether the condition was satisfied. Numbers that cannot be ordered because one of them is
+     * NaN (SqlComparisonEvaluator.UNORDERED) only satisfy !=.
      *
      * @param comparison the result of the call to Comparable.compareTo()
      * @return true or false depending on whether the comparison matched
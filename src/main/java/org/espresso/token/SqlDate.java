@@ -17,6 +17,7 @@ package org.espresso.token;
 
 import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 
 import java.lang.reflect.InvocationTargetException;
 import java.sql.SQLException;
@@ -30,7 +31,9 @@ import java.util.Map;
  */
 public class SqlDate<E> implements SqlExpressionNode<E> {
     private final String dateString;
-    private Date convertedDate = null;
+    // Converted the first time it is needed, since the toDate() extension is only known then.
+    // Concurrent first evaluations may convert it more than once, all to the same date.
+    private volatile Date convertedDate = null;
 
     /**
      * Given the column name, creates the column
@@ -63,20 +66,33 @@ public class SqlDate<E> implements SqlExpressionNode<E> {
      * Returns the date wrapped by this object.
      *
      * @param row Reference to the current object
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return the date object
      * @throws SQLException wraps all types of errors that may happen
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
-        if (null != convertedDate)
-            return convertedDate;
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        Date date = convertedDate;
+        if (null == date) {
+            date = toDate(context.getFunctions());
+            convertedDate = date;
+        }
+        return date;
+    }
+
+    /**
+     * Converts the date string to a date object using the toDate() extension.
+     *
+     * @param functions Function extensions, where toDate() is looked up
+     * @return the date object
+     * @throws SQLException if there is no toDate() extension, or if the conversion fails
+     */
+    public Date toDate(final Map<String, FunctionExtension> functions) throws SQLException {
         final FunctionExtension dateConverter = functions.get("toDate");
         if (null == dateConverter)
             throw new SQLException("Missing toDate() extension to handle date conversions");
         try {
-            convertedDate = (Date) dateConverter.invoke(getDateString());
-            return convertedDate;
+            return (Date) dateConverter.invoke(getDateString());
         } catch (IllegalAccessException e) {
             throw new SQLException("toDate() extension is not public", e);
         } catch (InvocationTargetException e) {
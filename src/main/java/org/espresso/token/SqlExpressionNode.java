@@ -15,11 +15,10 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
-import java.util.Map;
 
 /**
  * This is an empty interface used to represent a "generic" node in a condition.
@@ -28,14 +27,16 @@ import java.util.Map;
  */
 public interface SqlExpressionNode<E> {
     /**
-     * Evaluates the expression against the parameter
+     * Evaluates the expression against the parameter. Nodes are immutable once the tree is
+     * built, so the same tree can be evaluated by concurrent threads as long as each one uses
+     * its own context.
      *
      * @param row Object from where to get the data (similar to a DB row)
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return the result of evaluating the node against the object
      * @throws SQLException in case of errors (e.g., type mismatch: 1 and 2)
      */
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException;
+    public Object eval(final E row, final EvaluationContext context) throws SQLException;
 
     public void accept(final SqlNodeVisitor<E> visitor) throws SQLException;
 }
@@ -17,15 +17,13 @@ package org.espresso.token;
 
 import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 import org.espresso.eval.NumberNormalizer;
-import org.espresso.eval.NumberWrapper;
-import org.espresso.eval.NumberWrapperSetter;
 
 import java.lang.reflect.InvocationTargetException;
 import java.sql.SQLException;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import static org.espresso.eval.ClassUtil.asExpectedClass;
 
@@ -36,23 +34,25 @@ import static org.espresso.eval.ClassUtil.asExpectedClass;
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
 public class SqlFunction<E>
-        extends SqlExpression<E>
-        implements NumberWrapperSetter {
+        extends SqlExpression<E> {
     private final String name;
-    private NumberNormalizer normalizer = null;
-    private NumberWrapper wrapper = null;
+    private final int register;
 
     /**
      * Creates an instance of a function given its name.
      *
      * @param name the name of the function, never null
+     * @param register the register in the evaluation context where numeric results are stored
      *
-     * @throws IllegalArgumentException if the name is null
+     * @throws IllegalArgumentException if the name is null or the register is negative
      */
-    public SqlFunction(final String name) {
+    public SqlFunction(final String name, final int register) {
         if (null == name)
             throw new IllegalArgumentException("SqlFunction: name cannot be null");
+        if (0 > register)
+            throw new IllegalArgumentException("SqlFunction: register cannot be negative");
         this.name = name;
+        this.register = register;
     }
 
     /**
@@ -69,11 +69,6 @@ public class SqlFunction<E>
         return name;
     }
 
-    @Override
-    public void setNumberWrapper(final NumberWrapper wrapper) {
-        this.wrapper = wrapper;
-    }
-
     /**
      * Sets the list of parameters associated with this function.
      *
@@ -118,28 +113,26 @@ public class SqlFunction<E>
      * current object to the end of the list if the extension so requires it.
      *
      * @param row Reference to the current object
-     * @param functions Function extensions, passed down the expression tree
-     * @return the result of the function execution; if numeric, converts to BigDecimal
+     * @param context Per-thread evaluation state, passed down the expression tree
+     * @return the result of the function execution; if numeric, this function's register
      * @throws SQLException wraps any error that may happen
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
-        final FunctionExtension function = functions.get(name);
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        final FunctionExtension function = context.getFunctions().get(name);
         if (null == function)
             throw new SQLException("Implementation for function [" + name + "] was not supplied as extension");
         final Class<?>[] types = function.getParameterTypes();
         final Object[] parameters = new Object[types.length];
         for (int i = 0; i < operands.size(); i++)
-            parameters[i] = asExpectedClass(operands.get(i).eval(row, functions), types[i]);
+            parameters[i] = asExpectedClass(operands.get(i).eval(row, context), types[i]);
         if (operands.size() < parameters.length) // Need to append current object
                 parameters[parameters.length-1] = row;
         try {
             final Object result = function.invoke(parameters);
             if (null == result)
                 return null;
-            if (null == normalizer)
-                normalizer = NumberNormalizer.getNormalizer(result);
-            return normalizer.convertIfNeeded(result, wrapper, this);
+            return NumberNormalizer.getNormalizer(result).convertIfNeeded(result, context.getRegister(register));
         } catch (IllegalAccessException e) {
             throw new SQLException("Implementation of function " + name + " is not public", e);
         } catch (InvocationTargetException e) {
@@ -15,13 +15,14 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -32,20 +33,39 @@ import java.util.Set;
 public class SqlInExpression<E>
         extends SqlExpression<E> {
     private final SqlColumn column;
-    private Set inList = null;
+    // Options known when the tree is built (numbers, strings and NULL) are kept in a set; the
+    // others (dates, bind variables, expressions) are evaluated for each row.
+    private final Set<Object> constants = new HashSet<Object>();
+    private final List<SqlExpressionNode> variables = new ArrayList<SqlExpressionNode>();
     public final static String IN_OPERATOR = "IN";
 
     /**
      * Builds an in expression
      *
      * @param column the column that drives the predicate, never null
+     * @param options the in list, never null or empty
      *
-     * @throws IllegalArgumentException if a null column is supplied
+     * @throws IllegalArgumentException if a null column or an empty list of options is supplied
      */
-    public SqlInExpression(final SqlColumn column) {
+    public SqlInExpression(final SqlColumn column, final List<SqlExpressionNode> options) {
         if (null == column)
             throw new IllegalArgumentException("In: column cannot be null");
+        if (null == options || options.isEmpty())
+            throw new IllegalArgumentException("In: options cannot be empty");
         this.column = column;
+        for (final SqlExpressionNode option : options) {
+            if (null == option)
+                throw new IllegalArgumentException("In: option cannot be null");
+            operands.add(option);
+            if (option instanceof SqlNumber)
+                constants.add(((SqlNumber) option).getNumber());
+            else if (option instanceof SqlString)
+                constants.add(((SqlString) option).getString());
+            else if (option instanceof SqlNull)
+                constants.add(null);
+            else
+                variables.add(option);
+        }
     }
 
     /**
@@ -57,6 +77,18 @@ public class SqlInExpression<E>
         return column;
     }
 
+    /**
+     * The options are supplied to the constructor, so the set of constants can be built once
+     *
+     * @param operand ignored
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void addOperand(final SqlExpressionNode operand) {
+        throw new UnsupportedOperationException("In: options are set by the constructor");
+    }
+
     @Override
     public String getOperator() {
         return IN_OPERATOR;
@@ -81,24 +113,26 @@ public class SqlInExpression<E>
     }
 
     /**
-     * Evaluates the current column and check if it belongs to the supplied in list.
-     * Note that the operands from the base class are stored as a list; we convert
-     * the list to a set the first time eval is called to speed up the check.
+     * Evaluates the current column and check if it belongs to the supplied in list. The
+     * constant options were put in a set when the expression was built; the remaining ones
+     * are evaluated against the current row.
      *
      * @param row Reference to the current object
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return true or false whether the value of the current column belongs to the in list
      * @throws SQLException wraps any kind of error that may occur
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
-        if (null == inList) {
-            // In list initialized a la singleton style, the first time we access it.
-            inList = new HashSet(operands.size());
-            for (SqlExpressionNode element : operands)
-                inList.add(element.eval(row, functions));
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        final Object value = column.eval(row, context);
+        if (constants.contains(value))
+            return true;
+        for (final SqlExpressionNode variable : variables) {
+            final Object option = variable.eval(row, context);
+            if (null == value ? null == option : value.equals(option))
+                return true;
         }
-        return inList.contains(column.eval(row, functions));
+        return false;
     }
 
 
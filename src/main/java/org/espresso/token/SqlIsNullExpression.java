@@ -15,11 +15,10 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
-import java.util.Map;
 
 /**
  * Represents the "is null" or "is not null" predicate
@@ -78,13 +77,13 @@ public class SqlIsNullExpression<E>
      * Checks if the value in the current corresponding to the column is null.
      *
      * @param row Reference to the current object
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return true or false, depending on the test
      * @throws SQLException
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
-        final Object operand = column.eval(row, functions);
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        final Object operand = column.eval(row, context);
         return isNull ? null == operand : null != operand;
     }
 
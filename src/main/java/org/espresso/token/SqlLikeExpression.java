@@ -15,13 +15,12 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
-import java.util.Map;
 import java.util.regex.Pattern;
 
 import static java.text.CharacterIterator.DONE;
@@ -37,7 +36,57 @@ public class SqlLikeExpression<E> extends SqlExpression<E> {
     /** @see java.util.regex.Pattern */
     private static final String META = "!$()*+.<>?[\\]^{|}";
 
-    private Pattern compiledPattern = null;
+    private final SqlColumn column;
+    private final SqlString pattern;
+    private final Pattern compiledPattern;
+
+    /**
+     * Builds the like expression, converting the pattern to a regular expression up front
+     *
+     * @param column the column to match, never null
+     * @param pattern the LIKE pattern, never null
+     *
+     * @throws IllegalArgumentException if either the column or the pattern is null
+     */
+    public SqlLikeExpression(final SqlColumn column, final SqlString pattern) {
+        if (null == column || null == pattern)
+            throw new IllegalArgumentException("SqlLikeExpression: column and pattern cannot be null");
+        this.column = column;
+        this.pattern = pattern;
+        this.compiledPattern = toPattern(pattern.getString());
+        operands.add(column);
+        operands.add(pattern);
+    }
+
+    /**
+     * Accessor to the column object
+     *
+     * @return the column object
+     */
+    public SqlColumn getColumn() {
+        return column;
+    }
+
+    /**
+     * Accessor to the pattern
+     *
+     * @return the LIKE pattern
+     */
+    public SqlString getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Both operands are supplied to the constructor, so the pattern can be compiled once
+     *
+     * @param operand ignored
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void addOperand(final SqlExpressionNode operand) {
+        throw new UnsupportedOperationException("SqlLikeExpression: operands are set by the constructor");
+    }
 
     @Override
     public String getOperator() {
@@ -45,30 +94,24 @@ public class SqlLikeExpression<E> extends SqlExpression<E> {
     }
 
     @Override
-    public Object eval(E row, Map<String, FunctionExtension> functions) throws SQLException {
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
         try {
-            final String left = (String) operands.get(0).eval(row, functions);
-            final String right = (String) operands.get(1).eval(row, functions);
-            return matches(left, right);
+            final String left = (String) column.eval(row, context);
+            return null != left && compiledPattern.matcher(left).matches();
         } catch (ClassCastException e) {
             throw new SQLException("LIKE requires a string expression");
-        } catch (final IndexOutOfBoundsException e) {
-            throw new SQLException("LIKE requires two operands");
         }
     }
 
-
-    private boolean matches(final String s, final String pattern) {
-        if (null == s)
-            return false;
-        /*
-         * 1. Escape regex metacharacters in LIKE pattern.
-         * 2. Replace all '%' characters with regex '.*' pattern.
-         * 3. Match regex pattern against input string.
-         */
-        if (null == compiledPattern)
-            compiledPattern = compile(PERCENT.matcher(escape(pattern)).replaceAll(".*"));
-        return compiledPattern.matcher(s).matches();
+    /**
+     * Converts a LIKE pattern to the equivalent regular expression: escapes the regular
+     * expression metacharacters, then replaces all '%' characters with '.*'.
+     *
+     * @param pattern the LIKE pattern, where '%' matches any sequence of characters
+     * @return the compiled regular expression
+     */
+    public static Pattern toPattern(final String pattern) {
+        return compile(PERCENT.matcher(escape(pattern)).replaceAll(".*"));
     }
 
     private static String escape(final String s) {
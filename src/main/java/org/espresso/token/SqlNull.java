@@ -15,11 +15,10 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
-import java.util.Map;
 
 /**
  * Represents the SQL NULL element
@@ -37,12 +36,12 @@ public class SqlNull<E> implements SqlExpressionNode<E>, Comparable {
     /**
      * Returns a null as the value for a SQL NULL
      * @param row Object from where to get the data (similar to a DB row)
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return null
      * @throws SQLException in case of any errors
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
         return null;
     }
 
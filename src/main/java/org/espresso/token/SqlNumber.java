@@ -15,19 +15,18 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 import org.espresso.eval.NumberWrapper;
 
 import java.sql.SQLException;
-import java.util.Map;
 
 /**
  * Represents a number, which could be a long or a double.
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
-public class SqlNumber<E> implements SqlExpressionNode<E> {
+public class SqlNumber<E> implements SqlNumericNode<E> {
     private final NumberWrapper number;
 
     /**
@@ -56,15 +55,30 @@ public class SqlNumber<E> implements SqlExpressionNode<E> {
     /**
      * Returns the number, already stored as a BigDecimal
      * @param row Object from where to get the data (similar to a DB row)
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return the number
      * @throws SQLException never happens in this case
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
         return number;
     }
 
+    @Override
+    public Class<?> numericType(final Class<?> rowType) {
+        return number.isDouble() ? double.class : long.class;
+    }
+
+    @Override
+    public long evalLong(final E row, final EvaluationContext context) throws SQLException {
+        return number.asLong();
+    }
+
+    @Override
+    public double evalDouble(final E row, final EvaluationContext context) throws SQLException {
+        return number.asDouble();
+    }
+
     /**
      * Accept method for the visitor pattern, turn around and call visit on the visitor.
      * Pretty standard, nothing new here...
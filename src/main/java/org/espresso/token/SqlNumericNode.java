@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.token;
+
+import org.espresso.eval.EvaluationContext;
+
+import java.sql.SQLException;
+
+/**
+ * A node that can produce its value as a primitive long or double, so comparisons and arithmetic
+ * can be evaluated without going through NumberWrappers. Whether it can do so depends on the
+ * type of the rows: a column may be an int in one class and an Integer (which can be null) in
+ * another.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public interface SqlNumericNode<E> extends SqlExpressionNode<E> {
+    /**
+     * The type of the value this node produces for rows of the given type
+     *
+     * @param rowType the class of the rows
+     *
+     * @return long.class or double.class, or null if the value may not be a primitive number
+     */
+    public Class<?> numericType(final Class<?> rowType);
+
+    /**
+     * Evaluates the node as a long; only called when numericType is long.class
+     */
+    public long evalLong(final E row, final EvaluationContext context) throws SQLException;
+
+    /**
+     * Evaluates the node as a double; only called when numericType is not null
+     */
+    public double evalDouble(final E row, final EvaluationContext context) throws SQLException;
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.token;
+
+import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
+import org.espresso.eval.NumberWrapper;
+
+import java.sql.SQLException;
+
+/**
+ * Represents a bind variable, either positional (?) or named (:name). Each bind variable refers
+ * to a slot in the array of values supplied when the statement is executed; named bind variables
+ * that show up more than once in the statement share the same slot.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class SqlParameter<E> implements SqlExpressionNode<E> {
+    private final int index;
+    private final String name;
+
+    /**
+     * Builds the bind variable
+     * @param index the slot holding the value, starting at 0
+     * @param name the name of the bind variable, or null if it is positional
+     * @throws IllegalArgumentException if the slot is negative
+     */
+    public SqlParameter(final int index, final String name) {
+        if (0 > index)
+            throw new IllegalArgumentException("SqlParameter: index cannot be negative");
+        this.index = index;
+        this.name = name;
+    }
+
+    /**
+     * Accessor to the slot that holds the value of this bind variable
+     * @return the slot, starting at 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Accessor to the name of the bind variable
+     * @return the name (without the colon), or null for positional bind variables
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return null == name ? "?" : ':' + name;
+    }
+
+    /**
+     * Returns the value bound to this slot in the context - numbers are returned as
+     * NumberWrappers, same as SqlNumber
+     * @param row Object from where to get the data (similar to a DB row)
+     * @param context Per-thread evaluation state, passed down the expression tree
+     * @return the bound value
+     * @throws SQLException if no value was bound
+     */
+    @Override
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
+        if (index >= context.getParameterCount())
+            throw new SQLException("No value bound to " + this);
+        return context.getParameter(index);
+    }
+
+    /**
+     * Accept method for the visitor pattern, turn around and call visit on the visitor.
+     * Pretty standard, nothing new here...
+     *
+     * @param visitor the visitor to this class
+     */
+    @Override
+    public void accept(final SqlNodeVisitor<E> visitor) throws SQLException {
+        visitor.visit(this);
+    }
+
+    /**
+     * Converts a bound value to the representation used by the interpreter and the indices:
+     * numbers become NumberWrappers, everything else is left alone.
+     * @param value the value as supplied by the user
+     * @return the normalized value
+     */
+    public static Object normalize(final Object value) {
+        if (isIntegral(value))
+            return new NumberWrapper(((Number) value).longValue());
+        if (value instanceof Number)
+            return new NumberWrapper(((Number) value).doubleValue());
+        return value;
+    }
+
+    /**
+     * The type the compiled code uses to read a bound value: Long for integral numbers, Double
+     * for the other numbers, and the class of the value otherwise.
+     * @param value the value as supplied by the user
+     * @return the type, or null if the value is null
+     */
+    public static Class<?> typeOf(final Object value) {
+        if (isIntegral(value))
+            return Long.class;
+        if (value instanceof Number)
+            return Double.class;
+        return null == value ? null : value.getClass();
+    }
+
+    private static boolean isIntegral(final Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte;
+    }
+}
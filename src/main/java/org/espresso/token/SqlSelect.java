@@ -15,27 +15,66 @@
  */
 package org.espresso.token;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Representation of a subset of a SQL select statement. It does not support a list of columns to
- * select, and you can select from a single table only.
+ * select, and you can select from a single table only. The statement either selects the matching
+ * rows (SELECT *) or counts them (SELECT COUNT(*)), and may limit how many rows are selected or
+ * counted (LIMIT n).
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
 public class SqlSelect
         implements SqlStatement {
+    // Selects all matching rows
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
     private final String from;
     private String fromAlias;
     private final SqlExpressionNode whereClause;
+    private final List<SqlParameter> parameters;
+    private final int registerCount;
+    private final boolean count;
+    private final int limit;
+
+    /**
+     * Builds a select statement given the table name, the where clause, the bind variables
+     * the where clause refers to and how many registers its nodes use
+     *
+     * @param from the table name from where to select
+     * @param whereClause the restriction
+     * @param parameters every bind variable in the where clause, in the order they show up
+     * @param registerCount how many registers (see EvaluationContext) the where clause uses
+     */
+    public SqlSelect(final String from, final SqlExpressionNode whereClause,
+            final List<SqlParameter> parameters, final int registerCount) {
+        this(from, whereClause, parameters, registerCount, false, NO_LIMIT);
+    }
 
     /**
-     * Builds a select statement given the table name and the where clause
+     * Builds a select statement that may count the matching rows instead of selecting them, and
+     * may stop after a number of rows
      *
      * @param from the table name from where to select
      * @param whereClause the restriction
+     * @param parameters every bind variable in the where clause, in the order they show up
+     * @param registerCount how many registers (see EvaluationContext) the where clause uses
+     * @param count whether this is a SELECT COUNT(*)
+     * @param limit at most how many rows to select or count, NO_LIMIT for all of them
      */
-    public SqlSelect(final String from, final SqlExpressionNode whereClause) {
+    public SqlSelect(final String from, final SqlExpressionNode whereClause,
+            final List<SqlParameter> parameters, final int registerCount, final boolean count,
+            final int limit) {
+        if (0 > limit)
+            throw new IllegalArgumentException("SqlSelect: limit cannot be negative");
         this.from = from;
         this.whereClause = whereClause;
+        this.parameters = Collections.unmodifiableList(parameters);
+        this.registerCount = registerCount;
+        this.count = count;
+        this.limit = limit;
     }
 
     /**
@@ -74,6 +113,55 @@ public class SqlSelect
         return whereClause;
     }
 
+    /**
+     * Accessor to the bind variables. Named bind variables used more than once show up once for
+     * each time they are used, all referring to the same slot.
+     *
+     * @return the bind variables, in the order they show up in the where clause
+     */
+    public List<SqlParameter> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * How many values must be supplied when executing this statement
+     *
+     * @return the number of slots used by the bind variables
+     */
+    public int getParameterCount() {
+        int count = 0;
+        for (final SqlParameter parameter : parameters)
+            count = Math.max(count, parameter.getIndex() + 1);
+        return count;
+    }
+
+    /**
+     * How many registers the evaluation context needs to interpret the where clause
+     *
+     * @return the number of registers
+     */
+    public int getRegisterCount() {
+        return registerCount;
+    }
+
+    /**
+     * Whether the statement counts the matching rows (SELECT COUNT(*)) instead of selecting them
+     *
+     * @return true for SELECT COUNT(*)
+     */
+    public boolean isCount() {
+        return count;
+    }
+
+    /**
+     * At most how many rows the statement selects, or counts
+     *
+     * @return the limit, NO_LIMIT if there is none
+     */
+    public int getLimit() {
+        return limit;
+    }
+
     /**
      * The string representation of teh SQL statement as SELECT * FROM table WHERE ...
      *
@@ -81,7 +169,7 @@ public class SqlSelect
      */
     @Override
     public String toString() {
-        return "SELECT * FROM " + (null == fromAlias ? from : fromAlias) + " WHERE " + whereClause
-                + ';';
+        return "SELECT " + (count ? "COUNT(*)" : "*") + " FROM " + (null == fromAlias ? from : fromAlias)
+                + " WHERE " + whereClause + (NO_LIMIT == limit ? "" : " LIMIT " + limit) + ';';
     }
 }
@@ -15,11 +15,10 @@
  */
 package org.espresso.token;
 
-import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
+import org.espresso.eval.EvaluationContext;
 
 import java.sql.SQLException;
-import java.util.Map;
 
 /**
  * Represents a string that is part of a where clause
@@ -58,12 +57,12 @@ public class SqlString<E> implements SqlExpressionNode<E> {
     /**
      * Returns the current string without the quotes
      * @param row Object from where to get the data (similar to a DB row)
-     * @param functions Function extensions, passed down the expression tree
+     * @param context Per-thread evaluation state, passed down the expression tree
      * @return the string with no quotes
      * @throws SQLException
      */
     @Override
-    public Object eval(final E row, final Map<String, FunctionExtension> functions) throws SQLException {
+    public Object eval(final E row, final EvaluationContext context) throws SQLException {
         return noQuotes;
     }
 
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compressed set of non-negative integers, along the lines of Roaring bitmaps. The integers are
+ * split in chunks of 65536 by their upper 16 bits, and each chunk keeps the lower 16 bits of its
+ * integers either in a sorted array, while it holds up to 4096 of them, or in a plain bitmap of
+ * 1024 words otherwise. Sparse and dense sets alike take little memory, and AND, OR and AND NOT
+ * are computed chunk by chunk, a word at a time whenever both chunks are bitmaps.
+ * <p/>
+ * Bitmaps are not thread safe: threads sharing a bitmap that is being changed must synchronize.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public final class Bitmap {
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int WORDS = 1024;
+    private static final int CHUNK = 1 << 16;
+
+    private char[] keys;
+    private Container[] containers;
+    private int chunks;
+
+    /** Builds an empty bitmap */
+    public Bitmap() {
+        this(new char[4], new Container[4], 0);
+    }
+
+    private Bitmap(final char[] keys, final Container[] containers, final int chunks) {
+        this.keys = keys;
+        this.containers = containers;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Adds an integer to the bitmap
+     *
+     * @param value the integer, not negative
+     *
+     * @return true if the integer was not in the bitmap yet
+     */
+    public boolean add(final int value) {
+        if (0 > value)
+            throw new IllegalArgumentException("Bitmap: negative value " + value);
+        final char key = (char) (value >>> 16);
+        int chunk = find(key);
+        if (0 > chunk) {
+            chunk = -chunk - 1;
+            insertAt(chunk, key, new ArrayContainer(new char[4], 0));
+        }
+        final int cardinality = containers[chunk].cardinality;
+        containers[chunk] = containers[chunk].add((char) value);
+        return cardinality != containers[chunk].cardinality;
+    }
+
+    /**
+     * Removes an integer from the bitmap
+     *
+     * @param value the integer
+     *
+     * @return true if the integer was in the bitmap
+     */
+    public boolean remove(final int value) {
+        if (0 > value)
+            return false;
+        final int chunk = find((char) (value >>> 16));
+        if (0 > chunk)
+            return false;
+        final int cardinality = containers[chunk].cardinality;
+        final Container container = containers[chunk].remove((char) value);
+        if (0 == container.cardinality)
+            removeAt(chunk);
+        else
+            containers[chunk] = container;
+        return cardinality != container.cardinality;
+    }
+
+    public boolean contains(final int value) {
+        if (0 > value)
+            return false;
+        final int chunk = find((char) (value >>> 16));
+        return 0 <= chunk && containers[chunk].contains((char) value);
+    }
+
+    /**
+     * Finds the smallest integer in the bitmap that is not less than the given one, so the bitmap
+     * can be traversed in order with {@code for (int i = next(0); 0 <= i; i = next(i + 1))}
+     *
+     * @param from where to start looking
+     *
+     * @return the integer found, or -1 if there is none
+     */
+    public int next(final int from) {
+        final int start = Math.max(0, from);
+        int chunk = find((char) (start >>> 16));
+        if (0 <= chunk) {
+            final int low = containers[chunk].next(start & 0xFFFF);
+            if (0 <= low)
+                return keys[chunk] << 16 | low;
+            chunk += 1;
+        } else
+            chunk = -chunk - 1;
+        return chunk < chunks ? keys[chunk] << 16 | containers[chunk].next(0) : -1;
+    }
+
+    /**
+     * Finds the largest integer in the bitmap
+     *
+     * @return the integer found, or -1 if the bitmap is empty
+     */
+    public int last() {
+        return 0 == chunks ? -1 : keys[chunks - 1] << 16 | containers[chunks - 1].last();
+    }
+
+    /**
+     * How many integers there are in the bitmap. This only adds up the sizes of the chunks.
+     *
+     * @return the number of integers
+     */
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < chunks; i++)
+            cardinality += containers[i].cardinality;
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return 0 == chunks;
+    }
+
+    /** Removes all integers from the bitmap */
+    public void clear() {
+        keys = new char[4];
+        containers = new Container[4];
+        chunks = 0;
+    }
+
+    /**
+     * Copies the bitmap, so the copy is not affected by changes to this bitmap, and vice versa
+     *
+     * @return the copy
+     */
+    public Bitmap copy() {
+        final Container[] copies = new Container[Math.max(4, chunks)];
+        for (int i = 0; i < chunks; i++)
+            copies[i] = containers[i].copy();
+        return new Bitmap(Arrays.copyOf(keys, copies.length), copies, chunks);
+    }
+
+    /**
+     * Computes the integers in both this bitmap and the other one
+     *
+     * @param other the other bitmap
+     *
+     * @return a new bitmap with the intersection
+     */
+    public Bitmap and(final Bitmap other) {
+        final Bitmap result = new Bitmap(new char[Math.max(4, Math.min(chunks, other.chunks))],
+                new Container[Math.max(4, Math.min(chunks, other.chunks))], 0);
+        int i = 0;
+        int j = 0;
+        while (i < chunks && j < other.chunks) {
+            if (keys[i] < other.keys[j])
+                i++;
+            else if (keys[i] > other.keys[j])
+                j++;
+            else {
+                result.append(keys[i], and(containers[i], other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the integers in this bitmap, the other one, or both
+     *
+     * @param other the other bitmap
+     *
+     * @return a new bitmap with the union
+     */
+    public Bitmap or(final Bitmap other) {
+        final Bitmap result = new Bitmap(new char[Math.max(4, chunks + other.chunks)],
+                new Container[Math.max(4, chunks + other.chunks)], 0);
+        int i = 0;
+        int j = 0;
+        while (i < chunks || j < other.chunks) {
+            if (j == other.chunks || i < chunks && keys[i] < other.keys[j])
+                result.append(keys[i], containers[i++].copy());
+            else if (i == chunks || keys[i] > other.keys[j])
+                result.append(other.keys[j], other.containers[j++].copy());
+            else
+                result.append(keys[i], or(containers[i++], other.containers[j++]));
+        }
+        return result;
+    }
+
+    /**
+     * Computes the integers in any of the bitmaps. The bitmaps are ORed in pairs, then the results
+     * in pairs, and so on, so each integer is copied a logarithmic number of times rather than once
+     * per bitmap.
+     *
+     * @param bitmaps the bitmaps
+     *
+     * @return a new bitmap with the union, empty if there are no bitmaps
+     */
+    public static Bitmap or(final List<Bitmap> bitmaps) {
+        if (bitmaps.isEmpty())
+            return new Bitmap();
+        if (1 == bitmaps.size())
+            return bitmaps.get(0).copy();
+        final int middle = bitmaps.size() >>> 1;
+        return or(bitmaps.subList(0, middle)).or(or(bitmaps.subList(middle, bitmaps.size())));
+    }
+
+    /**
+     * Computes the integers in this bitmap that are not in the other one
+     *
+     * @param other the other bitmap
+     *
+     * @return a new bitmap with the difference
+     */
+    public Bitmap andNot(final Bitmap other) {
+        final Bitmap result = new Bitmap(new char[Math.max(4, chunks)], new Container[Math.max(4, chunks)], 0);
+        int j = 0;
+        for (int i = 0; i < chunks; i++) {
+            while (j < other.chunks && other.keys[j] < keys[i])
+                j++;
+            if (j < other.chunks && other.keys[j] == keys[i])
+                result.append(keys[i], andNot(containers[i], other.containers[j]));
+            else
+                result.append(keys[i], containers[i].copy());
+        }
+        return result;
+    }
+
+    /**
+     * Estimates the memory taken by the bitmap, in bytes, assuming 64 bit JVMs with compressed
+     * references: 16 bytes per object header, plus its fields and array elements
+     *
+     * @return the estimated size
+     */
+    public long sizeInBytes() {
+        long size = 24 + 16 + 2L * keys.length + 16 + 4L * containers.length;
+        for (int i = 0; i < chunks; i++)
+            size += containers[i].sizeInBytes();
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("{");
+        for (int i = next(0); 0 <= i; i = next(i + 1))
+            builder.append(1 == builder.length() ? "" : ", ").append(i);
+        return builder.append('}').toString();
+    }
+
+    private int find(final char key) {
+        return Arrays.binarySearch(keys, 0, chunks, key);
+    }
+
+    private void insertAt(final int chunk, final char key, final Container container) {
+        if (chunks == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * chunks);
+            containers = Arrays.copyOf(containers, 2 * chunks);
+        }
+        System.arraycopy(keys, chunk, keys, chunk + 1, chunks - chunk);
+        System.arraycopy(containers, chunk, containers, chunk + 1, chunks - chunk);
+        keys[chunk] = key;
+        containers[chunk] = container;
+        chunks += 1;
+    }
+
+    private void removeAt(final int chunk) {
+        System.arraycopy(keys, chunk + 1, keys, chunk, chunks - chunk - 1);
+        System.arraycopy(containers, chunk + 1, containers, chunk, chunks - chunk - 1);
+        chunks -= 1;
+        containers[chunks] = null;
+    }
+
+    /** Appends a chunk past the last one, unless it is empty */
+    private void append(final char key, final Container container) {
+        if (0 == container.cardinality)
+            return;
+        if (chunks == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * chunks);
+            containers = Arrays.copyOf(containers, 2 * chunks);
+        }
+        keys[chunks] = key;
+        containers[chunks++] = container;
+    }
+
+    private static Container and(final Container left, final Container right) {
+        if (left instanceof WordContainer && right instanceof WordContainer) {
+            final long[] words = ((WordContainer) left).words.clone();
+            final long[] others = ((WordContainer) right).words;
+            for (int i = 0; i < WORDS; i++)
+                words[i] &= others[i];
+            return WordContainer.of(words);
+        }
+        final ArrayContainer array = (ArrayContainer) (left instanceof ArrayContainer ? left : right);
+        final Container other = array == left ? right : left;
+        final char[] values = new char[array.cardinality];
+        int cardinality = 0;
+        for (int i = 0; i < array.cardinality; i++)
+            if (other.contains(array.values[i]))
+                values[cardinality++] = array.values[i];
+        return new ArrayContainer(values, cardinality);
+    }
+
+    private static Container or(final Container left, final Container right) {
+        if (left instanceof ArrayContainer && right instanceof ArrayContainer
+                && ARRAY_LIMIT >= left.cardinality + right.cardinality) {
+            final ArrayContainer first = (ArrayContainer) left;
+            final ArrayContainer second = (ArrayContainer) right;
+            final char[] values = new char[first.cardinality + second.cardinality];
+            int cardinality = 0;
+            int i = 0;
+            int j = 0;
+            while (i < first.cardinality || j < second.cardinality) {
+                if (j == second.cardinality || i < first.cardinality && first.values[i] < second.values[j])
+                    values[cardinality++] = first.values[i++];
+                else if (i == first.cardinality || first.values[i] > second.values[j])
+                    values[cardinality++] = second.values[j++];
+                else {
+                    values[cardinality++] = first.values[i++];
+                    j++;
+                }
+            }
+            return new ArrayContainer(values, cardinality);
+        }
+        final long[] words = left.toWords();
+        right.setIn(words);
+        return WordContainer.of(words);
+    }
+
+    private static Container andNot(final Container left, final Container right) {
+        if (left instanceof ArrayContainer) {
+            final ArrayContainer array = (ArrayContainer) left;
+            final char[] values = new char[array.cardinality];
+            int cardinality = 0;
+            for (int i = 0; i < array.cardinality; i++)
+                if (!right.contains(array.values[i]))
+                    values[cardinality++] = array.values[i];
+            return new ArrayContainer(values, cardinality);
+        }
+        final long[] words = ((WordContainer) left).words.clone();
+        if (right instanceof WordContainer) {
+            final long[] others = ((WordContainer) right).words;
+            for (int i = 0; i < WORDS; i++)
+                words[i] &= ~others[i];
+        } else {
+            final ArrayContainer array = (ArrayContainer) right;
+            for (int i = 0; i < array.cardinality; i++)
+                words[array.values[i] >>> 6] &= ~(1L << array.values[i]);
+        }
+        return WordContainer.of(words);
+    }
+
+    /**
+     * The lower 16 bits of the integers of a chunk. Adding and removing return the container that
+     * holds the result, which is another one whenever the chunk changes representation.
+     */
+    private abstract static class Container {
+        int cardinality;
+
+        abstract Container add(final char value);
+
+        abstract Container remove(final char value);
+
+        abstract boolean contains(final char value);
+
+        /** The smallest value not less than from, which goes up to 65536, or -1 if there is none */
+        abstract int next(final int from);
+
+        /** The largest value, the container not being empty */
+        abstract int last();
+
+        abstract Container copy();
+
+        abstract long sizeInBytes();
+
+        abstract long[] toWords();
+
+        abstract void setIn(final long[] words);
+    }
+
+    /** Sorted array of values, for chunks with up to ARRAY_LIMIT values */
+    private static final class ArrayContainer
+            extends Container {
+        private char[] values;
+
+        ArrayContainer(final char[] values, final int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(final char value) {
+            final int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (0 <= index)
+                return this;
+            if (ARRAY_LIMIT == cardinality) {
+                final long[] words = toWords();
+                words[value >>> 6] |= 1L << value;
+                return new WordContainer(words, cardinality + 1);
+            }
+            final int insertion = -index - 1;
+            if (cardinality == values.length)
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, 2 * cardinality));
+            System.arraycopy(values, insertion, values, insertion + 1, cardinality - insertion);
+            values[insertion] = value;
+            cardinality += 1;
+            return this;
+        }
+
+        @Override
+        Container remove(final char value) {
+            final int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (0 > index)
+                return this;
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            cardinality -= 1;
+            return this;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return 0 <= Arrays.binarySearch(values, 0, cardinality, value);
+        }
+
+        @Override
+        int next(final int from) {
+            if (CHUNK <= from)
+                return -1;
+            int index = Arrays.binarySearch(values, 0, cardinality, (char) from);
+            if (0 > index)
+                index = -index - 1;
+            return index < cardinality ? values[index] : -1;
+        }
+
+        @Override
+        int last() {
+            return values[cardinality - 1];
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 24 + 16 + 2L * values.length;
+        }
+
+        @Override
+        long[] toWords() {
+            final long[] words = new long[WORDS];
+            setIn(words);
+            return words;
+        }
+
+        @Override
+        void setIn(final long[] words) {
+            for (int i = 0; i < cardinality; i++)
+                words[values[i] >>> 6] |= 1L << values[i];
+        }
+    }
+
+    /** Plain bitmap, for chunks with more than ARRAY_LIMIT values */
+    private static final class WordContainer
+            extends Container {
+        private final long[] words;
+
+        WordContainer(final long[] words, final int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        /** The container for the given words, back to an array if there are few values left */
+        static Container of(final long[] words) {
+            int cardinality = 0;
+            for (final long word : words)
+                cardinality += Long.bitCount(word);
+            if (ARRAY_LIMIT < cardinality)
+                return new WordContainer(words, cardinality);
+            return new WordContainer(words, cardinality).toArray();
+        }
+
+        @Override
+        Container add(final char value) {
+            final long bit = 1L << value;
+            if (0 == (words[value >>> 6] & bit)) {
+                words[value >>> 6] |= bit;
+                cardinality += 1;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(final char value) {
+            final long bit = 1L << value;
+            if (0 == (words[value >>> 6] & bit))
+                return this;
+            words[value >>> 6] &= ~bit;
+            cardinality -= 1;
+            return ARRAY_LIMIT < cardinality ? this : toArray();
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return 0 != (words[value >>> 6] & 1L << value);
+        }
+
+        @Override
+        int next(final int from) {
+            if (CHUNK <= from)
+                return -1;
+            int index = from >>> 6;
+            long word = words[index] & -1L << from;
+            while (0 == word) {
+                if (WORDS == ++index)
+                    return -1;
+                word = words[index];
+            }
+            return index << 6 | Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        int last() {
+            int index = WORDS - 1;
+            while (0 == words[index])
+                index--;
+            return index << 6 | 63 - Long.numberOfLeadingZeros(words[index]);
+        }
+
+        @Override
+        Container copy() {
+            return new WordContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 24 + 16 + 8L * WORDS;
+        }
+
+        @Override
+        long[] toWords() {
+            return words.clone();
+        }
+
+        @Override
+        void setIn(final long[] others) {
+            for (int i = 0; i < WORDS; i++)
+                others[i] |= words[i];
+        }
+
+        private ArrayContainer toArray() {
+            final char[] values = new char[Math.max(1, cardinality)];
+            int index = 0;
+            for (int value = next(0); 0 <= value; value = next(value + 1))
+                values[index++] = (char) value;
+            return new ArrayContainer(values, cardinality);
+        }
+    }
+}
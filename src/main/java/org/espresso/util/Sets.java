@@ -56,6 +56,12 @@ public class Sets {
                 return delegate.size();
             }
 
+            /** Splits along the hash table, rather than copying batches of the iterator */
+            @Override
+            public Spliterator<T> spliterator() {
+                return delegate.keySet().spliterator();
+            }
+
             /**
              * {@inheritDoc}
              *
@@ -66,6 +72,17 @@ public class Sets {
                 return null != t && null == delegate.put(t, t);
             }
 
+            /**
+             * {@inheritDoc}
+             *
+             * Looks the element up in the backing map, rather than going over all elements.
+             * Returns {@code false} for null elements.
+             */
+            @Override
+            public boolean contains(final Object o) {
+                return null != o && delegate.containsKey(o);
+            }
+
             /**
              * {@inheritDoc}
              *
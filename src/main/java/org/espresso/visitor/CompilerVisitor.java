@@ -15,24 +15,52 @@
  */
 package org.espresso.visitor;
 
+import org.espresso.FunctionExtension;
 import org.espresso.SqlNodeVisitor;
 import org.espresso.eval.Evaluator;
 import org.espresso.eval.EvaluatorHelper;
+import org.espresso.eval.NumberWrapper;
+import org.espresso.index.Getters;
 import org.espresso.token.*;
 import org.apache.bcel.classfile.JavaClass;
-import org.apache.bcel.classfile.Method;
 import org.apache.bcel.generic.*;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.sql.SQLException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import static org.espresso.token.SqlBooleanOperator.AND;
 import static org.espresso.token.SqlBooleanOperator.NOT;
+import static org.espresso.token.SqlBooleanOperator.OR;
+import static org.espresso.token.SqlComparisonOperator.EQ;
+import static org.espresso.token.SqlComparisonOperator.GE;
+import static org.espresso.token.SqlComparisonOperator.LE;
+import static org.espresso.token.SqlComparisonOperator.LT;
+import static org.espresso.token.SqlComparisonOperator.NE;
 import static org.espresso.visitor.JvmType.*;
-import static java.lang.Character.toLowerCase;
-import static java.lang.Character.toUpperCase;
+import static org.apache.bcel.Constants.ACC_FINAL;
+import static org.apache.bcel.Constants.ACC_PRIVATE;
 import static org.apache.bcel.Constants.ACC_PUBLIC;
 
 
@@ -47,6 +75,13 @@ import static org.apache.bcel.Constants.ACC_PUBLIC;
 public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
     private final Class<E> rowType;
     private final SqlExpressionNode<E> root;
+    private final Map<String, FunctionExtension> functions;
+    private final Class<?>[] parameterTypes;
+
+    // Objects the generated code refers to (IN lists, LIKE patterns, dates, extensions). Each one
+    // becomes a final field of the generated class, populated by its constructor.
+    private final List<Object> constants = new ArrayList<Object>();
+    private final List<Type> constantTypes = new ArrayList<Type>();
 
     private final ConstantPoolGen constPoolGen;
     private final ClassGen classGen;
@@ -56,8 +91,16 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
     private static final String evaluatorFullName = Evaluator.class.getCanonicalName();
     private final String generatedClassName;
     private static final AtomicInteger generatedClassNumber = new AtomicInteger(0);
-    
-    private static final EvaluatorLoader evaluatorLoader = new EvaluatorLoader();
+
+    // The generated classes, cleared as the classes are unloaded, and how many were ever defined
+    private static final Set<Reference<Class<?>>> liveClasses =
+            Collections.newSetFromMap(new ConcurrentHashMap<Reference<Class<?>>, Boolean>());
+    private static final ReferenceQueue<Class<?>> unloadedClasses = new ReferenceQueue<Class<?>>();
+    private static final AtomicLong definedClasses = new AtomicLong();
+
+    // How much more calls cost than any other instruction, when ordering the operands of AND and OR
+    private static final int HELPER_COST = 2;
+    private static final int CALL_COST = 50;
 
     /**
      * Constructs a compiler for a given node type and where clause
@@ -65,8 +108,36 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
      * @param root the parsed where clause as a tree that returns a boolean
      */
     public CompilerVisitor(final Class<E> nodeType, final SqlExpressionNode<E> root) {
+        this(nodeType, root, Collections.<String, FunctionExtension>emptyMap());
+    }
+
+    /**
+     * Constructs a compiler for a given node type and where clause, using the supplied extensions
+     * to resolve function calls and date conversions
+     * @param nodeType Type of node used to evaluate the where clause, needed for proper casting
+     * @param root the parsed where clause as a tree that returns a boolean
+     * @param functions Function extensions, called directly by the generated code
+     */
+    public CompilerVisitor(final Class<E> nodeType, final SqlExpressionNode<E> root,
+            final Map<String, FunctionExtension> functions) {
+        this(nodeType, root, functions, new Class<?>[0]);
+    }
+
+    /**
+     * Constructs a compiler for a where clause with bind variables. The generated code reads the
+     * value of each bind variable from the slot array passed to Evaluator.matches, assuming it
+     * is of the type supplied here (see SqlParameter.typeOf).
+     * @param nodeType Type of node used to evaluate the where clause, needed for proper casting
+     * @param root the parsed where clause as a tree that returns a boolean
+     * @param functions Function extensions, called directly by the generated code
+     * @param parameterTypes the type of the value bound to each slot, null for null values
+     */
+    public CompilerVisitor(final Class<E> nodeType, final SqlExpressionNode<E> root,
+            final Map<String, FunctionExtension> functions, final Class<?>[] parameterTypes) {
         this.rowType = nodeType;
         this.root = root;
+        this.functions = null == functions ? Collections.<String, FunctionExtension>emptyMap() : functions;
+        this.parameterTypes = parameterTypes.clone();
         constPoolGen = new ConstantPoolGen();
         
         generatedClassName = evaluatorFullName + generatedClassNumber.incrementAndGet();
@@ -81,47 +152,98 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
      */
     public Evaluator compile()
             throws SQLException {
+        // The generated class lives in its own class loader, so it can only see public types
+        if (!isAccessible(rowType))
+            throw new SQLException("Cannot compile against " + rowType.getName() + ", it is not public");
 
         codeStack.add(new CodeSnippetList());
         root.accept(this);
-        final InstructionList instructionList = codeStack.getFirst().asInstructionList();
+        final CodeSnippetList snippets = codeStack.getFirst();
+        if (1 != snippets.size() || BOOLEAN != snippets.getSnippetAt(0).getJvmType())
+            throw new SQLException("WHERE clause did not evaluate to boolean");
+        final InstructionList instructionList = snippets.asInstructionList();
+        final InstructionList predicate = instructionList.copy();
         instructionList.append(new IRETURN());
         
-        // Create the "matches" method matching the Evaluator.matches declaration
+        // Create the "matches" method matching the Evaluator.matches(Object, Object[]) declaration
+        final Type parametersType = new ArrayType(Type.OBJECT, 1);
         final MethodGen methodGen = new MethodGen(ACC_PUBLIC,
                 org.apache.bcel.generic.Type.BOOLEAN,
-                new Type[]{org.apache.bcel.generic.Type.OBJECT},
+                new Type[]{org.apache.bcel.generic.Type.OBJECT, parametersType},
                 null, "matches", generatedClassName, instructionList, constPoolGen);
         methodGen.setMaxLocals();
         methodGen.setMaxStack();
         // Adds the method to the class
         classGen.addMethod(methodGen.getMethod());
 
-        // Create the constructor
-        classGen.addEmptyConstructor(ACC_PUBLIC);
+        // And Evaluator.matches(Object), which simply has no bind variables
+        final InstructionList noParameters = new InstructionList();
+        noParameters.append(new ALOAD(0));
+        noParameters.append(new ALOAD(1));
+        noParameters.append(new ACONST_NULL());
+        noParameters.append(new INVOKEVIRTUAL(constPoolGen.addMethodref(generatedClassName, "matches",
+                "(Ljava/lang/Object;[Ljava/lang/Object;)Z")));
+        noParameters.append(new IRETURN());
+        final MethodGen bridgeGen = new MethodGen(ACC_PUBLIC, Type.BOOLEAN, new Type[]{Type.OBJECT},
+                null, "matches", generatedClassName, noParameters, constPoolGen);
+        bridgeGen.setMaxLocals();
+        bridgeGen.setMaxStack();
+        classGen.addMethod(bridgeGen.getMethod());
 
-        // Done, print the class definition so we can sanity check what we just did
-        final JavaClass javaClass = classGen.getJavaClass();
-        System.out.println(javaClass);
-        for (final Method method : javaClass.getMethods())
-            System.out.println(method.getCode().toString(true));
+        // And Evaluator.scan, with the where clause inlined into the loop
+        addScan(predicate);
+
+        // Create the constant fields and the constructor that populates them
+        addConstructor();
 
         // Get the bytecode representing the class
+        final JavaClass javaClass = classGen.getJavaClass();
         final byte[] bytecode = javaClass.getBytes();
 
         // Create a special class loader that knows only how to do one thing: create an instance
         // of the class we just created. First, define the class, then create a new instance.
         // Since we know our class implements the Evaluator interface, we can safely cast it.
+        // Each class gets its own loader, so the class can be unloaded once the evaluator is no
+        // longer referenced.
         try {
-            return evaluatorLoader.getEvaluator(bytecode, generatedClassName);
+            return new EvaluatorLoader(parentLoaderFor(rowType)).getEvaluator(bytecode, generatedClassName,
+                    constants.toArray());
         } catch (final Exception e) {
             throw new SQLException("Could not create compiled class", e);
+        } catch (final LinkageError e) {
+            throw new SQLException("Compiled class failed verification", e);
         }
     }
 
+    /**
+     * How many generated classes are currently loaded. Every generated class has its own class
+     * loader, so it is unloaded, along with its loader, once the garbage collector finds that
+     * neither the evaluator nor the cache (see EvaluatorCache) refer to it any longer. A count
+     * that keeps growing means evaluators are being held on to.
+     * @return the number of generated classes not unloaded yet
+     */
+    public static int getLiveClassCount() {
+        expungeUnloadedClasses();
+        return liveClasses.size();
+    }
+
+    /**
+     * How many classes were generated since the JVM started, whether unloaded since or not
+     * @return the number of generated classes
+     */
+    public static long getGeneratedClassCount() {
+        return definedClasses.get();
+    }
+
+    private static void expungeUnloadedClasses() {
+        for (Reference<? extends Class<?>> unloaded = unloadedClasses.poll(); null != unloaded;
+                unloaded = unloadedClasses.poll())
+            liveClasses.remove(unloaded);
+    }
+
     /**
      * Pushes the value of a column to the top of the stack - this is accomplished by
-     * calling the corresponding getter. Note that because Evaluator.matches takes an
+     * calling the corresponding getter, or reading the field if there is no getter. Note that because Evaluator.matches takes an
      * object as parameter, but we are assuming the actual type is rowType, we need to
      * check if the object can be, indeed, cast to rowType's class.
      * 
@@ -130,43 +252,47 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
      */
     @Override
     public void visit(final SqlColumn node) throws SQLException {
-        // Get the name of the getter for this column
-        final String getter = convertToCamelBackGetter(node.getName());
-        try {
-            // Get the JVM signature for the getter, i.e., int getBlah() becomes ()I 
-            final Class returnClassType = getGetterReturnType(rowType, getter);
-            final JvmType signatureType = classToJvmType(returnClassType);
-
-            // Push constants to the poll gen: class to cast to, and reference to the getter method
-            final int castIndex = constPoolGen.addClass(rowType.getCanonicalName());
-            final int getterIndex = constPoolGen.addMethodref(rowType.getCanonicalName(),
-                    getter, getterSignature(signatureType, returnClassType));
-            
-            // Push reference to first parameter of Evaluator.matches(Object row) - the row
-            final JvmType stackType = signatureType.asStackType();
-            final CodeSnippet snippet = new CodeSnippet(stackType, returnClassType);
-            snippet.append(new ALOAD(1));
-            // Cast to rowType
-            snippet.append(new CHECKCAST(castIndex));
-            // Call the getter
-            snippet.append(new INVOKEVIRTUAL(getterIndex));
-
-            // We support long or double arithmetic - if the stack has int or float, convert
-            snippet.extendType();
-
-            // And make the top of the stack reflect what we now have.
-            codeStack.peekFirst().append(snippet);
-        } catch (NoSuchMethodException e) {
-            throw new SQLException("Missing getter " + getter + " for column " + node.getName(), e);
-        }
+        // Get the getter for this column, getXXX() or isXXX(), or the field if there is no getter
+        final Member member = findMember(rowType, node.getName());
+
+        // Get the JVM signature for the getter, i.e., int getBlah() becomes ()I
+        final Class returnClassType = member instanceof Method ? ((Method) member).getReturnType()
+                : ((Field) member).getType();
+        final JvmType signatureType = classToJvmType(returnClassType);
+        final String signature = getterSignature(signatureType, returnClassType);
+
+        // Push constants to the poll gen: class to cast to, and reference to the getter method
+        final int castIndex = constPoolGen.addClass(rowType.getName());
+
+        // Push reference to first parameter of Evaluator.matches(Object row) - the row. Booleans
+        // are left alone, so they can be used as predicates.
+        final JvmType stackType = BOOLEAN == signatureType ? BOOLEAN : signatureType.asStackType();
+        final CodeSnippet snippet = new CodeSnippet(stackType, returnClassType);
+        snippet.append(new ALOAD(1));
+        // Cast to rowType
+        snippet.append(new CHECKCAST(castIndex));
+        // Call the getter, or read the field - its type is the getter signature without the "()"
+        if (member instanceof Method)
+            snippet.append(new INVOKEVIRTUAL(constPoolGen.addMethodref(rowType.getName(), member.getName(),
+                    signature)));
+        else
+            snippet.append(new GETFIELD(constPoolGen.addFieldref(rowType.getName(), member.getName(),
+                    signature.substring(2))));
+
+        // We support long or double arithmetic - if the stack has int or float, convert
+        snippet.extendType();
+
+        // And make the top of the stack reflect what we now have.
+        codeStack.peekFirst().append(snippet);
     }
 
     /**
      * Processes expressions of type column between this and that. We push a new list on the code stack
      * before calling super.visit(), so we are left three snippets: the call to the getter that
      * corresponds to the column, and the evaluation of two expressions that corresponds to "this" and
-     * "that". We then consolidate the snippets, push the call to EvaluatorHelper.evalBetween to the
-     * end, and add this to the snippet list on the top of the code stack.
+     * "that". The column is evaluated once and duplicated, then compared inline with the lower limit
+     * and, if that passes, with the upper limit. Numbers are converted pairwise, as Java would:
+     * a long column is compared with a double limit as a double, but with a long limit as a long.
      * @param node node to evaluate
      * @throws SQLException if something goes wrong
      */
@@ -176,58 +302,212 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
         super.visit(node);
         
         final CodeSnippetList snippets = codeStack.removeFirst();
-        // Stack has column value at the bottom, lower limit, and upper limit at the top
-        // make helper method call  
-        final CodeSnippet top = snippets.getSnippetAt(0);
-        final CodeSnippet middle = snippets.getSnippetAt(1);
-        final CodeSnippet bottom = snippets.getSnippetAt(2);
-        
-        final String signature = buildSignature(JvmType.BOOLEAN, top, middle, bottom);
-        
-        // Add reference to the method to the pool gen and make the call
-        final int helperIndex = constPoolGen.addMethodref(EvaluatorHelper.class.getCanonicalName(),
-                "evalBetween", signature);
-        final CodeSnippet snippet = new CodeSnippet(JvmType.BOOLEAN, top, middle, bottom);
-        snippet.append(new INVOKESTATIC(helperIndex));
+        final CodeSnippet column = snippets.getSnippetAt(0);
+        final CodeSnippet lower = snippets.getSnippetAt(1);
+        final CodeSnippet upper = snippets.getSnippetAt(2);
+        checkComparable(column, lower, upper);
+
+        final CodeSnippet snippet = new CodeSnippet(BOOLEAN, column);
+        final List<BranchHandle> failures = new ArrayList<BranchHandle>();
+        final List<BranchHandle> oneWord = new ArrayList<BranchHandle>();
+        final List<BranchHandle> twoWords = new ArrayList<BranchHandle>();
+        if (OBJECT != column.getJvmType()) {
+            final boolean isLong = LONG == column.getJvmType();
+            // [column] -> [column, column, lower] -> [column], the column taking two words
+            snippet.append(new DUP2());
+            final JvmType lowerType = pairType(column, lower);
+            if (isLong && DOUBLE == lowerType)
+                snippet.append(new L2D());
+            normalizeTopOfStackType(lower, lowerType);
+            snippet.append(lower);
+            twoWords.add(appendNumericComparison(snippet, lowerType, GE));
+            // [column] -> [column, upper] -> []
+            final JvmType upperType = pairType(column, upper);
+            if (isLong && DOUBLE == upperType)
+                snippet.append(new L2D());
+            normalizeTopOfStackType(upper, upperType);
+            snippet.append(upper);
+            failures.add(appendNumericComparison(snippet, upperType, LE));
+        } else {
+            // [column] -> [column, lower] -> [column, column, lower] -> [column]
+            snippet.append(new DUP());
+            oneWord.add(snippet.getCode().append(new IFNULL(null)));
+            snippet.append(lower);
+            snippet.append(new DUP());
+            twoWords.add(snippet.getCode().append(new IFNULL(null)));
+            snippet.append(new SWAP());
+            snippet.append(new DUP_X1());
+            snippet.append(new SWAP());
+            oneWord.add(appendObjectComparison(snippet, column, lower, GE));
+            // [column] -> [column, upper] -> []
+            snippet.append(upper);
+            snippet.append(new DUP());
+            twoWords.add(snippet.getCode().append(new IFNULL(null)));
+            failures.add(appendObjectComparison(snippet, column, upper, LE));
+        }
+        appendResult(snippet, failures, oneWord, twoWords);
         codeStack.peekFirst().append(snippet);
     }
 
+    /**
+     * Dates are converted once, at compile time, using the toDate() extension. The resulting
+     * date becomes a constant of the generated class.
+     * @param node the date to push to the top of the stack
+     * @throws SQLException if the date cannot be converted
+     */
     @Override
-    public void visit(final SqlDate node) {
-        //To change body of implemented methods use File | Settings | File Templates.
+    public void visit(final SqlDate<E> node) throws SQLException {
+        codeStack.peekFirst().append(pushConstant(node.toDate(functions), Date.class));
     }
 
+    /**
+     * Function calls are compiled as a direct call to the extension method: the extension object
+     * becomes a constant of the generated class, the arguments are converted to the types the
+     * method expects and, if the method takes one more parameter than supplied, the row is
+     * appended as the last argument.
+     * @param node the function call
+     * @throws SQLException if the extension is missing, cannot be called directly, or the
+     * arguments do not match the method signature
+     */
     @Override
-    public void visit(final SqlFunction node) {
-        //To change body of implemented methods use File | Settings | File Templates.
+    public void visit(final SqlFunction<E> node) throws SQLException {
+        final FunctionExtension function = functions.get(node.getName());
+        if (null == function)
+            throw new SQLException("Implementation for function [" + node.getName()
+                    + "] was not supplied as extension");
+        final Method method = function.getMethod();
+        final Class<?> owner = method.getDeclaringClass();
+        final boolean isStatic = Modifier.isStatic(method.getModifiers());
+        if (!Modifier.isPublic(method.getModifiers()) || !isAccessible(owner) || owner.isInterface())
+            throw new SQLException("Implementation of function " + node.getName() + " cannot be compiled");
+        final JvmType returnType = classToJvmType(method.getReturnType());
+        if (VOID == returnType)
+            throw new SQLException("Implementation of function " + node.getName() + " returns void");
+
+        codeStack.addFirst(new CodeSnippetList());
+        for (final SqlExpressionNode argument : node)
+            argument.accept(this);
+        final CodeSnippetList arguments = codeStack.removeFirst();
+
+        final Class<?>[] types = method.getParameterTypes();
+        final boolean appendRow = arguments.size() + 1 == types.length;
+        if (arguments.size() != types.length && !appendRow)
+            throw new SQLException("Function " + node.getName() + " expects " + types.length + " parameters");
+
+        final CodeSnippet snippet = new CodeSnippet(BOOLEAN == returnType ? BOOLEAN : returnType.asStackType(),
+                method.getReturnType());
+        if (!isStatic)
+            snippet.append(pushConstant(function.getTarget(), owner));
+        for (int i = 0; i < arguments.size(); i++)
+            snippet.append(coerce(arguments.getSnippetAt(i), types[i]));
+        if (appendRow) {
+            if (!types[types.length - 1].isAssignableFrom(rowType))
+                throw new SQLException("Function " + node.getName() + " cannot take " + rowType.getName());
+            snippet.append(new ALOAD(1));
+            snippet.append(new CHECKCAST(constPoolGen.addClass(rowType.getName())));
+        }
+        final int methodIndex = constPoolGen.addMethodref(owner.getName(), method.getName(),
+                Type.getSignature(method));
+        snippet.append(isStatic ? new INVOKESTATIC(methodIndex) : new INVOKEVIRTUAL(methodIndex));
+        snippet.extendType();
+        codeStack.peekFirst().append(snippet);
     }
 
+    /**
+     * IN lists made only of constants are converted at compile time to a sorted array (numeric
+     * columns) or a hash set (everything else), and checked with a single call to
+     * EvaluatorHelper.evalIn. IN lists with non-constant expressions are compiled as the
+     * equivalent (column = a OR column = b ...).
+     * @param node the IN predicate
+     * @throws SQLException if the column and the IN list types do not match
+     */
     @Override
-    public void visit(final SqlInExpression node) {
-        //To change body of implemented methods use File | Settings | File Templates.
+    public void visit(final SqlInExpression<E> node) throws SQLException {
+        final List<Object> values = new ArrayList<Object>();
+        for (final SqlExpressionNode operand : node)
+            if (operand instanceof SqlNumber)
+                values.add(((SqlNumber) operand).getNumber());
+            else if (operand instanceof SqlString)
+                values.add(((SqlString) operand).getString());
+            else if (operand instanceof SqlDate)
+                values.add(((SqlDate) operand).toDate(functions));
+            else if (!(operand instanceof SqlNull)) {
+                visitAsDisjunction(node);
+                return;
+            }
+
+        codeStack.addFirst(new CodeSnippetList());
+        visit(node.getColumn());
+        final CodeSnippet column = codeStack.removeFirst().getSnippetAt(0);
+        final CodeSnippet snippet = new CodeSnippet(BOOLEAN);
+        final CodeSnippet inList;
+        if (LONG == column.getJvmType() && !hasDouble(values))
+            inList = pushConstant(toSortedLongs(values), long[].class);
+        else if (LONG == column.getJvmType() || DOUBLE == column.getJvmType()) {
+            normalizeTopOfStackType(column, DOUBLE);
+            column.setJvmType(DOUBLE);
+            inList = pushConstant(toSortedDoubles(values), double[].class);
+        } else if (OBJECT == column.getJvmType() && !hasNumber(values)) {
+            column.setClazz(Object.class);
+            inList = pushConstant(new HashSet<Object>(values), Set.class);
+        } else
+            throw new SQLException("IN list does not match the type of column " + node.getColumn());
+        snippet.append(column);
+        final String signature = buildSignature(BOOLEAN, column, inList);
+        snippet.append(inList);
+        snippet.append(new INVOKESTATIC(constPoolGen.addMethodref(
+                EvaluatorHelper.class.getCanonicalName(), "evalIn", signature)));
+        codeStack.peekFirst().append(snippet);
     }
 
     @Override
     public void visit(final SqlIsNullExpression node) throws SQLException {
+        codeStack.addFirst(new CodeSnippetList());
         visit(node.getColumn());
-        final CodeSnippet snippet = new CodeSnippet(BOOLEAN);
-        final String signature = "(Ljava/lang/Object;Z)Z";
-        snippet.append(new ICONST(node.isNull() ? 1 : 0));
-        final int helperIndex = constPoolGen.addMethodref(EvaluatorHelper.class.getCanonicalName(),
-                "evalIsNull", signature);
-        snippet.append(new INVOKESTATIC(helperIndex));
+        final CodeSnippet column = codeStack.removeFirst().getSnippetAt(0);
+        final CodeSnippet snippet = new CodeSnippet(BOOLEAN, column);
+        if (OBJECT != column.getJvmType()) {
+            // Primitives are never null: discard the value, the answer is a constant
+            snippet.append(LONG == column.getJvmType() || DOUBLE == column.getJvmType() ? new POP2() : new POP());
+            snippet.append(new ICONST(node.isNull() ? 0 : 1));
+        } else {
+            final String signature = "(Ljava/lang/Object;Z)Z";
+            snippet.append(new ICONST(node.isNull() ? 1 : 0));
+            final int helperIndex = constPoolGen.addMethodref(EvaluatorHelper.class.getCanonicalName(),
+                    "evalIsNull", signature);
+            snippet.append(new INVOKESTATIC(helperIndex));
+        }
         codeStack.peekFirst().append(snippet);
     }
 
+    /**
+     * LIKE patterns are converted to a regular expression at compile time; the generated code
+     * simply matches the column against the precompiled pattern.
+     * @param node the LIKE predicate
+     * @throws SQLException if the column is not a string, or the pattern is not a string constant
+     */
     @Override
-    public void visit(final SqlLikeExpression node) {
+    public void visit(final SqlLikeExpression<E> node) throws SQLException {
+        final Iterator<SqlExpressionNode> operands = node.iterator();
+        codeStack.addFirst(new CodeSnippetList());
+        operands.next().accept(this);
+        final CodeSnippet value = codeStack.removeFirst().getSnippetAt(0);
+        final SqlExpressionNode pattern = operands.next();
+        if (OBJECT != value.getJvmType() || !String.class.isAssignableFrom(value.getClazz())
+                || !(pattern instanceof SqlString))
+            throw new SQLException("LIKE requires a string expression");
 
-        //To change body of implemented methods use File | Settings | File Templates.
+        final CodeSnippet snippet = new CodeSnippet(BOOLEAN, value);
+        snippet.append(pushConstant(SqlLikeExpression.toPattern(((SqlString) pattern).getString()),
+                Pattern.class));
+        snippet.append(new INVOKESTATIC(constPoolGen.addMethodref(EvaluatorHelper.class.getCanonicalName(),
+                "evalLike", "(Ljava/lang/String;Ljava/util/regex/Pattern;)Z")));
+        codeStack.peekFirst().append(snippet);
     }
 
     @Override
     public void visit(final SqlNull node) {
-        final CodeSnippet snippet = new CodeSnippet(null);
+        final CodeSnippet snippet = new CodeSnippet(OBJECT, Object.class);
         snippet.append(new ACONST_NULL());
         codeStack.peekFirst().append(snippet);
     }
@@ -254,6 +534,44 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
         codeStack.peekFirst().append(snippet);
     }
 
+    /**
+     * Bind variables are read from the slot array, the second parameter of Evaluator.matches.
+     * Numbers are unboxed to long or double, so they can take part in arithmetic and numeric
+     * comparisons; everything else is cast to the type of the bound value.
+     * @param node the bind variable
+     * @throws SQLException if the type of the bound value is not known
+     */
+    @Override
+    public void visit(final SqlParameter<E> node) throws SQLException {
+        if (node.getIndex() >= parameterTypes.length)
+            throw new SQLException("No type supplied for bind variable " + node);
+        final Class<?> type = parameterTypes[node.getIndex()];
+        final CodeSnippet snippet;
+        if (Long.class == type || Double.class == type) {
+            snippet = new CodeSnippet(Long.class == type ? LONG : DOUBLE);
+            loadParameter(snippet, node);
+            snippet.append(new CHECKCAST(constPoolGen.addClass(Number.class.getName())));
+            snippet.append(new INVOKEVIRTUAL(Long.class == type
+                    ? constPoolGen.addMethodref(Number.class.getName(), "longValue", "()J")
+                    : constPoolGen.addMethodref(Number.class.getName(), "doubleValue", "()D")));
+        } else if (Boolean.class == type) {
+            snippet = new CodeSnippet(BOOLEAN);
+            loadParameter(snippet, node);
+            snippet.append(new CHECKCAST(constPoolGen.addClass(Boolean.class.getName())));
+            snippet.append(new INVOKEVIRTUAL(constPoolGen.addMethodref(Boolean.class.getName(),
+                    "booleanValue", "()Z")));
+        } else if (null != type && isAccessible(type)) {
+            snippet = new CodeSnippet(OBJECT, type);
+            loadParameter(snippet, node);
+            snippet.append(new CHECKCAST(constPoolGen.addClass(type.getName())));
+        } else {
+            // Null, or a type the generated class cannot see: leave it as an Object
+            snippet = new CodeSnippet(OBJECT, Object.class);
+            loadParameter(snippet, node);
+        }
+        codeStack.peekFirst().append(snippet);
+    }
+
     /**
      * For strings, we add a snippet to the top of the stack that pushes the
      * reference to the string to the top of the JVM stack.
@@ -289,6 +607,8 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
         // appropriate instruction at the end of the snippets - except the first,
         // as we need two elements in the stack before we can operate on them
         final JvmType targetType = targetType(snippets);
+        if (LONG != targetType && DOUBLE != targetType)
+            throw new SQLException("Numeric type expected");
         Class targetClazz = null;
         boolean isFirst = true;
         for (final CodeSnippet snippet : snippets) {
@@ -304,31 +624,61 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
         
     }
 
+    /**
+     * NOT converts the top of the stack to 1 - tos. AND and OR short-circuit: the operands are
+     * evaluated cheapest first (see cost), and the first one that settles the result, false for
+     * AND and true for OR, jumps straight to the end, leaving that result on the stack.
+     * @param node the boolean expression
+     * @throws SQLException if something goes wrong
+     */
     @Override
     public void visit(final SqlBooleanExpression<E> node) throws SQLException {
         codeStack.addFirst(new CodeSnippetList());
         super.visit(node);
         final CodeSnippetList snippets = codeStack.removeFirst();
 
-        // Boolean expressions have 2+ operands and one operator. We need to add
-        // the operator the number of operands minus one (e.g. x AND y becomes
-        // push x, push y, AND. The other option is a NOT, in which case we convert
-        // the TOS to 1 - tos.
         final CodeSnippet expression = new CodeSnippet(BOOLEAN);
-        expression.append(snippets.asSnippet(BOOLEAN, null));
         if (node.getRawOperator() == NOT) {
+            expression.append(snippets.asSnippet(BOOLEAN, null));
             expression.append(new INEG());
             expression.append(new ICONST(1));
             expression.append(new IADD());
-        } else for (int i = 0; i < snippets.size() - 1; i++)
-            expression.append(node.getRawOperator() == AND ? new IAND() : new IOR());
+            codeStack.peekFirst().append(expression);
+            return;
+        }
+
+        final List<CodeSnippet> operands = new ArrayList<CodeSnippet>();
+        for (final CodeSnippet snippet : snippets)
+            operands.add(snippet);
+        Collections.sort(operands, new Comparator<CodeSnippet>() {
+            @Override
+            public int compare(final CodeSnippet left, final CodeSnippet right) {
+                return Integer.compare(cost(left), cost(right));
+            }
+        });
+        // x AND y becomes: push x, if false goto settled; push y, goto end; settled: push false
+        final boolean isAnd = node.getRawOperator() == AND;
+        final List<BranchHandle> shortCircuits = new ArrayList<BranchHandle>();
+        for (int i = 0; i < operands.size() - 1; i++) {
+            expression.append(operands.get(i));
+            shortCircuits.add(expression.getCode().append(isAnd ? new IFEQ(null) : new IFNE(null)));
+        }
+        expression.append(operands.get(operands.size() - 1));
+        final BranchHandle toEnd = expression.getCode().append(new GOTO(null));
+        final InstructionHandle settled = expression.append(new ICONST(isAnd ? 0 : 1));
+        for (final BranchHandle shortCircuit : shortCircuits)
+            shortCircuit.setTarget(settled);
+        toEnd.setTarget(expression.append(new NOP()));
 
         codeStack.peekFirst().append(expression);
     }
 
     /**
-     * Comparisons have a left and a right hand side. We push a new list to the top of
-     * the code stack, then combine them along with a call to EvaluatorHelper.evalCompare.
+     * Comparisons have a left and a right hand side. We push a new list to the top of the code
+     * stack, then compare them inline. Numbers are compared with LCMP, or DCMPL/DCMPG when either
+     * side is a double, and a branch on the operator; comparisons with NaN fail, except for !=.
+     * Objects are compared with equals (strings) or compareTo, after checking neither side is null,
+     * as comparisons with null always fail.
      * @param node the comparison node
      * @throws SQLException if something goes wrong
      */
@@ -338,79 +688,459 @@ public class CompilerVisitor<E> extends SqlNodeVisitor<E> {
         super.visit(node);
         
         final CodeSnippetList snippets = codeStack.removeFirst();
-
-        // Objects are handled as Comparable, regardless of their type
         final CodeSnippet lhs = snippets.getSnippetAt(0);
-        if (lhs.getJvmType() == OBJECT)
-            lhs.setClazz(Comparable.class);
         final CodeSnippet rhs = snippets.getSnippetAt(1);
-        if (rhs.getJvmType() == OBJECT)
-            rhs.setClazz(Comparable.class);
-        final CodeSnippet comparison = new CodeSnippet(OBJECT, SqlComparisonOperator.class);
-
-        // We will make a static call to EvaluatorHelper.evalBetween, figure out the signature
-        // It will be something like (org/espresso/token/SqlComparisonOperator;)Z or
-        // (Ljava/lang/Comparable;Ljava/lang/Comparable;Lorg/espresso/token/SqlComparisonOperator;)Z
-        final String signature = buildSignature(BOOLEAN, lhs, rhs, comparison);
-
-        // Add reference to the method to the pool gen and make the call
-        final int enumIndex = constPoolGen.addFieldref(
-                SqlComparisonOperator.class.getCanonicalName().replace('.', '/'),
-                node.getRawOperator().name(), classToJvmStringType(SqlComparisonOperator.class));
-        final int helperIndex = constPoolGen.addMethodref(EvaluatorHelper.class.getCanonicalName(),
-                "evalCompare", signature);
+        checkComparable(lhs, rhs);
 
+        final SqlComparisonOperator operator = node.getRawOperator();
         final CodeSnippet snippet = new CodeSnippet(BOOLEAN);
-        snippet.append(lhs);
-        snippet.append(rhs);
-        snippet.append(new GETSTATIC(enumIndex));
-        snippet.append(new INVOKESTATIC(helperIndex));
+        final List<BranchHandle> failures = new ArrayList<BranchHandle>();
+        final List<BranchHandle> oneWord = new ArrayList<BranchHandle>();
+        final List<BranchHandle> twoWords = new ArrayList<BranchHandle>();
+        if (OBJECT != lhs.getJvmType()) {
+            final JvmType type = pairType(lhs, rhs);
+            normalizeTopOfStackType(lhs, type);
+            normalizeTopOfStackType(rhs, type);
+            snippet.append(lhs);
+            snippet.append(rhs);
+            failures.add(appendNumericComparison(snippet, type, operator));
+        } else {
+            // [lhs] -> [lhs, rhs] -> []
+            snippet.append(lhs);
+            snippet.append(new DUP());
+            oneWord.add(snippet.getCode().append(new IFNULL(null)));
+            snippet.append(rhs);
+            snippet.append(new DUP());
+            twoWords.add(snippet.getCode().append(new IFNULL(null)));
+            failures.add(appendObjectComparison(snippet, lhs, rhs, operator));
+        }
+        appendResult(snippet, failures, oneWord, twoWords);
+        codeStack.peekFirst().append(snippet);
+    }
+
+    /**
+     * The type two numbers are compared as: long if both are longs, double otherwise
+     * @param left snippet that pushes one of the numbers
+     * @param right snippet that pushes the other number
+     * @return the type
+     */
+    private static JvmType pairType(final CodeSnippet left, final CodeSnippet right) {
+        return LONG == left.getJvmType() && LONG == right.getJvmType() ? LONG : DOUBLE;
+    }
+
+    /**
+     * Appends the comparison of the two numbers on top of the stack, both of the given type
+     * @param snippet the snippet where the instructions are appended
+     * @param type the type of both numbers, long or double
+     * @param operator the comparison
+     * @return the branch taken, with nothing left on the stack, when the comparison fails
+     */
+    private static BranchHandle appendNumericComparison(final CodeSnippet snippet, final JvmType type,
+            final SqlComparisonOperator operator) {
+        // DCMPG turns NaN into 1, failing < and <=, and DCMPL into -1, failing the others but !=
+        if (LONG == type)
+            snippet.append(new LCMP());
+        else
+            snippet.append(LT == operator || LE == operator ? new DCMPG() : new DCMPL());
+        return snippet.getCode().append(failureOf(operator));
+    }
+
+    /**
+     * Appends the comparison of the two objects on top of the stack, neither of them null
+     * @param snippet the snippet where the instructions are appended
+     * @param lhs the snippet that pushed the left hand side
+     * @param rhs the snippet that pushed the right hand side
+     * @param operator the comparison
+     * @return the branch taken, with nothing left on the stack, when the comparison fails
+     */
+    private BranchHandle appendObjectComparison(final CodeSnippet snippet, final CodeSnippet lhs,
+            final CodeSnippet rhs, final SqlComparisonOperator operator) {
+        if ((EQ == operator || NE == operator) && String.class == lhs.getClazz() && String.class == rhs.getClazz()) {
+            snippet.append(new INVOKEVIRTUAL(constPoolGen.addMethodref(String.class.getName(), "equals",
+                    "(Ljava/lang/Object;)Z")));
+            return snippet.getCode().append(EQ == operator ? new IFEQ(null) : new IFNE(null));
+        }
+        snippet.append(new INVOKEINTERFACE(constPoolGen.addInterfaceMethodref(Comparable.class.getName(),
+                "compareTo", "(Ljava/lang/Object;)I"), 2));
+        return snippet.getCode().append(failureOf(operator));
+    }
+
+    /**
+     * The branch on the result of a comparison (a negative number, zero or a positive number) that
+     * is taken when the comparison fails
+     * @param operator the comparison
+     * @return the branch, whose target is yet to be set
+     */
+    private static BranchInstruction failureOf(final SqlComparisonOperator operator) {
+        switch (operator) {
+            case EQ:
+                return new IFNE(null);
+            case NE:
+                return new IFEQ(null);
+            case LT:
+                return new IFGE(null);
+            case LE:
+                return new IFGT(null);
+            case GT:
+                return new IFLE(null);
+            default:
+                return new IFLT(null);
+        }
+    }
 
-        // Top of stack now has a boolean
-        final CodeSnippetList tos = codeStack.peekFirst();
-        tos.append(snippet);
+    /**
+     * Appends the instructions that push the result of a predicate: true if the code falls through,
+     * false if it took any of the branches
+     * @param snippet the snippet where the instructions are appended
+     * @param failures branches taken with nothing left on the stack
+     * @param oneWord branches taken with a word left on the stack, to be discarded
+     * @param twoWords branches taken with two words (or a long or a double) left on the stack
+     */
+    private static void appendResult(final CodeSnippet snippet, final List<BranchHandle> failures,
+            final List<BranchHandle> oneWord, final List<BranchHandle> twoWords) {
+        snippet.append(new ICONST(1));
+        final BranchHandle toEnd = snippet.getCode().append(new GOTO(null));
+        if (!oneWord.isEmpty()) {
+            setTargets(oneWord, snippet.append(new POP()));
+            if (!twoWords.isEmpty())
+                failures.add(snippet.getCode().append(new GOTO(null)));
+        }
+        if (!twoWords.isEmpty())
+            setTargets(twoWords, snippet.append(new POP2()));
+        setTargets(failures, snippet.append(new ICONST(0)));
+        toEnd.setTarget(snippet.append(new NOP()));
+    }
+
+    private static void setTargets(final List<BranchHandle> branches, final InstructionHandle target) {
+        for (final BranchHandle branch : branches)
+            branch.setTarget(target);
     }
 
     /**
-     * Helper to convert a column NAME_LIKE_THIS to getNameLikeThis.
-     * @param name column name
-     * @return getter name
+     * Rough cost of running a snippet, to decide which operands of AND and OR go first: one per
+     * instruction, a little more for getters and the helpers of EvaluatorHelper, and much more for
+     * LIKE and the function extensions, which may run arbitrary code
+     * @param snippet the snippet
+     * @return the cost
      */
-    private static String convertToCamelBackGetter(final String name) {
-        final StringBuilder builder = new StringBuilder("get");
-        boolean toUpper = true;
-        for (int i = 0; i < name.length(); i++) {
-            final char c = name.charAt(i);
-            if ('_' == c)
-                toUpper = true;
+    private int cost(final CodeSnippet snippet) {
+        int cost = 0;
+        for (final Instruction instruction : snippet.getCode().getInstructions())
+            if (!(instruction instanceof InvokeInstruction))
+                cost++;
             else {
-                builder.append(toUpper ? toUpperCase(c) : toLowerCase(c));
-                toUpper = false;
+                final InvokeInstruction call = (InvokeInstruction) instruction;
+                final ReferenceType type = call.getReferenceType(constPoolGen);
+                final String owner = type instanceof ObjectType ? ((ObjectType) type).getClassName() : "";
+                cost += owner.equals(rowType.getName()) || owner.startsWith("java.lang.")
+                        || owner.equals(EvaluatorHelper.class.getName())
+                        && !"evalLike".equals(call.getMethodName(constPoolGen)) ? HELPER_COST : CALL_COST;
             }
+        return cost;
+    }
+
+    /**
+     * Compiles column IN (a, b, ...) as (column = a OR column = b ...)
+     * @param node the IN predicate
+     * @throws SQLException if something goes wrong
+     */
+    private void visitAsDisjunction(final SqlInExpression<E> node) throws SQLException {
+        final SqlBooleanExpression<E> disjunction = new SqlBooleanExpression<E>(OR);
+        for (final SqlExpressionNode operand : node) {
+            final SqlComparisonExpression<E> equals = new SqlComparisonExpression<E>(EQ);
+            equals.addOperand(node.getColumn());
+            equals.addOperand(operand);
+            disjunction.addOperand(equals);
         }
-        return builder.toString();
+        disjunction.accept(this);
+    }
+
+    /**
+     * Registers an object the generated code needs at run time. The object becomes a final field
+     * of the generated class, set by the constructor.
+     * @param value the object
+     * @param clazz the type of the field
+     * @return snippet that pushes the object to the top of the stack
+     */
+    private CodeSnippet pushConstant(final Object value, final Class clazz) {
+        final Type type = Type.getType(clazz);
+        final int fieldIndex = constPoolGen.addFieldref(generatedClassName, "constant" + constants.size(),
+                type.getSignature());
+        constants.add(value);
+        constantTypes.add(type);
+        final CodeSnippet snippet = new CodeSnippet(OBJECT, clazz);
+        snippet.append(new ALOAD(0));
+        snippet.append(new GETFIELD(fieldIndex));
+        return snippet;
+    }
+
+    /**
+     * Pushes the (boxed) value of a bind variable, parameters[index], to the top of the stack
+     * @param snippet the snippet where the instructions are appended
+     * @param node the bind variable
+     */
+    private void loadParameter(final CodeSnippet snippet, final SqlParameter<E> node) {
+        snippet.append(new ALOAD(2));
+        snippet.append(new PUSH(constPoolGen, node.getIndex()).getInstruction());
+        snippet.append(new AALOAD());
     }
 
     /**
-     * Determines the return type of a given getter.
+     * Adds one field per constant, and a constructor that takes the constants as an array and
+     * assigns each one to its field.
+     */
+    private void addConstructor() {
+        final InstructionList code = new InstructionList();
+        code.append(new ALOAD(0));
+        code.append(new INVOKESPECIAL(constPoolGen.addMethodref("java.lang.Object", "<init>", "()V")));
+        for (int i = 0; i < constantTypes.size(); i++) {
+            final Type type = constantTypes.get(i);
+            final FieldGen field = new FieldGen(ACC_PRIVATE | ACC_FINAL, type, "constant" + i, constPoolGen);
+            classGen.addField(field.getField());
+            code.append(new ALOAD(0));
+            code.append(new ALOAD(1));
+            code.append(new PUSH(constPoolGen, i));
+            code.append(new AALOAD());
+            code.append(new CHECKCAST(type instanceof ArrayType
+                    ? constPoolGen.addArrayClass((ArrayType) type)
+                    : constPoolGen.addClass((ObjectType) type)));
+            code.append(new PUTFIELD(constPoolGen.addFieldref(generatedClassName, "constant" + i,
+                    type.getSignature())));
+        }
+        code.append(new RETURN());
+        final MethodGen constructor = new MethodGen(ACC_PUBLIC, Type.VOID,
+                new Type[]{new ArrayType(Type.OBJECT, 1)}, null, "<init>", generatedClassName, code,
+                constPoolGen);
+        constructor.setMaxLocals();
+        constructor.setMaxStack();
+        classGen.addMethod(constructor.getMethod());
+    }
+
+    /**
+     * Adds Evaluator.scan(Iterator rows, Object[] parameters, Consumer consumer, int limit), which
+     * runs the where clause over each row. The where clause reads the row from local 1 and the
+     * bind variables from local 2, as in matches, so the iterator is moved to a local of its own
+     * and each row is stored in local 1. Runtime exceptions thrown by the where clause, and only
+     * those, are wrapped in an SQLException.
+     * @param predicate a copy of the where clause, which leaves whether the row matches on the stack
+     */
+    private void addScan(final InstructionList predicate) {
+        final int iterator = 5;
+        final int matches = 6;
+        final int failure = 7;
+        final InstructionList code = new InstructionList();
+        code.append(new ALOAD(1));
+        code.append(new ASTORE(iterator));
+        code.append(new ICONST(0));
+        code.append(new ISTORE(matches));
+        // while (matches < limit && iterator.hasNext())
+        final InstructionHandle loop = code.append(new ILOAD(matches));
+        code.append(new ILOAD(4));
+        final BranchHandle limitReached = code.append(new IF_ICMPGE(null));
+        code.append(new ALOAD(iterator));
+        code.append(new INVOKEINTERFACE(constPoolGen.addInterfaceMethodref("java.util.Iterator", "hasNext",
+                "()Z"), 1));
+        final BranchHandle exhausted = code.append(new IFEQ(null));
+        // row = iterator.next(); if (where clause) { if (null != consumer) consumer.accept(row); matches++; }
+        code.append(new ALOAD(iterator));
+        code.append(new INVOKEINTERFACE(constPoolGen.addInterfaceMethodref("java.util.Iterator", "next",
+                "()Ljava/lang/Object;"), 1));
+        code.append(new ASTORE(1));
+        final InstructionHandle predicateStart = code.append(predicate);
+        final InstructionHandle predicateEnd = code.getEnd();
+        code.append(new IFEQ(loop));
+        code.append(new ALOAD(3));
+        final BranchHandle noConsumer = code.append(new IFNULL(null));
+        code.append(new ALOAD(3));
+        code.append(new ALOAD(1));
+        code.append(new INVOKEINTERFACE(constPoolGen.addInterfaceMethodref("java.util.function.Consumer",
+                "accept", "(Ljava/lang/Object;)V"), 2));
+        noConsumer.setTarget(code.append(new IINC(matches, 1)));
+        code.append(new GOTO(loop));
+        final InstructionHandle done = code.append(new ILOAD(matches));
+        limitReached.setTarget(done);
+        exhausted.setTarget(done);
+        code.append(new IRETURN());
+        // catch (RuntimeException e) { throw new SQLException("Error evaluating compiled WHERE clause", e); }
+        final InstructionHandle handler = code.append(new ASTORE(failure));
+        code.append(new NEW(constPoolGen.addClass("java.sql.SQLException")));
+        code.append(new DUP());
+        code.append(new PUSH(constPoolGen, "Error evaluating compiled WHERE clause"));
+        code.append(new ALOAD(failure));
+        code.append(new INVOKESPECIAL(constPoolGen.addMethodref("java.sql.SQLException", "<init>",
+                "(Ljava/lang/String;Ljava/lang/Throwable;)V")));
+        code.append(new ATHROW());
+
+        final MethodGen scanGen = new MethodGen(ACC_PUBLIC, Type.INT, new Type[]{
+                new ObjectType("java.util.Iterator"), new ArrayType(Type.OBJECT, 1),
+                new ObjectType("java.util.function.Consumer"), Type.INT},
+                null, "scan", generatedClassName, code, constPoolGen);
+        scanGen.addExceptionHandler(predicateStart, predicateEnd, handler, new ObjectType("java.lang.RuntimeException"));
+        scanGen.addException("java.sql.SQLException");
+        scanGen.setMaxLocals();
+        scanGen.setMaxStack();
+        classGen.addMethod(scanGen.getMethod());
+    }
+
+    /**
+     * Appends the instructions that convert the value left on the stack by the snippet to the
+     * type expected by a method parameter.
+     * @param snippet snippet that pushes the argument
+     * @param expected the type of the parameter
+     * @return the snippet, with the conversion appended
+     * @throws SQLException if there is no conversion
+     */
+    private CodeSnippet coerce(final CodeSnippet snippet, final Class<?> expected) throws SQLException {
+        final JvmType target = classToJvmType(expected);
+        final JvmType source = snippet.getJvmType();
+        if (OBJECT == target) {
+            if (OBJECT != source)
+                throw new SQLException("Cannot pass a primitive value as " + expected.getName());
+            if (!expected.isAssignableFrom(snippet.getClazz())) {
+                if (!isAccessible(expected))
+                    throw new SQLException("Cannot cast to " + expected.getName() + ", it is not public");
+                snippet.append(new CHECKCAST(constPoolGen.addClass(expected.getName())));
+            }
+        } else if (BOOLEAN == target || BOOLEAN == source) {
+            if (target != source)
+                throw new SQLException("Cannot convert " + source + " to " + target);
+        } else if (LONG == source) {
+            if (DOUBLE == target)
+                snippet.append(new L2D());
+            else if (FLOAT == target)
+                snippet.append(new L2F());
+            else if (LONG != target)
+                snippet.append(new L2I());
+        } else if (DOUBLE == source) {
+            if (FLOAT == target)
+                snippet.append(new D2F());
+            else if (LONG == target)
+                snippet.append(new D2L());
+            else if (DOUBLE != target)
+                snippet.append(new D2I());
+        } else
+            throw new SQLException("Cannot convert " + source + " to " + target);
+        if (BYTE == target)
+            snippet.append(new I2B());
+        else if (CHAR == target)
+            snippet.append(new I2C());
+        else if (SHORT == target)
+            snippet.append(new I2S());
+        return snippet;
+    }
+
+    /**
+     * Makes sure the operands can be compared: either all numeric, or all objects.
+     * @param operands snippets that push the operands to the stack
+     * @throws SQLException if the operands cannot be compared
+     */
+    private static void checkComparable(final CodeSnippet... operands) throws SQLException {
+        int kinds = 0;
+        for (final CodeSnippet operand : operands)
+            if (LONG == operand.getJvmType() || DOUBLE == operand.getJvmType())
+                kinds |= 1;
+            else if (OBJECT == operand.getJvmType())
+                kinds |= 2;
+            else
+                kinds |= 4;
+        if (1 != kinds && 2 != kinds)
+            throw new SQLException("Cannot compare operands of different types");
+    }
+
+    private static boolean hasDouble(final List<Object> values) {
+        for (final Object value : values)
+            if (value instanceof NumberWrapper && ((NumberWrapper) value).isDouble())
+                return true;
+        return false;
+    }
+
+    private static boolean hasNumber(final List<Object> values) {
+        for (final Object value : values)
+            if (value instanceof NumberWrapper)
+                return true;
+        return false;
+    }
+
+    private static long[] toSortedLongs(final List<Object> values) throws SQLException {
+        final long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = asNumber(values.get(i)).asLong();
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static double[] toSortedDoubles(final List<Object> values) throws SQLException {
+        final double[] result = new double[values.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = asNumber(values.get(i)).asDouble();
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static NumberWrapper asNumber(final Object value) throws SQLException {
+        if (value instanceof NumberWrapper)
+            return (NumberWrapper) value;
+        throw new SQLException("Numeric value expected in IN list, got " + value);
+    }
+
+    /**
+     * Whether the generated class, which lives in its own class loader, can refer to the class
+     * @param clazz the class
+     * @return true if the class and all its enclosing classes are public
+     */
+    private static boolean isAccessible(final Class clazz) {
+        for (Class current = clazz; null != current; current = current.getEnclosingClass())
+            if (!Modifier.isPublic(current.getModifiers()))
+                return false;
+        return true;
+    }
+
+    /**
+     * Finds the getter or field for a column NAME_LIKE_THIS, the same way the interpreter does.
      * @param clazz class where the getter is called
-     * @param getter name of the getter
-     * @return class returned by the getter
-     * @throws NoSuchMethodException if there is no such getter
+     * @param column column name
+     * @return the getter or the field
+     * @throws SQLException if there is neither, or if the generated code cannot access it
+     */
+    private static Member findMember(final Class clazz, final String column) throws SQLException {
+        final Member member;
+        try {
+            member = Getters.findMember(clazz, column);
+        } catch (final IllegalArgumentException e) {
+            throw new SQLException(e.getMessage(), e);
+        }
+        if (member instanceof Field && (!Modifier.isPublic(member.getModifiers())
+                || !isAccessible(member.getDeclaringClass())))
+            throw new SQLException("Field " + member.getName() + " for column " + column + " is not public");
+        return member;
+    }
+
+    /**
+     * The class loader the generated class delegates to: it must see the row type as well as the
+     * Evaluator interface and its helpers.
+     * @param rowType the row type
+     * @return the row type's class loader, or the one that loaded this class
      */
-    private static Class getGetterReturnType(final Class clazz, final String getter)
-            throws NoSuchMethodException {
-        return clazz.getMethod(getter).getReturnType();
+    private static ClassLoader parentLoaderFor(final Class rowType) {
+        final ClassLoader loader = rowType.getClassLoader();
+        return null == loader ? CompilerVisitor.class.getClassLoader() : loader;
     }
 
     /**
      * Helper class that creates an instance of an Evaluator based on the supplied bytecode
      */
     private static class EvaluatorLoader extends ClassLoader {
-        public final Evaluator getEvaluator(final byte[] bytecode, final String className) 
-                throws IllegalAccessException, InstantiationException {
-            return (Evaluator) (defineClass(className, bytecode, 0, bytecode.length)).
-                    newInstance();
+        EvaluatorLoader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        public final Evaluator getEvaluator(final byte[] bytecode, final String className,
+                final Object[] constants) throws ReflectiveOperationException {
+            final Class<?> generated = defineClass(className, bytecode, 0, bytecode.length);
+            expungeUnloadedClasses();
+            liveClasses.add(new WeakReference<Class<?>>(generated, unloadedClasses));
+            definedClasses.incrementAndGet();
+            return (Evaluator) generated.getConstructor(Object[].class).newInstance((Object) constants);
         }
     }
 
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.visitor;
+
+import org.espresso.FunctionExtension;
+import org.espresso.eval.Evaluator;
+import org.espresso.token.SqlExpressionNode;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of compiled where clauses. Entries are keyed by the row type, the canonical
+ * form of the where clause (its string representation, which is fully parenthesized and free of
+ * the formatting of the original statement), the function extensions used to compile it and the
+ * types of the values bound to its bind variables, if any.
+ * <p>
+ * Lookups are lock free. When a where clause is not in the cache, exactly one caller compiles it
+ * while concurrent callers for the same key wait for the result. Once the cache grows beyond its
+ * maximum size, the least recently used entries are evicted; since every compiled class has its
+ * own class loader, evicted classes are unloaded as soon as no engine refers to them.
+ * <p>
+ * Where clauses that cannot be compiled are cached as well, so we do not attempt to compile them
+ * over and over again.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public final class EvaluatorCache {
+    public static final int DEFAULT_MAXIMUM_SIZE =
+            Integer.getInteger("org.espresso.evaluatorCacheSize", 1024);
+
+    private static final Class<?>[] NO_PARAMETERS = new Class<?>[0];
+    private static final EvaluatorCache SHARED = new EvaluatorCache(DEFAULT_MAXIMUM_SIZE);
+
+    private final int maximumSize;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The cache shared by all engines. Its size can be set with the org.espresso.evaluatorCacheSize
+     * system property.
+     *
+     * @return the shared cache, never missing
+     */
+    public static EvaluatorCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Builds an empty cache
+     *
+     * @param maximumSize how many compiled where clauses to keep, at least one
+     */
+    public EvaluatorCache(final int maximumSize) {
+        if (1 > maximumSize)
+            throw new IllegalArgumentException("EvaluatorCache: maximum size must be positive");
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the compiled where clause, compiling it if it is not in the cache
+     *
+     * @param rowType Type of node used to evaluate the where clause
+     * @param whereClause the parsed where clause
+     * @param functions Function extensions used by the where clause
+     *
+     * @return the compiled where clause
+     *
+     * @throws SQLException if the where clause cannot be compiled
+     */
+    public <E> Evaluator get(final Class<E> rowType, final SqlExpressionNode<E> whereClause,
+            final Map<String, FunctionExtension> functions)
+            throws SQLException {
+        return get(rowType, whereClause, functions, NO_PARAMETERS);
+    }
+
+    /**
+     * Returns the compiled where clause for the given types of bind variables, compiling it if it
+     * is not in the cache. The same where clause executed with different types of values (e.g.,
+     * a long and then a double) is compiled once for each combination.
+     *
+     * @param rowType Type of node used to evaluate the where clause
+     * @param whereClause the parsed where clause
+     * @param functions Function extensions used by the where clause
+     * @param parameterTypes the type of each bind variable (see SqlParameter.typeOf)
+     *
+     * @return the compiled where clause
+     *
+     * @throws SQLException if the where clause cannot be compiled
+     */
+    public <E> Evaluator get(final Class<E> rowType, final SqlExpressionNode<E> whereClause,
+            final Map<String, FunctionExtension> functions, final Class<?>[] parameterTypes)
+            throws SQLException {
+        final Key key = new Key(rowType, whereClause.toString(), functions, parameterTypes);
+        Entry entry = entries.get(key);
+        if (null == entry) {
+            final Entry created = new Entry(new Callable<Evaluator>() {
+                @Override
+                public Evaluator call() throws SQLException {
+                    return new CompilerVisitor<E>(rowType, whereClause, functions, parameterTypes).compile();
+                }
+            });
+            created.lastAccess = clock.incrementAndGet();
+            entry = entries.putIfAbsent(key, created);
+            if (null == entry) {
+                misses.incrementAndGet();
+                created.evaluator.run();
+                evictIfNeeded();
+                return created.get();
+            }
+        }
+        hits.incrementAndGet();
+        entry.lastAccess = clock.incrementAndGet();
+        return entry.get();
+    }
+
+    /**
+     * Returns the compiled where clause if it is in the cache already, without compiling it
+     *
+     * @param rowType Type of node used to evaluate the where clause
+     * @param whereClause the parsed where clause
+     * @param functions Function extensions used by the where clause
+     *
+     * @return the compiled where clause, or null if it was not compiled yet, is being compiled or
+     * could not be compiled
+     */
+    public <E> Evaluator getIfPresent(final Class<E> rowType, final SqlExpressionNode<E> whereClause,
+            final Map<String, FunctionExtension> functions) {
+        final Entry entry = entries.get(new Key(rowType, whereClause.toString(), functions, NO_PARAMETERS));
+        if (null == entry || !entry.evaluator.isDone())
+            return null;
+        try {
+            final Evaluator evaluator = entry.get();
+            hits.incrementAndGet();
+            entry.lastAccess = clock.incrementAndGet();
+            return evaluator;
+        } catch (final SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * How many compiled where clauses are currently in the cache
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** Removes all entries from the cache; the statistics are not reset */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is back to its maximum size. This
+     * is a linear scan, but it only happens after a miss, which is dominated by the cost of the
+     * compilation.
+     */
+    private void evictIfNeeded() {
+        while (entries.size() > maximumSize) {
+            Map.Entry<Key, Entry> eldest = null;
+            for (final Map.Entry<Key, Entry> candidate : entries.entrySet())
+                if (null == eldest || candidate.getValue().lastAccess < eldest.getValue().lastAccess)
+                    eldest = candidate;
+            if (null != eldest && entries.remove(eldest.getKey(), eldest.getValue()))
+                evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * A cached compilation: the evaluator (or the reason why it could not be compiled), and when it
+     * was last used.
+     */
+    private static final class Entry {
+        final FutureTask<Evaluator> evaluator;
+        volatile long lastAccess;
+
+        Entry(final Callable<Evaluator> compilation) {
+            evaluator = new FutureTask<Evaluator>(compilation);
+        }
+
+        Evaluator get() throws SQLException {
+            try {
+                return evaluator.get();
+            } catch (final ExecutionException e) {
+                throw new SQLException(e.getCause().getMessage(), e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for compilation", e);
+            }
+        }
+    }
+
+    /**
+     * Cache key: row type, canonical where clause, function extensions and bind variable types.
+     */
+    private static final class Key {
+        private final Class rowType;
+        private final String whereClause;
+        private final Map<String, FunctionExtension> functions;
+        private final List<Class<?>> parameterTypes;
+        private final int hashCode;
+
+        Key(final Class rowType, final String whereClause, final Map<String, FunctionExtension> functions,
+                final Class<?>[] parameterTypes) {
+            this.rowType = rowType;
+            this.whereClause = whereClause;
+            this.functions = functions;
+            this.parameterTypes = Arrays.asList(parameterTypes.clone());
+            hashCode = 31 * (31 * (31 * rowType.hashCode() + whereClause.hashCode()) + functions.hashCode())
+                    + this.parameterTypes.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key that = (Key) o;
+            return rowType == that.rowType && whereClause.equals(that.whereClause)
+                    && functions.equals(that.functions) && parameterTypes.equals(that.parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
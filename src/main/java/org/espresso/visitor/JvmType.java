@@ -99,12 +99,14 @@ public enum JvmType {
 
     /**
      * Converts a class name to the JVM representation. For example, com.foo.TheClass becomes
-     * Lcom/foo/TheClass;
+     * Lcom/foo/TheClass;, and long[] becomes [J
      * @param clazz class to convert
      * @return the JVM representation of the class
      */
     public static String classToJvmStringType(final Class clazz) {
-        return "L" + clazz.getCanonicalName().replace('.', '/') + ";";
+        if (clazz.isArray())
+            return clazz.getName().replace('.', '/');
+        return "L" + clazz.getName().replace('.', '/') + ";";
     }
 
     /**
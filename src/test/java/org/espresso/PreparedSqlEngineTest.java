@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso;
+
+import org.espresso.index.HashIndex;
+import org.espresso.index.Getter;
+import org.espresso.index.Indices;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@code PreparedSqlEngineTest} tests {@link PreparedSqlEngine}.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class PreparedSqlEngineTest {
+    private TestDeal deal1;
+    private TestDeal deal2;
+    private TestDeal deal3;
+
+    @Before
+    public void setUp() {
+        deal1 = new TestDeal();
+        deal1.setDealNumber("HH_Titanic");
+        deal1.setChild(1);
+        deal1.setBook("bob_the_builder");
+        deal1.setLabel("label");
+        deal1.setDealType("type");
+        deal1.setDatabaseName("database");
+
+        deal2 = new TestDeal();
+        deal2.setDealNumber("HH_Mayflower");
+        deal2.setChild(2);
+        deal2.setBook("book");
+        deal2.setLabel("label");
+        deal2.setDealType("type");
+        deal2.setDatabaseName("database");
+
+        deal3 = new TestDeal();
+        deal3.setDealNumber("Null Book");
+        deal3.setChild(3);
+        deal3.setLabel("label");
+        deal3.setDealType("type");
+        deal3.setDatabaseName("database");
+    }
+
+    @Test
+    public void shouldBindPositionalParameters()
+            throws SQLException {
+        final PreparedSqlEngine<TestDeal> engine = new PreparedSqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child = ? or book = ?");
+        assertThat(engine.getParameterCount(), is(equalTo(2)));
+        assertThat(run(engine, 1, "book"), is(equalTo(Arrays.asList(deal1, deal2))));
+        assertThat(run(engine, 3, "no such book"), is(equalTo(singletonList(deal3))));
+        assertThat(engine.isCompiled(1, "book"), is(true));
+    }
+
+    @Test
+    public void shouldBindNamedParameters()
+            throws SQLException {
+        final PreparedSqlEngine<TestDeal> engine = new PreparedSqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child between :low and :high and child <> :low");
+        assertThat(engine.getParameterCount(), is(equalTo(2)));
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put("low", 1);
+        values.put("high", 3L);
+        assertThat(run(engine, engine.parameters(values)), is(equalTo(Arrays.asList(deal2, deal3))));
+    }
+
+    @Test
+    public void shouldCompileOncePerParameterType()
+            throws SQLException {
+        final PreparedSqlEngine<TestDeal> engine = new PreparedSqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child > ?");
+        assertThat(run(engine, 1), is(equalTo(Arrays.asList(deal2, deal3))));
+        assertThat(run(engine, 1.5), is(equalTo(Arrays.asList(deal2, deal3))));
+        assertThat(run(engine, 2.5f), is(equalTo(singletonList(deal3))));
+    }
+
+    @Test
+    public void shouldInterpretNullParameters()
+            throws SQLException {
+        final PreparedSqlEngine<TestDeal> engine = new PreparedSqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where book = ?");
+        assertThat(run(engine, "book"), is(equalTo(singletonList(deal2))));
+        assertThat(engine.against(deal2, (Object) null), is(equalTo(null)));
+    }
+
+    @Test
+    public void shouldInterpretNonPublicRowTypes()
+            throws SQLException {
+        final PreparedSqlEngine<SimpleTestNode> engine = new PreparedSqlEngine<SimpleTestNode>(
+                SimpleTestNode.class, "select * from nodes where age >= ? and name = :name");
+        final SimpleTestNode node1 = new SimpleTestNode("Bob", 30, "red", null);
+        final SimpleTestNode node2 = new SimpleTestNode("Jim", 40, "red", null);
+        assertThat(engine.isCompiled(35, "Jim"), is(false));
+        assertThat(engine.execute(Arrays.asList(node1, node2).iterator(), 35, "Jim"),
+                is(equalTo(singletonList(node2))));
+        assertThat(engine.execute(Arrays.asList(node1, node2).iterator(), 20, "Bob"),
+                is(equalTo(singletonList(node1))));
+    }
+
+    @Test
+    public void shouldRestrictWithIndices()
+            throws SQLException {
+        final Indices<TestDeal> indices = new Indices<TestDeal>(HashIndex.newIndex(String.class, "book",
+                new Getter<TestDeal, String>() {
+                    @Override
+                    public String get(final TestDeal deal) {
+                        return deal.getBook();
+                    }
+                }));
+        indices.addToIndices(deal1);
+        indices.addToIndices(deal2);
+        indices.addToIndices(deal3);
+        // Enough other books for the index to be cheaper than a scan
+        for (int i = 0; i < 10; i++) {
+            final TestDeal deal = new TestDeal();
+            deal.setDealNumber("deal" + i);
+            deal.setBook("book" + i);
+            deal.setLabel("label");
+            deal.setDatabaseName("database");
+            indices.addToIndices(deal);
+        }
+        final PreparedSqlEngine<TestDeal> engine = new PreparedSqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where book = :book");
+        assertThat(engine.execute(Collections.<TestDeal>emptyList().iterator(), indices, "book"),
+                is(equalTo(singletonList(deal2))));
+    }
+
+    @Test
+    public void shouldStreamWithParameters()
+            throws SQLException {
+        final PreparedSqlEngine<TestDeal> engine = new PreparedSqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child >= ?");
+        final List<TestDeal> deals = Arrays.asList(deal1, deal2, deal3);
+        assertThat(engine.stream(deals.spliterator(), 2).collect(Collectors.<TestDeal>toList()),
+                is(equalTo(Arrays.asList(deal2, deal3))));
+        assertThat(engine.iterate(deals.iterator(), 3).next(), is(equalTo(deal3)));
+        final PreparedSqlEngine<SimpleTestNode> interpreted = new PreparedSqlEngine<SimpleTestNode>(
+                SimpleTestNode.class, "select * from nodes where age >= ?");
+        final SimpleTestNode node1 = new SimpleTestNode("Bob", 30, "red", null);
+        final SimpleTestNode node2 = new SimpleTestNode("Jim", 40, "red", null);
+        assertThat(interpreted.stream(Arrays.asList(node1, node2).spliterator(), 35)
+                .collect(Collectors.<SimpleTestNode>toList()), is(equalTo(singletonList(node2))));
+    }
+
+    @Test
+    public void shouldExecuteInParallelWithParameters()
+            throws SQLException {
+        final PreparedSqlEngine<TestDeal> engine = new PreparedSqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child >= ? and label = :label");
+        final List<TestDeal> deals = Arrays.asList(deal1, deal2, deal3);
+        assertThat(engine.executeParallel(deals.spliterator(), 2, true, 2, "label"),
+                is(equalTo(Arrays.asList(deal2, deal3))));
+        assertThat(engine.executeParallel(deals.spliterator(), 2, true, 2, "other").isEmpty(), is(true));
+        assertThat(StreamSupport.stream(engine.spliterator(deals.spliterator(), 3, "label"), false)
+                .collect(Collectors.<TestDeal>toList()), is(equalTo(singletonList(deal3))));
+    }
+
+    @Test
+    public void shouldCountWithParameters()
+            throws SQLException {
+        final PreparedSqlEngine<TestDeal> engine = new PreparedSqlEngine<TestDeal>(TestDeal.class,
+                "select count(*) from EnrichedDeal where child >= ? limit 2");
+        final List<TestDeal> deals = Arrays.asList(deal1, deal2, deal3);
+        assertThat(engine.isCount(), is(true));
+        assertThat(engine.count(deals.iterator(), 1), is(equalTo(2)));
+        assertThat(engine.count(deals.iterator(), 3), is(equalTo(1)));
+        assertThat(engine.exists(deals.iterator(), 4), is(false));
+        assertThat(engine.execute(deals.iterator(), 1), is(equalTo(Arrays.asList(deal1, deal2))));
+    }
+
+    @Test(expected = SQLException.class)
+    public void shouldThrowOnMissingParameters()
+            throws SQLException {
+        new PreparedSqlEngine<TestDeal>(TestDeal.class, "select * from EnrichedDeal where child = ?")
+                .execute(Collections.<TestDeal>emptyList().iterator());
+    }
+
+    @Test(expected = SQLException.class)
+    public void shouldThrowOnMissingNamedParameter()
+            throws SQLException {
+        new PreparedSqlEngine<TestDeal>(TestDeal.class, "select * from EnrichedDeal where child = :child")
+                .parameters(Collections.<String, Object>emptyMap());
+    }
+
+    @Test(expected = SQLException.class)
+    public void sqlEngineShouldRejectBindVariables()
+            throws SQLException {
+        new SqlEngine<TestDeal>(TestDeal.class, "select * from EnrichedDeal where child = ?");
+    }
+
+    private List<TestDeal> run(final PreparedSqlEngine<TestDeal> engine, final Object... parameters)
+            throws SQLException {
+        return engine.execute(Arrays.asList(deal1, deal2, deal3).iterator(), parameters);
+    }
+}
@@ -29,6 +29,8 @@ import java.util.List;
 /**
  * Runs different types of queries against a collection of 2,000,000 elements and capture
  * the times. Used to test performance of the SQL Engine.
+ * <p>
+ * This is a quick smoke test; the JMH benchmarks in the benchmarks module are the reference.
  *
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
  */
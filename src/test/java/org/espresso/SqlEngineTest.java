@@ -15,7 +15,12 @@
  */
 package org.espresso;
 
+import org.espresso.eval.SqlComparisonEvaluator;
 import org.espresso.extension.SqlExtension;
+import org.espresso.index.ExactIndex;
+import org.espresso.index.Getter;
+import org.espresso.index.HashIndex;
+import org.espresso.index.Indices;
 import org.espresso.util.Sets;
 import org.junit.Before;
 import org.junit.Test;
@@ -26,8 +31,18 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.espresso.eval.SqlComparisonEvaluator.UNORDERED;
 import static org.espresso.extension.AmericanDateExtension.AMERICAN_DATE_EXTENSION;
 import static org.espresso.extension.JapaneseDateExtension.JAPANESE_DATE_EXTENSION;
 import static org.espresso.extension.StandardDateExtension.STANDARD_DATE_EXTENSION;
@@ -373,6 +388,349 @@ public class SqlEngineTest {
                 AMERICAN_DATE_EXTENSION, STANDARD_DATE_EXTENSION);
     }
 
+    @Test
+    public void shouldCompilePublicRowTypes()
+            throws SQLException {
+        assertThat(new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child in (1, 2) and book like 'bob%' and deal_date > '01/03/2011';",
+                STANDARD_DATE_EXTENSION).compile(), is(true));
+    }
+
+    @Test
+    public void shouldInterpretNonPublicRowTypes()
+            throws SQLException {
+        final SqlEngine<SimpleTestNode> engine = new SqlEngine<SimpleTestNode>(SimpleTestNode.class,
+                "select * from Test where age = 40;");
+        assertThat(engine.compile(), is(false));
+        assertThat(engine.isCompiled(), is(false));
+    }
+
+    @Test
+    public void shouldCompileHotQueriesInTheBackground()
+            throws SQLException, InterruptedException {
+        final List<TestDeal> deals = manyDeals(1000);
+        // a where clause of its own, so no other engine compiled it already
+        final SqlEngine<TestDeal> engine = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child between 17 and 716 and book = 'odd' and label != 'tiered';");
+        engine.setCompileThreshold(1500);
+        assertThat(engine.isCompiled(), is(false));
+        final List<TestDeal> expected = engine.execute(deals.iterator());
+        assertThat(expected.size(), is(equalTo(350)));
+        assertThat(engine.isCompiled(), is(false));
+        assertThat(engine.execute(deals.iterator()), is(equalTo(expected)));
+        for (int i = 0; i < 500 && !engine.isCompiled(); i++)
+            Thread.sleep(10);
+        assertThat(engine.isCompiled(), is(true));
+        assertThat(engine.execute(deals.iterator()), is(equalTo(expected)));
+        // other engines running the same where clause use the compiled version from the start
+        assertThat(new SqlEngine<TestDeal>(TestDeal.class, "select * from EnrichedDeal where "
+                + "child between 17 and 716 and book = 'odd' and label != 'tiered';").isCompiled(), is(true));
+    }
+
+    @Test
+    public void shouldExecuteInParallelPreservingOrder()
+            throws SQLException {
+        final List<TestDeal> deals = manyDeals(50000);
+        final SqlEngine<TestDeal> engine = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child >= 1000 and book = 'even';");
+        final List<TestDeal> expected = engine.execute(deals.iterator());
+        assertThat(expected.size(), is(equalTo(24500)));
+        assertThat(engine.executeParallel(deals, 4, true), is(equalTo(expected)));
+        assertThat(new HashSet<TestDeal>(engine.executeParallel(deals, 4, false)),
+                is(equalTo((Set<TestDeal>) new HashSet<TestDeal>(expected))));
+    }
+
+    @Test
+    public void shouldExecuteInParallelOverIndexBuckets()
+            throws SQLException {
+        final List<TestDeal> deals = manyDeals(50000);
+        final Indices<TestDeal> indices = new Indices<TestDeal>(HashIndex.newIndex(Integer.class, "child",
+                new Getter<TestDeal, Integer>() {
+                    @Override
+                    public Integer get(final TestDeal deal) {
+                        return deal.getChild();
+                    }
+                }));
+        for (final TestDeal deal : deals)
+            indices.addToIndices(deal);
+        final SqlEngine<TestDeal> engine = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child in (1, 10, 100, 1000, 10000);");
+        assertThat(new HashSet<TestDeal>(engine.executeParallel(deals, indices, 4, false)),
+                is(equalTo((Set<TestDeal>) new HashSet<TestDeal>(engine.execute(deals.iterator())))));
+        assertThat(engine.executeParallel(deals, indices, 4, true).size(), is(equalTo(5)));
+    }
+
+    @Test
+    public void shouldExecuteInterpretedQueriesInParallel()
+            throws SQLException {
+        final SqlEngine<SimpleTestNode> engine = new SqlEngine<SimpleTestNode>(SimpleTestNode.class,
+                "select * from Test where age * 2 + 1 > 41 and color in ('blue', 'red') and name like 'B%';");
+        assertThat(engine.isCompiled(), is(false));
+        final List<SimpleTestNode> nodes = manyNodes(10000);
+        assertThat(engine.executeParallel(nodes, 4, true), is(equalTo(engine.execute(nodes.iterator()))));
+    }
+
+    @Test
+    public void shouldShareInterpretedEnginesAcrossThreads()
+            throws Exception {
+        final SqlEngine<SimpleTestNode> engine = new SqlEngine<SimpleTestNode>(SimpleTestNode.class,
+                "select * from Test where age between 20 and 40 and color = 'blue' and age + 1 > 25;");
+        final List<SimpleTestNode> nodes = manyNodes(10000);
+        final List<SimpleTestNode> expected = engine.execute(nodes.iterator());
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<List<SimpleTestNode>>> futures = new ArrayList<Future<List<SimpleTestNode>>>();
+            for (int i = 0; i < 8; i++)
+                futures.add(executor.submit(new Callable<List<SimpleTestNode>>() {
+                    @Override
+                    public List<SimpleTestNode> call() throws SQLException {
+                        final List<SimpleTestNode> found = new ArrayList<SimpleTestNode>();
+                        for (final SimpleTestNode node : nodes)
+                            if (null != engine.against(node))
+                                found.add(node);
+                        return found;
+                    }
+                }));
+            for (final Future<List<SimpleTestNode>> future : futures)
+                assertThat(future.get(), is(equalTo(expected)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldInterpretMixedNumericComparisons()
+            throws SQLException {
+        final List<SimpleTestNode> nodes = manyNodes(60);
+        assertThat(interpret(nodes, "age > 57.5"), is(equalTo(ages(58, 59))));
+        assertThat(interpret(nodes, "57.5 < age"), is(equalTo(ages(58, 59))));
+        assertThat(interpret(nodes, "age * 1.5 >= 87"), is(equalTo(ages(58, 59))));
+        assertThat(interpret(nodes, "age / 2 = 29"), is(equalTo(ages(58, 59))));
+        assertThat(interpret(nodes, "age between 57.5 and 59"), is(equalTo(ages(58, 59))));
+        assertThat(interpret(nodes, "age >= 58 and color <= 'blue'"), is(equalTo(ages())));
+        assertThat(interpret(nodes, "age >= 58 and color > 'green'"), is(equalTo(ages(58))));
+    }
+
+    @Test
+    public void shouldCompareNaNTheSameWayInterpretedAndCompiled()
+            throws SQLException {
+        // child / 0.0 is NaN for the first deal, and infinity for the others
+        final List<TestDeal> deals = manyDeals(4);
+        final String[] predicates = {"child / 0.0 < 1", "child / 0.0 <= 1", "child / 0.0 = 1",
+                "child / 0.0 != 1", "child / 0.0 > 1", "child / 0.0 >= 1", "1 < child / 0.0", "1 >= child / 0.0",
+                "child / 0.0 = child / 0.0", "child / 0.0 != child / 0.0", "child between 0 / 0.0 and 2", "child between 0 and 0 / 0.0"};
+        for (final String predicate : predicates) {
+            final SqlEngine<TestDeal> engine = new SqlEngine<TestDeal>(TestDeal.class,
+                    "select * from EnrichedDeal where label != 'nan' and " + predicate + ";");
+            assertThat(engine.isCompiled(), is(false));
+            final List<TestDeal> interpreted = engine.execute(deals.iterator());
+            assertThat(predicate, interpreted.contains(deals.get(0)), is(predicate.contains("!=")));
+            assertThat(engine.compile(), is(true));
+            assertThat(predicate, engine.execute(deals.iterator()), is(equalTo(interpreted)));
+        }
+        assertThat(SqlComparisonEvaluator.LONG_DOUBLE.compare(1L, Double.NaN), is(equalTo(UNORDERED)));
+        assertThat(SqlComparisonEvaluator.DOUBLE_LONG.compare(Double.NaN, 1L), is(equalTo(UNORDERED)));
+        assertThat(SqlComparisonEvaluator.DOUBLE_DOUBLE.compare(Double.NaN, Double.NaN), is(equalTo(UNORDERED)));
+    }
+
+    @Test
+    public void shouldIterateLazily()
+            throws SQLException {
+        final List<TestDeal> deals = manyDeals(10000);
+        final int[] consumed = {0};
+        final Iterator<TestDeal> source = new Iterator<TestDeal>() {
+            private final Iterator<TestDeal> delegate = deals.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return delegate.hasNext();
+            }
+
+            @Override
+            public TestDeal next() {
+                consumed[0]++;
+                return delegate.next();
+            }
+        };
+        final Iterator<TestDeal> matches = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where book = 'odd';").iterate(source);
+        assertThat(matches.next().getChild(), is(equalTo(1)));
+        assertThat(matches.next().getChild(), is(equalTo(3)));
+        assertThat(consumed[0], is(equalTo(4)));
+    }
+
+    @Test
+    public void shouldHandMatchesToConsumer()
+            throws SQLException {
+        final List<SimpleTestNode> nodes = manyNodes(1000);
+        for (final String where : new String[]{"age > 50 and color = 'red'", "age * 2 > 100 and color = 'red'"}) {
+            final SqlEngine<SimpleTestNode> engine = new SqlEngine<SimpleTestNode>(SimpleTestNode.class,
+                    "select * from Test where " + where + ";");
+            final List<SimpleTestNode> found = new ArrayList<SimpleTestNode>();
+            final int matches = engine.execute(nodes.iterator(), new Consumer<SimpleTestNode>() {
+                @Override
+                public void accept(final SimpleTestNode node) {
+                    found.add(node);
+                }
+            });
+            assertThat(found, is(equalTo(engine.execute(nodes.iterator()))));
+            assertThat(matches, is(equalTo(found.size())));
+        }
+    }
+
+    @Test
+    public void shouldStreamCompiledAndInterpretedQueries()
+            throws SQLException {
+        final List<TestDeal> deals = manyDeals(50000);
+        final SqlEngine<TestDeal> compiled = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child >= 1000 and book = 'even';");
+        assertThat(compiled.stream(deals.spliterator()).parallel().collect(Collectors.<TestDeal>toList()),
+                is(equalTo(compiled.execute(deals.iterator()))));
+        assertThat(compiled.stream(deals.spliterator()).limit(3).count(), is(equalTo(3L)));
+
+        final List<SimpleTestNode> nodes = manyNodes(10000);
+        final SqlEngine<SimpleTestNode> interpreted = new SqlEngine<SimpleTestNode>(SimpleTestNode.class,
+                "select * from Test where age * 2 + 1 > 41 and color in ('blue', 'red');");
+        assertThat(interpreted.stream(nodes.spliterator()).parallel().collect(Collectors.<SimpleTestNode>toList()),
+                is(equalTo(interpreted.execute(nodes.iterator()))));
+    }
+
+    @Test
+    public void shouldStreamOverIndices()
+            throws SQLException {
+        final List<TestDeal> deals = manyDeals(10000);
+        final Indices<TestDeal> indices = new Indices<TestDeal>(HashIndex.newIndex(TestDeal.class, Integer.class,
+                "child"));
+        for (final TestDeal deal : deals)
+            indices.addToIndices(deal);
+        final SqlEngine<TestDeal> engine = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child in (1, 10, 100, 1000);");
+        assertThat(engine.stream(deals, indices).count(), is(equalTo(4L)));
+        final List<TestDeal> found = new ArrayList<TestDeal>();
+        final Iterator<TestDeal> matches = engine.iterate(deals.iterator(), indices);
+        while (matches.hasNext())
+            found.add(matches.next());
+        assertThat(new HashSet<TestDeal>(found),
+                is(equalTo((Set<TestDeal>) new HashSet<TestDeal>(engine.execute(deals.iterator())))));
+    }
+
+    @Test
+    public void shouldStopAtLimit()
+            throws SQLException {
+        final List<TestDeal> deals = manyDeals(10000);
+        final SqlEngine<TestDeal> engine = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where book = 'odd' limit 3;");
+        final Iterator<TestDeal> source = deals.iterator();
+        final List<TestDeal> found = engine.execute(source);
+        assertThat(found.size(), is(equalTo(3)));
+        assertThat(found.get(2).getChild(), is(equalTo(5)));
+        assertThat(source.next().getChild(), is(equalTo(6)));
+        assertThat(engine.stream(deals.spliterator()).count(), is(equalTo(3L)));
+        assertThat(engine.executeParallel(deals, 4, true), is(equalTo(found)));
+        assertThat(engine.executeParallel(deals, 4, false).size(), is(equalTo(3)));
+    }
+
+    @Test
+    public void shouldCountWithoutCollecting()
+            throws SQLException {
+        final List<SimpleTestNode> nodes = manyNodes(1000);
+        final SqlEngine<SimpleTestNode> interpreted = new SqlEngine<SimpleTestNode>(SimpleTestNode.class,
+                "select count(*) from Test where age * 2 > 100 and color = 'red';");
+        assertThat(interpreted.isCount(), is(true));
+        assertThat(interpreted.count(nodes.iterator()), is(equalTo(interpreted.execute(nodes.iterator()).size())));
+        final List<TestDeal> deals = manyDeals(10000);
+        final SqlEngine<TestDeal> compiled = new SqlEngine<TestDeal>(TestDeal.class,
+                "select count(*) from EnrichedDeal where child < 100 limit 50;");
+        assertThat(compiled.count(deals.iterator()), is(equalTo(50)));
+        assertThat(compiled.exists(deals.iterator()), is(true));
+        assertThat(new SqlEngine<TestDeal>(TestDeal.class, "select * from EnrichedDeal where child < 0;")
+                .exists(deals.iterator()), is(false));
+    }
+
+    @Test
+    public void shouldCountNullsFromIndices()
+            throws SQLException {
+        final List<TestDeal> deals = manyDeals(1000);
+        for (int i = 0; i < deals.size(); i += 10)
+            deals.get(i).setBook(null);
+        final Indices<TestDeal> indices = new Indices<TestDeal>(HashIndex.newIndex(TestDeal.class, String.class,
+                "book"));
+        for (final TestDeal deal : deals)
+            indices.addToIndices(deal);
+        final Iterator<TestDeal> untouched = new Iterator<TestDeal>() {
+            @Override
+            public boolean hasNext() {
+                throw new IllegalStateException("Counted from the index");
+            }
+
+            @Override
+            public TestDeal next() {
+                throw new IllegalStateException("Counted from the index");
+            }
+        };
+        assertThat(new SqlEngine<TestDeal>(TestDeal.class, "select count(*) from EnrichedDeal where book is null;")
+                .count(untouched, indices), is(equalTo(100)));
+        assertThat(new SqlEngine<TestDeal>(TestDeal.class, "select count(*) from EnrichedDeal where book = 'odd';")
+                .count(deals.iterator(), indices), is(equalTo(500)));
+    }
+
+    @Test
+    public void shouldReturnExactIndexMatchesWithoutChecking()
+            throws SQLException {
+        final List<TestDeal> deals = manyDeals(10000);
+        final Indices<TestDeal> indices = new Indices<TestDeal>(ExactIndex.newIndex(TestDeal.class, Integer.class,
+                "child"), ExactIndex.newIndex(TestDeal.class, String.class, "book"));
+        for (final TestDeal deal : deals)
+            indices.addToIndices(deal);
+        final SqlEngine<TestDeal> exact = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where child in (1, 1025, 2049);");
+        assertThat(new HashSet<TestDeal>(exact.execute(deals.iterator(), indices)),
+                is(equalTo((Set<TestDeal>) new HashSet<TestDeal>(exact.execute(deals.iterator())))));
+        assertThat(exact.stream(deals, indices).count(), is(equalTo(3L)));
+        final SqlEngine<TestDeal> residual = new SqlEngine<TestDeal>(TestDeal.class,
+                "select * from EnrichedDeal where book = 'odd' and child < 10;");
+        assertThat(residual.execute(deals.iterator(), indices).size(), is(equalTo(5)));
+        assertThat(new SqlEngine<TestDeal>(TestDeal.class, "select count(*) from EnrichedDeal where book = 'odd';")
+                .count(deals.iterator(), indices), is(equalTo(5000)));
+    }
+
+    private static List<Integer> interpret(final List<SimpleTestNode> nodes, final String where)
+            throws SQLException {
+        final SqlEngine<SimpleTestNode> engine = new SqlEngine<SimpleTestNode>(SimpleTestNode.class,
+                "select * from Test where " + where + ";");
+        assertThat(engine.isCompiled(), is(false));
+        final List<Integer> ages = new ArrayList<Integer>();
+        for (final SimpleTestNode node : engine.execute(nodes.iterator()))
+            ages.add(node.getAge());
+        return ages;
+    }
+
+    private static List<Integer> ages(final Integer... ages) {
+        return java.util.Arrays.asList(ages);
+    }
+
+    private static List<SimpleTestNode> manyNodes(final int count) {
+        final String[] colors = {"blue", "red", "green"};
+        final List<SimpleTestNode> nodes = new ArrayList<SimpleTestNode>(count);
+        for (int i = 0; i < count; i++)
+            nodes.add(new SimpleTestNode(0 == i % 2 ? "Bob" : "Alice", i % 60, colors[i % 3], null));
+        return nodes;
+    }
+
+    private static List<TestDeal> manyDeals(final int count) {
+        final List<TestDeal> deals = new ArrayList<TestDeal>(count);
+        for (int i = 0; i < count; i++) {
+            final TestDeal deal = new TestDeal();
+            deal.setDealNumber("deal" + i);
+            deal.setChild(i);
+            deal.setLabel(LABEL);
+            deal.setDatabaseName("database");
+            deal.setBook(0 == i % 2 ? "even" : "odd");
+            deals.add(deal);
+        }
+        return deals;
+    }
+
     private static Collection<TestDeal> noDeals() {
         return emptyList();
     }
@@ -173,4 +173,47 @@ public class SqlParserTest {
                 statement.toString());
     }
 
+    @Test
+    public void testBindVariables()
+            throws SQLException {
+        final SqlSelect statement = (SqlSelect) parse(
+                "select * from test where a = ? and b between :low and :high and c in (?, :low);");
+        assertEquals("SELECT * FROM test WHERE ((a = ?) AND (b BETWEEN :low AND :high) AND (c IN (?, :low)));",
+                statement.toString());
+        assertEquals(4, statement.getParameterCount());
+        assertEquals(5, statement.getParameters().size());
+        assertEquals(1, statement.getParameters().get(4).getIndex());
+        assertEquals(3, statement.getParameters().get(3).getIndex());
+    }
+
+    @Test
+    public void testCountAndLimit()
+            throws SQLException {
+        final SqlSelect count = (SqlSelect) parse("select count(*) from test where a = 1 limit 10;");
+        assertEquals("SELECT COUNT(*) FROM test WHERE (a = 1) LIMIT 10;", count.toString());
+        assertEquals(true, count.isCount());
+        assertEquals(10, count.getLimit());
+        final SqlSelect select = (SqlSelect) parse("SELECT * FROM test WHERE a = 1");
+        assertEquals(false, select.isCount());
+        assertEquals(SqlSelect.NO_LIMIT, select.getLimit());
+    }
+
+    @Test
+    public void shouldAcceptColumnsNamedCountOrLimit()
+            throws SQLException {
+        assertEquals("SELECT * FROM test WHERE (count > 3);", parse("select * from test where count > 3;").toString());
+        final SqlSelect select = (SqlSelect) parse(
+                "select count(*) from test where Count between 1 and limit and limit in (1, 2) and count is not null "
+                        + "and limit like 'x%' and count(limit) = 1 limit 5;");
+        assertEquals(true, select.isCount());
+        assertEquals(5, select.getLimit());
+        assertEquals("SELECT COUNT(*) FROM test WHERE ((Count BETWEEN 1 AND limit) AND (limit IN (1, 2))"
+                + " AND (count IS NOT NULL) AND (limit LIKE 'x%') AND ((count(limit)) = 1)) LIMIT 5;", select.toString());
+    }
+
+    @Test
+    public void shouldRejectFractionalLimit()
+            throws SQLException {
+        assertEquals(null, parse("select * from test where a = 1 limit 1.5;"));
+    }
 }
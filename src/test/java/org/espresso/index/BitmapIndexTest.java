@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import org.espresso.SqlEngine;
+import org.espresso.SqlParser;
+import org.espresso.TestDeal;
+import org.espresso.token.SqlSelect;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.StreamSupport;
+
+import static org.espresso.extension.StandardDateExtension.STANDARD_DATE_EXTENSION;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@code BitmapIndexTest} tests {@link BitmapIndex}.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class BitmapIndexTest {
+    private final List<TestDeal> deals = new ArrayList<TestDeal>();
+    private final RowIds<TestDeal> rows = new RowIds<TestDeal>();
+    private Index<TestDeal, String> books;
+    private Index<TestDeal, String> databases;
+    private Index<TestDeal, Integer> children;
+    private Indices<TestDeal> indices;
+    private IndexRestrictor<TestDeal> restrictor;
+
+    @Before
+    public void setUp() {
+        books = BitmapIndex.newIndex(rows, TestDeal.class, String.class, "book");
+        databases = BitmapIndex.newIndex(rows, TestDeal.class, String.class, "database_name");
+        children = BitmapIndex.newIndex(rows, TestDeal.class, Integer.class, "child");
+        indices = new Indices<TestDeal>(books, databases, children);
+        for (int i = 0; i < 5000; i++) {
+            final TestDeal deal = new TestDeal();
+            deal.setDealNumber("deal" + i);
+            deal.setChild(i % 100);
+            deal.setLabel("label");
+            deal.setDatabaseName("database" + i % 3);
+            deal.setBook(0 == i % 7 ? null : "book" + i % 10);
+            deals.add(deal);
+            indices.addToIndices(deal);
+        }
+        restrictor = new IndexRestrictor<TestDeal>(STANDARD_DATE_EXTENSION, indices);
+    }
+
+    @Test
+    public void shouldReturnOnlyMatchingRows() {
+        assertThat(books.isExact(), is(true));
+        assertThat(books.size(), is(equalTo(5000)));
+        assertThat(rows.size(), is(equalTo(5000)));
+        final Index<TestDeal, String> bucket = books.singleBucket("book3");
+        assertThat(bucket.size(), is(equalTo(429)));
+        for (final TestDeal deal : bucket)
+            assertThat(deal.getBook(), is(equalTo("book3")));
+        assertThat(books.singleBucket("nope").isEmpty(), is(true));
+        assertThat(books.singleBucket(null).size(), is(equalTo(715)));
+        assertThat(books.multipleBuckets(Arrays.asList("book3", "nope", null, "book3")).size(),
+                is(equalTo(429 + 715)));
+        assertThat(books.lessThan("book3").size(), is(equalTo(1714)));
+        assertThat(((Index) children).singleBucket(42L).size(), is(equalTo(50)));
+    }
+
+    @Test
+    public void shouldCombineColumnsExactly()
+            throws SQLException {
+        checkExact("book = 'book3' and database_name = 'database1'");
+        checkExact("book in ('book1', 'book2') and database_name = 'database0' and child = 0 or child = 7");
+        checkExact("book = 'book3' or database_name = 'database1'");
+        checkExact("(book = 'book3' or book is null) and child in (3, 13, 23)");
+        assertThat(restrictor.count(select("book = 'book3' and child = 4")), is(equalTo(0)));
+        // Predicates the indices cannot answer still need to be checked, over the smaller set
+        assertThat(restrictor.count(select("book = 'book3' and child < 50")), is(equalTo(-1)));
+        assertThat(restrictor.restrict(select("book = 'book3' and child < 50 and database_name = 'database2'"))
+                .size(), is(equalTo(70)));
+    }
+
+    @Test
+    public void shouldNegateExactly()
+            throws SQLException {
+        checkExact("not book = 'book3'");
+        checkExact("book != 'book3'");
+        checkExact("not book != 'book3'");
+        checkExact("not book in ('book1', 'book2') and database_name != 'database0'");
+        checkExact("book is not null");
+        checkExact("not book is null");
+        checkExact("not book is not null or not child in (1, 2, 3)");
+        // Negating a predicate the indices cannot answer exactly does not restrict anything
+        assertThat(restrictor.count(select("not child < 3")), is(equalTo(-1)));
+        assertThat(restrictor.restrict(select("not child < 3")), is(nullValue()));
+    }
+
+    @Test
+    public void shouldRemoveRowsAndReuseTheirIds() {
+        for (final TestDeal deal : deals.subList(0, 1000))
+            indices.removeFromIndices(deal);
+        assertThat(books.size(), is(equalTo(4000)));
+        assertThat(databases.size(), is(equalTo(4000)));
+        assertThat(rows.size(), is(equalTo(4000)));
+        assertThat(books.remove(deals.get(0)), is(false));
+        assertThat(rows.idOf(deals.get(0)), is(equalTo(-1)));
+        // A row keeps its id until it is removed from every index
+        books.remove(deals.get(1000));
+        assertThat(rows.idOf(deals.get(1000)) >= 0, is(true));
+        books.add(deals.get(1000));
+        for (final TestDeal deal : deals.subList(0, 1000))
+            indices.addToIndices(deal);
+        assertThat(books.add(deals.get(0)), is(false));
+        assertThat(rows.size(), is(equalTo(5000)));
+        for (final TestDeal deal : deals)
+            assertThat(rows.idOf(deal) < 5000, is(true));
+        assertThat(new HashSet<TestDeal>(books), is(equalTo(new HashSet<TestDeal>(deals))));
+    }
+
+    @Test
+    public void shouldTraverseInParallel() {
+        final Index<TestDeal, String> index = books.notNull();
+        assertThat(StreamSupport.stream(index.spliterator(), true).count(), is(equalTo(4285L)));
+        assertThat(StreamSupport.stream(books.spliterator(), true).distinct().count(), is(equalTo(5000L)));
+    }
+
+    @Test
+    public void shouldRestrictRanges()
+            throws SQLException {
+        // the ranges include the value compared to, as in the other indices
+        assertThat(children.lessThan(9).size(), is(equalTo(500)));
+        assertThat(children.estimateLessThan(9), is(equalTo(500)));
+        assertThat(children.greaterThan(95).size(), is(equalTo(250)));
+        assertThat(children.estimateGreaterThan(95), is(equalTo(250)));
+        assertThat(((Index) children).lessThan(9.5).size(), is(equalTo(500)));
+        assertThat(books.greaterThan("book8").size(), is(equalTo(857)));
+        assertThat(((Index) children).lessThan("9"), is(nullValue()));
+        assertThat(children.estimateLessThan(null), is(equalTo(-1)));
+        assertThat(restrictor.restrict(select("child < 4 and book = 'book3'")).size(), is(equalTo(43)));
+        assertThat(restrictor.restrict(select("child between 10 and 19")).size(), is(equalTo(500)));
+    }
+
+    @Test
+    public void shouldTakeLessRoomThanBuckets() {
+        final Index<TestDeal, Integer> buckets = NumericIndex.newIndex(TestDeal.class, Integer.class, "child", 0, 100);
+        for (final TestDeal deal : deals)
+            buckets.add(deal);
+        assertThat(children.memoryFootprint() * 5 < buckets.memoryFootprint(), is(true));
+        assertThat(indices.memoryFootprint().keySet(),
+                is(equalTo((Set<String>) new HashSet<String>(Arrays.asList("book", "child", "database_name")))));
+        assertThat(indices.memoryFootprint().get("child"), is(equalTo(children.memoryFootprint())));
+        assertThat(rows.memoryFootprint() > 5000 * 56, is(true));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldNotChangeRestrictions() {
+        books.singleBucket("book3").add(deals.get(0));
+    }
+
+    @Test
+    public void shouldNotCombineWithOtherRows() {
+        final Index<TestDeal, String> other = BitmapIndex.newIndex(new RowIds<TestDeal>(), TestDeal.class,
+                String.class, "book");
+        assertThat(books.isCompatibleWith(other), is(false));
+        assertThat(books.intersection(other), is(nullValue()));
+        assertThat(books.isCompatibleWith((Index) children), is(true));
+    }
+
+    /**
+     * Checks that the indices tell exactly which rows match, by comparing them with what the engine
+     * finds by checking every row
+     */
+    private void checkExact(final String where)
+            throws SQLException {
+        final SqlSelect select = select(where);
+        final List<TestDeal> expected = new SqlEngine<TestDeal>(TestDeal.class, select.toString() + ";")
+                .execute(deals.iterator());
+        assertThat(where, restrictor.count(select), is(equalTo(expected.size())));
+        assertThat(where, new HashSet<TestDeal>(restrictor.restrictExactly(select)),
+                is(equalTo(new HashSet<TestDeal>(expected))));
+    }
+
+    private static SqlSelect select(final String where)
+            throws SQLException {
+        return (SqlSelect) SqlParser.parse("select * from deals where " + where + ";");
+    }
+}
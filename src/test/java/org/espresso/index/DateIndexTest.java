@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import org.espresso.TestDeal;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import static org.espresso.index.DateIndex.Granularity.DAY;
+import static org.espresso.index.DateIndex.Granularity.MONTH;
+import static org.espresso.index.DateIndex.Granularity.WEEK;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@code DateIndexTest} tests {@link DateIndex}.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class DateIndexTest {
+    private final Date origin = date(2001, 1, 1);
+    private Index<TestDeal, Date> days;
+    private Index<TestDeal, Date> weeks;
+    private Index<TestDeal, Date> months;
+    private Index<TestDeal, Date> legacy;
+
+    @Before
+    public void setUp() {
+        days = DateIndex.newIndex(TestDeal.class, "maturity_date", origin, DAY, 366);
+        weeks = DateIndex.newIndex(TestDeal.class, "maturity_date", origin, WEEK, 53);
+        months = DateIndex.newIndex(TestDeal.class, "maturity_date", origin, MONTH, 12);
+        legacy = DateIndex.newIndex(TestDeal.class, "maturity_date");
+        // one deal a day, at noon, from 01/12/2000 until 31/01/2002
+        for (int i = 0; i < 427; i++) {
+            final TestDeal deal = new TestDeal();
+            deal.setDealNumber("deal" + i);
+            deal.setMaturityDate(new GregorianCalendar(2000, 11, 1 + i, 12, 0).getTime());
+            deal.setLabel("label");
+            deal.setDatabaseName("database");
+            days.add(deal);
+            weeks.add(deal);
+            months.add(deal);
+            legacy.add(deal);
+        }
+    }
+
+    @Test
+    public void shouldBucketByGranularity() {
+        // 01/01/2001 was a Monday, so weeks run from 08/01 to 14/01, from 15/01 to 21/01, ...
+        assertThat(weeks.singleBucket(date(2001, 1, 14)).size(), is(equalTo(7)));
+        assertThat(weeks.singleBucket(date(2001, 1, 15)).size(), is(equalTo(7)));
+        assertThat(months.singleBucket(date(2001, 2, 15)).size(), is(equalTo(28)));
+        assertThat(legacy.singleBucket(date(2001, 2, 15)).size(), is(equalTo(28)));
+        assertThat(days.singleBucket(date(2001, 3, 1)).size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void shouldClampOutOfRangeDates() {
+        // December 2000 goes to the first bucket, January 2002 to the last one
+        assertThat(days.singleBucket(date(1999, 6, 1)).size(), is(equalTo(32)));
+        assertThat(months.singleBucket(date(2001, 1, 31)).size(), is(equalTo(62)));
+        assertThat(months.singleBucket(date(2003, 1, 1)).size(), is(equalTo(62)));
+        assertThat(weeks.singleBucket(date(2000, 12, 31)).size(), is(equalTo(38)));
+    }
+
+    @Test
+    public void shouldKeepOnlyDatesInRangeFromBoundaryBuckets() {
+        assertThat(months.greaterThan(date(2001, 12, 2)).size(), is(equalTo(61)));
+        assertThat(legacy.greaterThan(date(2001, 12, 2)).size(), is(equalTo(61)));
+        assertThat(weeks.lessThan(date(2001, 1, 3)).size(), is(equalTo(33)));
+        assertThat(days.lessThan(date(2001, 1, 2)).size(), is(equalTo(32)));
+        assertThat(months.greaterThan(date(2001, 3, 10)).size(), is(equalTo(328)));
+        final Index<TestDeal, Date> outside = months.greaterThan(date(2001, 3, 20))
+                .union(months.lessThan(date(2001, 3, 10)));
+        assertThat(outside.size(), is(equalTo(417)));
+        assertThat(outside.intersection(months.singleBucket(date(2001, 3, 1))).size(), is(equalTo(21)));
+        // the boundary buckets of the original index are untouched
+        assertThat(months.singleBucket(date(2001, 3, 1)).size(), is(equalTo(31)));
+    }
+
+    @Test
+    public void shouldOnlyBeCompatibleWithTheSameBuckets() {
+        assertThat(days.isCompatibleWith(days.newIndex()), is(true));
+        assertThat(months.isCompatibleWith(legacy), is(false));
+        assertThat(months.isCompatibleWith(weeks), is(false));
+        assertThat(days.lessThan(null), is(nullValue()));
+    }
+
+    private static Date date(final int year, final int month, final int day) {
+        return new GregorianCalendar(year, month - 1, day).getTime();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import org.espresso.PreparedSqlEngine;
+import org.espresso.SqlEngine;
+import org.espresso.SqlParser;
+import org.espresso.TestDeal;
+import org.espresso.eval.NumberWrapper;
+import org.espresso.token.SqlSelect;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.espresso.extension.StandardDateExtension.STANDARD_DATE_EXTENSION;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@code ExactIndexTest} tests {@link ExactIndex}.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class ExactIndexTest {
+    private final List<TestDeal> deals = new ArrayList<TestDeal>();
+    private Index<TestDeal, Integer> children;
+    private Index<TestDeal, String> books;
+
+    @Before
+    public void setUp() {
+        children = ExactIndex.newIndex(TestDeal.class, Integer.class, "child");
+        books = ExactIndex.newIndex(TestDeal.class, String.class, "book");
+        for (int i = 0; i < 5000; i++) {
+            final TestDeal deal = new TestDeal();
+            deal.setDealNumber("deal" + i);
+            deal.setChild(i % 100);
+            deal.setLabel("label");
+            deal.setDatabaseName("database");
+            deal.setBook(0 == i % 7 ? null : "book" + i % 10);
+            deals.add(deal);
+            children.add(deal);
+            books.add(deal);
+        }
+    }
+
+    @Test
+    public void shouldReturnOnlyMatchingRows() {
+        assertThat(children.isExact(), is(true));
+        final Index<TestDeal, Integer> bucket = children.singleBucket(42);
+        assertThat(bucket.size(), is(equalTo(50)));
+        for (final TestDeal deal : bucket)
+            assertThat(deal.getChild(), is(equalTo(42)));
+        assertThat(children.singleBucket(1000).isEmpty(), is(true));
+        final Index<TestDeal, Integer> buckets = children.multipleBuckets(Arrays.asList(42, 1000, 7, 42));
+        assertThat(buckets.size(), is(equalTo(100)));
+        for (final TestDeal deal : buckets)
+            assertThat(deal.getChild() == 42 || deal.getChild() == 7, is(true));
+    }
+
+    @Test
+    public void shouldCompareNumbersByValue() {
+        final Index<TestDeal, Object> index = (Index) children;
+        assertThat(index.singleBucket(42L).size(), is(equalTo(50)));
+        assertThat(index.singleBucket(new NumberWrapper(42L)).size(), is(equalTo(50)));
+        assertThat(index.singleBucket(new NumberWrapper(42.0)).size(), is(equalTo(50)));
+        assertThat(index.singleBucket(new NumberWrapper(42.5)).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldStopBeingExactWhenOutOfBuckets() {
+        final Index<TestDeal, Integer> small = ExactIndex.newIndex(Integer.class, "child",
+                Getters.forColumn(TestDeal.class, "child", Integer.class), 10);
+        for (final TestDeal deal : deals)
+            small.add(deal);
+        assertThat(small.isExact(), is(false));
+        final Set<Integer> found = new HashSet<Integer>();
+        for (final TestDeal deal : small.singleBucket(42))
+            found.add(deal.getChild());
+        assertThat(found.contains(42), is(true));
+    }
+
+    @Test
+    public void shouldNotUseBucketsForValuesNeverAdded() {
+        final Index<TestDeal, Integer> small = ExactIndex.newIndex(Integer.class, "child",
+                Getters.forColumn(TestDeal.class, "child", Integer.class), 10);
+        for (final TestDeal deal : deals)
+            if (deal.getChild() < 10)
+                small.add(deal);
+        for (final TestDeal deal : deals)
+            if (deal.getChild() >= 10) {
+                assertThat(small.contains(deal), is(false));
+                assertThat(small.remove(deal), is(false));
+            }
+        assertThat(small.isExact(), is(true));
+        assertThat(small.size(), is(equalTo(500)));
+        assertThat(small.singleBucket(7).size(), is(equalTo(50)));
+    }
+
+    @Test
+    public void shouldRestrictExactly()
+            throws SQLException {
+        final IndexRestrictor<TestDeal> restrictor = new IndexRestrictor<TestDeal>(STANDARD_DATE_EXTENSION,
+                new Indices<TestDeal>(children, books));
+        assertThat(restrictor.count(select("child in (1, 2, 3) or child = 4")), is(equalTo(200)));
+        assertThat(restrictor.count(select("book = 'book3' or book is null")), is(equalTo(1144)));
+        assertThat(restrictor.count(select("child = 1 and child = 2")), is(equalTo(0)));
+        assertThat(restrictor.count(select("not child in (1, 2, 3)")), is(equalTo(4850)));
+        assertThat(restrictor.count(select("book != 'book3'")), is(equalTo(3856)));
+        assertThat(restrictor.count(select("not book = 'book3'")), is(equalTo(4571)));
+        assertThat(restrictor.count(select("book is not null")), is(equalTo(4285)));
+        // Different indices are intersected row by row, but predicates the indices cannot answer
+        // need to be checked
+        assertThat(restrictor.count(select("child = 1 and book = 'book1'")), is(equalTo(43)));
+        assertThat(restrictor.count(select("child = 1 or book = 'book1'")), is(equalTo(-1)));
+        assertThat(restrictor.count(select("child = 1 and label = 'x'")), is(equalTo(-1)));
+        assertThat(restrictor.restrict(select("child = 1 and label = 'x'")).size(), is(equalTo(50)));
+    }
+
+    @Test
+    public void shouldOnlyCheckConjunctsTheIndicesDidNotAnswer()
+            throws SQLException {
+        final Indices<TestDeal> indices = new Indices<TestDeal>(children, books);
+        final IndexRestrictor<TestDeal> restrictor = new IndexRestrictor<TestDeal>(STANDARD_DATE_EXTENSION, indices);
+        final SqlSelect select = select("book = 'book1' and label = 'label' and child in (1, 11)");
+        assertThat(restrictor.restrict(select).size(), is(equalTo(86)));
+        assertThat(restrictor.getAnswered().size(), is(equalTo(2)));
+        assertThat(IndexRestrictor.residual(select.getWhereClause(), restrictor.getAnswered()).toString(),
+                is(equalTo("(label = 'label')")));
+        assertThat(restrictor.restrict(select("book = 'book1' and child > 1")).size(), is(equalTo(428)));
+        assertThat(restrictor.getAnswered().size(), is(equalTo(1)));
+        assertThat(restrictor.restrict(select("book = 'book1' or child = 1")), is(nullValue()));
+        assertThat(restrictor.getAnswered().isEmpty(), is(true));
+
+        final String statement = "select * from deals where book = :book and label = 'label' and child in (1, 11)";
+        final SqlEngine<TestDeal> engine = new SqlEngine<TestDeal>(TestDeal.class,
+                statement.replace(":book", "'book1'"));
+        assertThat(new HashSet<TestDeal>(engine.execute(deals.iterator(), indices)),
+                is(equalTo(new HashSet<TestDeal>(engine.execute(deals.iterator())))));
+        final PreparedSqlEngine<TestDeal> prepared = new PreparedSqlEngine<TestDeal>(TestDeal.class, statement);
+        assertThat(prepared.count(deals.iterator(), indices, "book1"), is(equalTo(86)));
+        assertThat(prepared.stream(deals, indices, "book1").count(), is(equalTo(86L)));
+    }
+
+    private static SqlSelect select(final String where)
+            throws SQLException {
+        return (SqlSelect) SqlParser.parse("select * from deals where " + where + ";");
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import org.espresso.TestDeal;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class GettersTest {
+
+    @Test
+    public void shouldReadColumnsThroughGetters() {
+        final TestDeal deal = new TestDeal();
+        deal.setChild(42);
+        deal.setBook("The Trial");
+        assertThat(Getters.forColumn(TestDeal.class, "child").get(deal), is(equalTo((Object) 42)));
+        assertThat(Getters.forColumn(TestDeal.class, "book", String.class).get(deal), is(equalTo("The Trial")));
+        assertThat(Getters.forColumn(TestDeal.class, "maturity_date", Date.class).get(deal), is(nullValue()));
+        assertThat(Getters.typeOf(TestDeal.class, "child"), is(equalTo((Object) int.class)));
+    }
+
+    @Test
+    public void shouldReadPrimitiveColumnsWithoutBoxing() {
+        final TestDeal deal = new TestDeal();
+        deal.setChild(42);
+        assertThat(Getters.forLongColumn(TestDeal.class, "child").getLong(deal), is(42L));
+        assertThat(Getters.forDoubleColumn(TestDeal.class, "child"), is(nullValue()));
+        assertThat(Getters.forLongColumn(TestDeal.class, "book"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldReadFieldsOfNonPublicTypes() {
+        final Hidden hidden = new Hidden(2.5, "secret");
+        assertThat(Getters.forDoubleColumn(Hidden.class, "price").getDouble(hidden), is(2.5));
+        assertThat(Getters.forColumn(Hidden.class, "price").get(hidden), is(equalTo((Object) 2.5)));
+        assertThat(Getters.forColumn(Hidden.class, "secret_name").get(hidden), is(equalTo((Object) "secret")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownColumns() {
+        Getters.forColumn(TestDeal.class, "no_such_column");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectColumnsOfAnotherType() {
+        Getters.forColumn(TestDeal.class, "child", String.class);
+    }
+
+    @Test
+    public void shouldBuildIndicesFromColumnNames() {
+        final TestDeal deal = new TestDeal();
+        deal.setDealNumber("deal");
+        deal.setLabel("label");
+        deal.setDatabaseName("database");
+        deal.setBook("The Trial");
+        final Index<TestDeal, String> index = HashIndex.newIndex(TestDeal.class, String.class, "book");
+        index.add(deal);
+        assertThat(index.singleBucket("The Trial").contains(deal), is(true));
+        assertThat(DateIndex.newIndex(TestDeal.class, "maturity_date").getIndexType(), is(equalTo(Date.class)));
+    }
+
+    private static final class Hidden {
+        private final double price;
+        private final String secretName;
+
+        Hidden(final double price, final String secretName) {
+            this.price = price;
+            this.secretName = secretName;
+        }
+    }
+}
@@ -33,6 +33,7 @@ import static org.espresso.util.Sets.newHashSet;
 import static java.util.Collections.singleton;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -252,6 +253,7 @@ public class IndexRestrictorTest {
     @Test
     public void shouldOrCompatibleConditions()
             throws SQLException {
+        addUnrelatedDeals(20);
         final SqlSelect select = (SqlSelect) SqlParser.
                 parse("select * from EnrichedDeal where deal_number = '" + dealNumber1
                         + "' or deal_number = '" + dealNumber1 + "';");
@@ -280,6 +282,46 @@ public class IndexRestrictorTest {
                 is(equalTo(singleElement(deal4))));
     }
 
+    @Test
+    public void shouldIntersectDifferentIndicesRowByRow()
+            throws SQLException {
+        addUnrelatedDeals(20);
+        final SqlSelect select = (SqlSelect) SqlParser.
+                parse("select * from EnrichedDeal where deal_number in ('" + dealNumber1 + "', '" + dealNumber4
+                        + "') and book = '" + book + "' and label = '" + label1 + "';");
+
+        assertThat(newHashSet(restrictor.restrict(select, deals.iterator())),
+                is(equalTo(singleElement(deal1))));
+    }
+
+    @Test
+    public void shouldScanWhenIndicesDoNotCutEnough()
+            throws SQLException {
+        final SqlSelect select = (SqlSelect) SqlParser.
+                parse("select * from EnrichedDeal where book = '" + book + "';");
+
+        assertThat(restrictor.restrict(select), is(nullValue()));
+        addUnrelatedDeals(20);
+        assertThat(restrictor.restrict(select).size(), is(equalTo(2)));
+    }
+
+    /**
+     * Adds deals no query matches, so that the indices become worth using
+     */
+    private void addUnrelatedDeals(final int count) {
+        for (int i = 0; i < count; i++) {
+            final TestDeal deal = new TestDeal();
+            deal.setDealNumber("HH_Unrelated" + i);
+            deal.setBook("Book" + i);
+            deal.setLabel("UNRELATED");
+            deal.setDatabaseName("database");
+            deal.setDatabaseServer("server");
+            deals.add(deal);
+            indices.addToIndices(deal);
+        }
+        restrictor = new IndexRestrictor<TestDeal>(STANDARD_DATE_EXTENSION, indices);
+    }
+
     private static <T> Set<T> singleElement(final T element) {
         return singleton(element);
     }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.index;
+
+import org.espresso.SqlParser;
+import org.espresso.TestDeal;
+import org.espresso.eval.NumberWrapper;
+import org.espresso.token.SqlSelect;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.espresso.extension.StandardDateExtension.STANDARD_DATE_EXTENSION;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@code NumericIndexTest} tests {@link NumericIndex}.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class NumericIndexTest {
+    private final List<TestDeal> deals = new ArrayList<TestDeal>();
+    private Index<TestDeal, Integer> children;
+    private IndexRestrictor<TestDeal> restrictor;
+
+    @Before
+    public void setUp() {
+        children = NumericIndex.newIndex(TestDeal.class, Integer.class, "child", 0, 99);
+        for (int i = 0; i < 1000; i++) {
+            final TestDeal deal = new TestDeal();
+            deal.setDealNumber("deal" + i);
+            deal.setChild(i % 100);
+            deal.setLabel("label");
+            deal.setDatabaseName("database");
+            deals.add(deal);
+            children.add(deal);
+        }
+        restrictor = new IndexRestrictor<TestDeal>(STANDARD_DATE_EXTENSION, new Indices<TestDeal>(children));
+    }
+
+    @Test
+    public void shouldRestrictRanges()
+            throws SQLException {
+        assertThat(restrict("child >= 95").size(), is(equalTo(50)));
+        assertThat(restrict("child > 95").size(), is(equalTo(50)));
+        assertThat(restrict("child <= 4").size(), is(equalTo(50)));
+        assertThat(restrict("20 > child").size(), is(equalTo(210)));
+        assertThat(restrict("child between 50 and 59").size(), is(equalTo(100)));
+        assertThat(restrict("child between 50 and 59 and child < 55").size(), is(equalTo(60)));
+        assertThat(restrict("child = 7 or child in (8, 9)").size(), is(equalTo(30)));
+        assertThat(restrict("child in (8, 9, 8, 'nine')"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldEstimateRanges()
+            throws SQLException {
+        assertThat(children.size(), is(equalTo(1000)));
+        assertThat(children.estimateSingleBucket(7), is(equalTo(10)));
+        assertThat(children.estimateLessThan(20), is(equalTo(210)));
+        assertThat(children.estimateGreaterThan(95), is(equalTo(50)));
+        assertThat(((Index<TestDeal, Object>) (Index) children).estimateGreaterThan("95"), is(equalTo(-1)));
+        assertThat(restrict("90 > child"), is(nullValue()));
+        assertThat(restrict("child > 95 or child < 90"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldCompareNumbersByValue()
+            throws SQLException {
+        assertThat(restrict("child >= 97.5").size(), is(equalTo(30)));
+        assertThat(restrict("child between 10.5 and 11").size(), is(equalTo(20)));
+        final Index<TestDeal, Object> index = (Index) children;
+        assertThat(index.greaterThan(new NumberWrapper(98L)).size(), is(equalTo(20)));
+        assertThat(index.lessThan(new NumberWrapper(0.5)).size(), is(equalTo(10)));
+        assertThat(index.greaterThan("98"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldClampValuesOutOfRange() {
+        final TestDeal outlier = new TestDeal();
+        outlier.setDealNumber("outlier");
+        outlier.setChild(5000);
+        outlier.setLabel("label");
+        outlier.setDatabaseName("database");
+        children.add(outlier);
+        assertThat(children.greaterThan(1000).contains(outlier), is(true));
+        assertThat(children.greaterThan(99).size(), is(equalTo(11)));
+        assertThat(children.lessThan(-5).size(), is(equalTo(10)));
+    }
+
+    @Test
+    public void shouldSplitFloatingPointRanges() {
+        final Index<TestDeal, Double> prices = NumericIndex.newIndex(Double.class, "price",
+                new Getter<TestDeal, Double>() {
+                    @Override
+                    public Double get(final TestDeal deal) {
+                        return deal.getChild() / 10.0;
+                    }
+                }, 0, 10, 100);
+        for (final TestDeal deal : deals)
+            prices.add(deal);
+        for (final TestDeal deal : prices.greaterThan(9.55))
+            assertThat(deal.getChild() >= 95, is(true));
+        assertThat(prices.greaterThan(9.55).size(), is(equalTo(50)));
+    }
+
+    @Test
+    public void shouldCreateBucketsAsElementsComeIn()
+            throws InterruptedException {
+        final Index<TestDeal, Integer> fresh = children.newIndex();
+        assertThat(fresh.isEmpty(), is(true));
+        assertThat(fresh.singleBucket(7).isEmpty(), is(true));
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int first = i * deals.size() / threads.length;
+            final int last = (i + 1) * deals.size() / threads.length;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (final TestDeal deal : deals.subList(first, last))
+                        fresh.add(deal);
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads)
+            thread.join();
+        assertThat(fresh.size(), is(equalTo(1000)));
+        assertThat(fresh.singleBucket(7).size(), is(equalTo(10)));
+        assertThat(fresh.greaterThan(95).size(), is(equalTo(50)));
+        fresh.clear();
+        assertThat(fresh.isEmpty(), is(true));
+        assertThat(fresh.singleBucket(7).isEmpty(), is(true));
+    }
+
+    private Index<TestDeal, Object> restrict(final String where)
+            throws SQLException {
+        return restrictor.restrict((SqlSelect) SqlParser.parse("select * from deals where " + where + ";"));
+    }
+}
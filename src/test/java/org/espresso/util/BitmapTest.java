@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * {@code BitmapTest} tests {@link Bitmap}, against sorted sets.
+ *
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class BitmapTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void shouldAddAndRemove() {
+        final Bitmap bitmap = new Bitmap();
+        assertThat(bitmap.isEmpty(), is(true));
+        assertThat(bitmap.next(0), is(equalTo(-1)));
+        assertThat(bitmap.last(), is(equalTo(-1)));
+        assertThat(bitmap.add(70000), is(true));
+        assertThat(bitmap.add(70000), is(false));
+        assertThat(bitmap.add(3), is(true));
+        assertThat(bitmap.contains(70000), is(true));
+        assertThat(bitmap.contains(4464), is(false));
+        assertThat(bitmap.toString(), is(equalTo("{3, 70000}")));
+        assertThat(bitmap.next(4), is(equalTo(70000)));
+        assertThat(bitmap.last(), is(equalTo(70000)));
+        assertThat(bitmap.remove(70000), is(true));
+        assertThat(bitmap.remove(70000), is(false));
+        assertThat(bitmap.cardinality(), is(equalTo(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeValues() {
+        new Bitmap().add(-1);
+    }
+
+    @Test
+    public void shouldSwitchBetweenArraysAndWords() {
+        final Bitmap bitmap = new Bitmap();
+        final SortedSet<Integer> expected = new TreeSet<Integer>();
+        // a dense chunk, well beyond the size of arrays, and back
+        for (int i = 0; i < 65536; i += 2) {
+            bitmap.add(65536 + i);
+            expected.add(65536 + i);
+        }
+        check(bitmap, expected);
+        for (int i = 0; i < 65536; i += 3) {
+            bitmap.remove(65536 + i);
+            expected.remove(65536 + i);
+        }
+        check(bitmap, expected);
+        for (int i = 0; i < 65536; i++)
+            if (0 != i % 97) {
+                bitmap.remove(65536 + i);
+                expected.remove(65536 + i);
+            }
+        check(bitmap, expected);
+    }
+
+    @Test
+    public void shouldCombineBitmaps() {
+        for (int round = 0; round < 20; round++) {
+            final SortedSet<Integer> first = randomSet();
+            final SortedSet<Integer> second = randomSet();
+            final Bitmap left = bitmapOf(first);
+            final Bitmap right = bitmapOf(second);
+            final SortedSet<Integer> and = new TreeSet<Integer>(first);
+            and.retainAll(second);
+            final SortedSet<Integer> or = new TreeSet<Integer>(first);
+            or.addAll(second);
+            final SortedSet<Integer> andNot = new TreeSet<Integer>(first);
+            andNot.removeAll(second);
+            check(left.and(right), and);
+            check(left.or(right), or);
+            check(left.andNot(right), andNot);
+            // the operands are left untouched
+            check(left, first);
+            check(right, second);
+        }
+    }
+
+    @Test
+    public void shouldCopy() {
+        final SortedSet<Integer> expected = randomSet();
+        final Bitmap bitmap = bitmapOf(expected);
+        final Bitmap copy = bitmap.copy();
+        bitmap.clear();
+        check(copy, expected);
+        assertThat(bitmap.isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldCombineManyBitmaps() {
+        final List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+        final SortedSet<Integer> expected = new TreeSet<Integer>();
+        check(Bitmap.or(bitmaps), expected);
+        for (int i = 0; i < 7; i++) {
+            final SortedSet<Integer> set = randomSet();
+            bitmaps.add(bitmapOf(set));
+            expected.addAll(set);
+            check(Bitmap.or(bitmaps), expected);
+        }
+    }
+
+    @Test
+    public void shouldTakeLessRoomWhenDense() {
+        final Bitmap sparse = new Bitmap();
+        final Bitmap dense = new Bitmap();
+        for (int i = 0; i < 60000; i++) {
+            if (0 == i % 100)
+                sparse.add(i);
+            dense.add(i);
+        }
+        // 600 values in an array of chars, against 60000 values in 1024 words
+        assertThat(sparse.sizeInBytes() < 600 * 4, is(true));
+        assertThat(dense.sizeInBytes() < 10000, is(true));
+        assertThat(new Bitmap().sizeInBytes() < sparse.sizeInBytes(), is(true));
+    }
+
+    /** Mixes sparse and dense chunks, so all kinds of chunks get combined with each other */
+    private SortedSet<Integer> randomSet() {
+        final SortedSet<Integer> set = new TreeSet<Integer>();
+        for (int chunk = 0; chunk < 6; chunk++) {
+            final int density = random.nextInt(4);
+            final int count = 0 == density ? 0 : 1 == density ? 100 : 2 == density ? 4000 : 30000;
+            for (int i = 0; i < count; i++)
+                set.add(chunk << 16 | random.nextInt(65536));
+        }
+        return set;
+    }
+
+    private static Bitmap bitmapOf(final SortedSet<Integer> values) {
+        final Bitmap bitmap = new Bitmap();
+        for (final int value : values)
+            bitmap.add(value);
+        return bitmap;
+    }
+
+    private static void check(final Bitmap bitmap, final SortedSet<Integer> expected) {
+        final List<Integer> found = new ArrayList<Integer>();
+        for (int i = bitmap.next(0); 0 <= i; i = bitmap.next(i + 1))
+            found.add(i);
+        assertThat(found, is(equalTo((List<Integer>) new ArrayList<Integer>(expected))));
+        assertThat(bitmap.cardinality(), is(equalTo(expected.size())));
+        assertThat(bitmap.last(), is(equalTo(expected.isEmpty() ? -1 : expected.last())));
+        for (final int value : expected)
+            assertThat(bitmap.contains(value), is(true));
+    }
+}
@@ -15,19 +15,32 @@
  */
 package org.espresso.visitor;
 
+import org.espresso.FunctionExtension;
 import org.espresso.SqlParser;
 import org.espresso.TestDeal;
 import org.espresso.eval.Evaluator;
+import org.espresso.extension.JapaneseDateExtension;
 import org.espresso.token.SqlSelect;
 import org.espresso.token.SqlStatement;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.ref.WeakReference;
 import java.sql.SQLException;
-
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.espresso.extension.JapaneseDateExtension.JAPANESE_DATE_EXTENSION;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
@@ -212,4 +225,323 @@ public class CompilerVisitorTest {
 
 
     }
+
+    @Test
+    public void testInList() throws SQLException {
+        final Evaluator evaluator = compile("select * from TestDeals where child in (5, 1, 3);");
+        final TestDeal deal = new TestDeal();
+
+        deal.setChild(3);
+        assertTrue(evaluator.matches(deal));
+        deal.setChild(2);
+        assertFalse(evaluator.matches(deal));
+    }
+
+    @Test
+    public void testInListMixedNumbers() throws SQLException {
+        final Evaluator evaluator = compile("select * from TestDeals where child in (1.5, 2);");
+        final TestDeal deal = new TestDeal();
+
+        deal.setChild(2);
+        assertTrue(evaluator.matches(deal));
+        deal.setChild(1);
+        assertFalse(evaluator.matches(deal));
+    }
+
+    @Test
+    public void testInListStrings() throws SQLException {
+        final Evaluator evaluator = compile("select * from TestDeals where book in ('book1', 'book2');");
+        final TestDeal deal = new TestDeal();
+
+        deal.setBook("book2");
+        assertTrue(evaluator.matches(deal));
+        deal.setBook("book3");
+        assertFalse(evaluator.matches(deal));
+        deal.setBook(null);
+        assertFalse(evaluator.matches(deal));
+    }
+
+    @Test
+    public void testInListWithColumns() throws SQLException {
+        final Evaluator evaluator = compile("select * from TestDeals where child in (parent, 7);");
+        final TestDeal deal = new TestDeal();
+
+        deal.setChild(7);
+        assertTrue(evaluator.matches(deal));
+        deal.setChild(3);
+        deal.setParent(3);
+        assertTrue(evaluator.matches(deal));
+        deal.setParent(4);
+        assertFalse(evaluator.matches(deal));
+    }
+
+    @Test
+    public void testLike() throws SQLException {
+        final Evaluator evaluator = compile("select * from TestDeals where book like 'b%k_0';");
+        final TestDeal deal = new TestDeal();
+
+        deal.setBook("book_0");
+        assertTrue(evaluator.matches(deal));
+        deal.setBook("book_1");
+        assertFalse(evaluator.matches(deal));
+        deal.setBook(null);
+        assertFalse(evaluator.matches(deal));
+    }
+
+    @Test
+    public void testDate() throws SQLException, NoSuchMethodException {
+        final Evaluator evaluator = compile("select * from TestDeals where maturity_date >= '2001/01/02';",
+                functions(JAPANESE_DATE_EXTENSION, JapaneseDateExtension.class.getMethod("toDate", String.class)));
+        final TestDeal deal = new TestDeal();
+
+        deal.setMaturityDate(new GregorianCalendar(2001, 0, 2).getTime());
+        assertTrue(evaluator.matches(deal));
+        deal.setMaturityDate(new GregorianCalendar(2001, 0, 1).getTime());
+        assertFalse(evaluator.matches(deal));
+        deal.setMaturityDate(null);
+        assertFalse(evaluator.matches(deal));
+    }
+
+    @Test
+    public void testDateBetween() throws SQLException, NoSuchMethodException {
+        final Evaluator evaluator = compile(
+                "select * from TestDeals where maturity_date between '2001/01/02' and '2001/01/03';",
+                functions(JAPANESE_DATE_EXTENSION, JapaneseDateExtension.class.getMethod("toDate", String.class)));
+        final TestDeal deal = new TestDeal();
+
+        deal.setMaturityDate(new GregorianCalendar(2001, 0, 3).getTime());
+        assertTrue(evaluator.matches(deal));
+        deal.setMaturityDate(new GregorianCalendar(2001, 0, 4).getTime());
+        assertFalse(evaluator.matches(deal));
+    }
+
+    @Test
+    public void testFunction() throws SQLException, NoSuchMethodException {
+        final DealFunctions extension = new DealFunctions();
+        final Map<String, FunctionExtension> functions = functions(extension,
+                DealFunctions.class.getMethod("twice", int.class));
+        functions.putAll(functions(extension, DealFunctions.class.getMethod("has_book", String.class, TestDeal.class)));
+        final Evaluator evaluator = compile(
+                "select * from TestDeals where twice(child) = 4 and has_book('book1');", functions);
+        final TestDeal deal = new TestDeal();
+
+        deal.setChild(2);
+        deal.setBook("book1");
+        assertTrue(evaluator.matches(deal));
+        deal.setBook("book2");
+        assertFalse(evaluator.matches(deal));
+        deal.setBook("book1");
+        deal.setChild(3);
+        assertFalse(evaluator.matches(deal));
+    }
+
+    @Test
+    public void testShortCircuit() throws SQLException, NoSuchMethodException {
+        final DealFunctions extension = new DealFunctions();
+        final Map<String, FunctionExtension> functions = functions(extension,
+                DealFunctions.class.getMethod("has_book", String.class, TestDeal.class));
+        final Evaluator and = compile("select * from TestDeals where has_book('book1') and child = 3;", functions);
+        final Evaluator or = compile("select * from TestDeals where has_book('book1') or child = 2;", functions);
+        final TestDeal deal = new TestDeal();
+        deal.setBook("book1");
+
+        // the cheaper comparison runs first, and settles the result without calling the function
+        deal.setChild(2);
+        assertFalse(and.matches(deal));
+        assertTrue(or.matches(deal));
+        assertEquals(0, extension.calls);
+        deal.setChild(3);
+        assertTrue(and.matches(deal));
+        assertTrue(or.matches(deal));
+        assertEquals(2, extension.calls);
+        deal.setBook("book2");
+        assertFalse(and.matches(deal));
+        assertFalse(or.matches(deal));
+
+        final Evaluator nested = compile(
+                "select * from TestDeals where (child = 1 or child = 3) and not book is null and child < 5;");
+        assertTrue(nested.matches(deal));
+        deal.setBook(null);
+        assertFalse(nested.matches(deal));
+        deal.setBook("book2");
+        deal.setChild(2);
+        assertFalse(nested.matches(deal));
+    }
+
+    @Test
+    public void testScan() throws SQLException, NoSuchMethodException {
+        final List<TestDeal> deals = new ArrayList<TestDeal>();
+        for (int i = 0; i < 10; i++) {
+            final TestDeal deal = new TestDeal();
+            deal.setChild(i);
+            deals.add(deal);
+        }
+        final Evaluator evaluator = compile("select * from TestDeals where child >= 3 and child < 8;");
+        final List<Object> matches = new ArrayList<Object>();
+        final Consumer<Object> consumer = new Consumer<Object>() {
+            @Override
+            public void accept(final Object row) {
+                matches.add(row);
+            }
+        };
+        assertEquals(5, evaluator.scan(deals.iterator(), null, consumer, Integer.MAX_VALUE));
+        assertEquals(deals.subList(3, 8), matches);
+        assertEquals(2, evaluator.scan(deals.iterator(), null, null, 2));
+        assertEquals(0, evaluator.scan(deals.iterator(), null, consumer, 0));
+
+        // failures of the where clause are reported as such, those of the consumer are not
+        final Evaluator failing = compile("select * from TestDeals where twice(child) = 4;",
+                functions(new DealFunctions(), DealFunctions.class.getMethod("twice", int.class)));
+        deals.get(0).setChild(-1);
+        try {
+            failing.scan(deals.iterator(), null, null, Integer.MAX_VALUE);
+            fail();
+        } catch (final SQLException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        try {
+            evaluator.scan(deals.iterator(), null, new Consumer<Object>() {
+                @Override
+                public void accept(final Object row) {
+                    throw new IllegalStateException();
+                }
+            }, Integer.MAX_VALUE);
+            fail();
+        } catch (final IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testUnloadClasses() throws SQLException, InterruptedException {
+        final long generated = CompilerVisitor.getGeneratedClassCount();
+        final List<Evaluator> evaluators = new ArrayList<Evaluator>();
+        final List<WeakReference<Class<?>>> classes = new ArrayList<WeakReference<Class<?>>>();
+        for (int i = 0; i < 10; i++) {
+            evaluators.add(compile("select * from TestDeals where child = " + i + ";"));
+            classes.add(new WeakReference<Class<?>>(evaluators.get(i).getClass()));
+        }
+        assertTrue(generated + 10 <= CompilerVisitor.getGeneratedClassCount());
+        final int live = CompilerVisitor.getLiveClassCount();
+        assertTrue(10 <= live);
+
+        // once the evaluators are gone, their classes can be unloaded; System.gc() is only a hint,
+        // so the check is skipped, rather than failed, if the classes are not collected in time
+        evaluators.clear();
+        for (int i = 0; i < 50 && !allCleared(classes); i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assumeTrue(allCleared(classes));
+    }
+
+    private static boolean allCleared(final List<WeakReference<Class<?>>> classes) {
+        for (final WeakReference<Class<?>> clazz : classes)
+            if (null != clazz.get())
+                return false;
+        return true;
+    }
+
+    @Test(expected = SQLException.class)
+    public void testMissingFunction() throws SQLException {
+        compile("select * from TestDeals where twice(child) = 4;");
+    }
+
+    @Test
+    public void testIsNullOnPrimitive() throws SQLException {
+        final TestDeal deal = new TestDeal();
+        assertFalse(compile("select * from TestDeals where child is null;").matches(deal));
+        assertTrue(compile("select * from TestDeals where child is not null and book is null;").matches(deal));
+    }
+
+    @Test
+    public void testNumericComparisons() throws SQLException {
+        final TestDeal deal = new TestDeal();
+        deal.setChild(2);
+        assertTrue(compile("select * from TestDeals where child >= 1 and child <= 3 and child <> 1;").matches(deal));
+        assertTrue(compile("select * from TestDeals where child >= 2 and child <= 2.0 and child != 2.5;").matches(deal));
+        assertFalse(compile("select * from TestDeals where child >= 3 or child <= 1 or child <> 2;").matches(deal));
+    }
+
+    @Test
+    public void testInlineComparisons() throws SQLException {
+        final TestDeal deal = new TestDeal();
+        deal.setChild(2);
+        // comparisons with null fail, whichever side is null
+        assertFalse(compile("select * from TestDeals where book = 'book';").matches(deal));
+        assertFalse(compile("select * from TestDeals where book != 'book';").matches(deal));
+        assertFalse(compile("select * from TestDeals where book < 'book' or 'book' > book "
+                + "or book between 'a' and 'z';").matches(deal));
+        deal.setBook("book");
+        assertTrue(compile("select * from TestDeals where book = 'book' and book >= 'a' and 'z' > book "
+                + "and book != 'boo';").matches(deal));
+        assertTrue(compile("select * from TestDeals where book between 'a' and 'z' "
+                + "and not book between 'c' and 'z';").matches(deal));
+        assertFalse(compile("select * from TestDeals where book between label and 'z' "
+                + "or book between book and label;").matches(deal));
+        // numbers are compared pairwise, as doubles only against doubles
+        assertTrue(compile("select * from TestDeals where child between 1.5 and 2 and child between 2 and 2.5 "
+                + "and not child between 2.5 and 3 and child > 1.5 and 2.5 >= child;").matches(deal));
+
+        final SqlSelect statement = (SqlSelect) SqlParser.parse(
+                "select * from TestDeals where child < ? or child >= ? or child = ? or child between ? and 3;");
+        final Evaluator evaluator = new CompilerVisitor<TestDeal>(TestDeal.class, statement.getWhereClause(),
+                new HashMap<String, FunctionExtension>(),
+                new Class<?>[] {Double.class, Double.class, Double.class, Double.class}).compile();
+        // comparisons with NaN fail
+        assertFalse(evaluator.matches(deal, new Object[] {Double.NaN, Double.NaN, Double.NaN, Double.NaN}));
+        assertTrue(evaluator.matches(deal, new Object[] {Double.NaN, Double.NaN, Double.NaN, 1.0}));
+        assertTrue(compile("select * from TestDeals where child != 0.0 / 0;").matches(deal));
+    }
+
+    @Test
+    public void testParameters() throws SQLException {
+        final SqlSelect statement = (SqlSelect) SqlParser.parse(
+                "select * from TestDeals where child between ? and :high and book = :book and child * 2 > :high;");
+        final Evaluator evaluator = new CompilerVisitor<TestDeal>(TestDeal.class, statement.getWhereClause(),
+                new HashMap<String, FunctionExtension>(),
+                new Class<?>[] {Long.class, Double.class, String.class}).compile();
+        final TestDeal deal = new TestDeal();
+        deal.setChild(2);
+        deal.setBook("book");
+        assertTrue(evaluator.matches(deal, new Object[] {1, 2.5, "book"}));
+        assertFalse(evaluator.matches(deal, new Object[] {1, 1.5, "book"}));
+        assertFalse(evaluator.matches(deal, new Object[] {1L, 2.5, "other book"}));
+    }
+
+    @Test(expected = SQLException.class)
+    public void testUntypedParameter() throws SQLException {
+        compile("select * from TestDeals where child = ?;");
+    }
+
+    private static Evaluator compile(final String query) throws SQLException {
+        return compile(query, new HashMap<String, FunctionExtension>());
+    }
+
+    private static Evaluator compile(final String query, final Map<String, FunctionExtension> functions)
+            throws SQLException {
+        final SqlSelect statement = (SqlSelect) SqlParser.parse(query);
+        return new CompilerVisitor<TestDeal>(TestDeal.class, statement.getWhereClause(), functions).compile();
+    }
+
+    private static Map<String, FunctionExtension> functions(final Object target,
+            final java.lang.reflect.Method method) {
+        final Map<String, FunctionExtension> functions = new HashMap<String, FunctionExtension>();
+        functions.put(method.getName(), new FunctionExtension(target, method));
+        return functions;
+    }
+
+    public static class DealFunctions {
+        int calls;
+
+        public long twice(final int value) {
+            if (0 > value)
+                throw new IllegalArgumentException("Negative value");
+            return 2 * value;
+        }
+
+        public boolean has_book(final String book, final TestDeal deal) {
+            calls++;
+            return book.equals(deal.getBook());
+        }
+    }
 }
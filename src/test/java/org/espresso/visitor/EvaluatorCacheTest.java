@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 Espresso Team
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.espresso.visitor;
+
+import org.espresso.FunctionExtension;
+import org.espresso.SqlParser;
+import org.espresso.TestDeal;
+import org.espresso.eval.Evaluator;
+import org.espresso.token.SqlExpressionNode;
+import org.espresso.token.SqlSelect;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:antenangeli@yahoo.com">Alberto Antenangeli</a>
+ */
+public class EvaluatorCacheTest {
+    private static final Map<String, FunctionExtension> NO_FUNCTIONS = Collections.emptyMap();
+
+    @Test
+    public void shouldReuseCompiledWhereClause() throws SQLException {
+        final EvaluatorCache cache = new EvaluatorCache(10);
+        final Evaluator first = cache.get(TestDeal.class, where("select * from TestDeals where child = 1"), NO_FUNCTIONS);
+        final Evaluator second = cache.get(TestDeal.class, where("SELECT *  FROM TestDeals WHERE  child=1"), NO_FUNCTIONS);
+        assertSame(first, second);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void shouldCompileDifferentWhereClauses() throws SQLException {
+        final EvaluatorCache cache = new EvaluatorCache(10);
+        final Evaluator first = cache.get(TestDeal.class, where("select * from TestDeals where child = 1"), NO_FUNCTIONS);
+        final Evaluator second = cache.get(TestDeal.class, where("select * from TestDeals where child = 2"), NO_FUNCTIONS);
+        assertNotSame(first, second);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() throws SQLException {
+        final EvaluatorCache cache = new EvaluatorCache(2);
+        final Evaluator first = cache.get(TestDeal.class, where("select * from TestDeals where child = 1"), NO_FUNCTIONS);
+        cache.get(TestDeal.class, where("select * from TestDeals where child = 2"), NO_FUNCTIONS);
+        cache.get(TestDeal.class, where("select * from TestDeals where child = 1"), NO_FUNCTIONS);
+        final Evaluator third = cache.get(TestDeal.class, where("select * from TestDeals where child = 3"), NO_FUNCTIONS);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getMissCount());
+        assertSame(first, cache.get(TestDeal.class, where("select * from TestDeals where child = 1"), NO_FUNCTIONS));
+        assertSame(third, cache.get(TestDeal.class, where("select * from TestDeals where child = 3"), NO_FUNCTIONS));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        // child = 2 was the least recently used, so it was evicted and has to be compiled again
+        cache.get(TestDeal.class, where("select * from TestDeals where child = 2"), NO_FUNCTIONS);
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void shouldCacheFailedCompilations() throws SQLException {
+        final EvaluatorCache cache = new EvaluatorCache(10);
+        for (int i = 0; i < 2; i++)
+            try {
+                cache.get(TestDeal.class, where("select * from TestDeals where no_such_column = 1"), NO_FUNCTIONS);
+                fail("Should not compile a missing column");
+            } catch (final SQLException e) {
+                // expected
+            }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectEmptyCache() {
+        new EvaluatorCache(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SqlExpressionNode<TestDeal> where(final String query) throws SQLException {
+        return ((SqlSelect) SqlParser.parse(query)).getWhereClause();
+    }
+}